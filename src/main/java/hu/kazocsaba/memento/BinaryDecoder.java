@@ -0,0 +1,791 @@
+package hu.kazocsaba.memento;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads mementos in the binary format.
+ *
+ * @author Kazó Csaba
+ */
+final class BinaryDecoder {
+	private final BinaryInput in;
+	private final Set<BinaryFeature> features;
+	private final boolean indexed;
+	private final boolean compact;
+	private final boolean streamed;
+	private final boolean blobs;
+	/**
+	 * The blob region, if the whole data is available in a buffer; {@code null} otherwise.
+	 */
+	private ByteBuffer blobRegion;
+	/**
+	 * The blobs referenced so far whose content is read after the mementos, if the data is read sequentially.
+	 */
+	private List<PendingBlob> pendingBlobs;
+	/**
+	 * The file from which the pending blobs are mapped, or {@code null} if they are read from the input.
+	 */
+	private MappedFile blobFile;
+	/**
+	 * The end of the last blob referenced so far, relative to the start of the blob region.
+	 */
+	private long blobEnd;
+	/**
+	 * Selects the parts of the data to decode.
+	 */
+	private LoadOptions options=LoadOptions.ALL;
+	/**
+	 * The strings referenced from the data, or {@code null} if the strings are stored inline.
+	 */
+	private final String[] strings;
+	/**
+	 * The first byte of the root memento, which has already been read together with the header.
+	 */
+	private int rootHasType;
+
+	private BinaryDecoder(BinaryInput in, Set<BinaryFeature> features, String[] strings) {
+		this.in=in;
+		this.features=features;
+		this.strings=strings;
+		indexed=features.contains(BinaryFeature.INDEXED);
+		compact=features.contains(BinaryFeature.COMPACT_INTEGERS);
+		streamed=features.contains(BinaryFeature.STREAMED);
+		blobs=features.contains(BinaryFeature.BLOBS);
+	}
+
+	/**
+	 * Creates a decoder for the same format as another decoder, reading from a different input.
+	 */
+	private BinaryDecoder(BinaryDecoder format, BinaryInput in) {
+		this(in, format.features, format.strings);
+		blobRegion=format.blobRegion;
+		options=format.options;
+	}
+
+	/**
+	 * Reads the format header, and returns a decoder for the data following it.
+	 */
+	static BinaryDecoder open(BinaryInput in) throws IOException, MementoFormatException {
+		int first=in.readUnsignedByte();
+		BinaryDecoder decoder;
+		if (first==BinaryEncoder.MARKER) {
+			int version=in.readUnsignedByte();
+			if (version!=BinaryEncoder.VERSION)
+				throw new MementoFormatException("Unsupported binary format version: "+version);
+			Set<BinaryFeature> features=BinaryFeature.fromMask(in.readUnsignedByte());
+			decoder=new BinaryDecoder(in, features, null);
+			if (features.contains(BinaryFeature.STRING_TABLE)) {
+				int count=decoder.readLength(2);
+				String[] strings=new String[in.allocation(count, 0)];
+				for (int i=0; i<count; i++) {
+					if (i==strings.length) strings=Arrays.copyOf(strings, in.allocation(count, i));
+					strings[i]=in.readUTF();
+				}
+				decoder=new BinaryDecoder(in, features, strings);
+			}
+			first=in.readUnsignedByte();
+		} else
+			decoder=new BinaryDecoder(in, EnumSet.noneOf(BinaryFeature.class), null);
+		decoder.rootHasType=first;
+		return decoder;
+	}
+
+	/**
+	 * Returns whether the data records the encoded size of each child memento.
+	 */
+	boolean isIndexed() {
+		return indexed;
+	}
+
+	/**
+	 * Reads the format header from a buffer holding the complete data, and returns a decoder for the data following
+	 * it. If the data contains blobs, they are located from the end of the buffer.
+	 */
+	private static BinaryDecoder open(ByteBuffer buffer) throws IOException, MementoFormatException {
+		BinaryDecoder decoder=open(new BinaryInput(buffer.duplicate()));
+		if (decoder.blobs) {
+			int end=buffer.limit()-8;
+			long length=end<0 ? -1 : buffer.getLong(end);
+			if (length<0 || length>end)
+				throw new MementoFormatException("Invalid blob region length: "+length);
+			ByteBuffer region=buffer.duplicate();
+			region.limit(end).position(end-(int)length);
+			decoder.blobRegion=region.slice().asReadOnlyBuffer();
+		}
+		return decoder;
+	}
+
+	/**
+	 * Returns whether the data contains blobs stored after the mementos.
+	 */
+	boolean hasBlobs() {
+		return blobs;
+	}
+
+	/**
+	 * Returns whether the data marks the end of the mementos instead of recording the numbers of properties and
+	 * children.
+	 */
+	boolean isStreamed() {
+		return streamed;
+	}
+
+	/**
+	 * Reads the type of the root memento. This must be called first after the decoder has been opened.
+	 */
+	String readRootType() throws IOException, MementoFormatException {
+		return readType(rootHasType);
+	}
+
+	/**
+	 * Creates the root memento, reading its type.
+	 */
+	private Memento createRoot() throws IOException, MementoFormatException {
+		return new Memento(readRootType());
+	}
+
+	/**
+	 * Reads a memento with all its descendants.
+	 *
+	 * @param in the input to read from
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento read(BinaryInput in) throws IOException, MementoFormatException {
+		return read(in, null, LoadOptions.ALL);
+	}
+
+	/**
+	 * Reads the selected parts of a memento, possibly from a file. Blobs are memory-mapped from the file instead of
+	 * being read.
+	 *
+	 * @param in the input to read from
+	 * @param file the file that the input reads from the beginning; or {@code null} to read blobs from the input
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento read(BinaryInput in, MappedFile file, LoadOptions options) throws IOException, MementoFormatException {
+		BinaryDecoder decoder=open(in);
+		decoder.options=options;
+		if (decoder.blobs) {
+			decoder.pendingBlobs=new ArrayList<>();
+			decoder.blobFile=file;
+		}
+		Memento memento=decoder.readBody(decoder.createRoot());
+		if (decoder.blobs) decoder.readBlobRegion();
+		return memento;
+	}
+
+	/**
+	 * Reads the selected parts of a memento from a buffer. Blobs are not copied, they refer to the buffer.
+	 *
+	 * @param buffer the buffer holding the data; it must not be modified afterwards
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento read(ByteBuffer buffer, LoadOptions options) throws IOException, MementoFormatException {
+		BinaryDecoder decoder=open(buffer);
+		decoder.options=options;
+		return decoder.readBody(decoder.createRoot());
+	}
+
+	/**
+	 * Reads a memento from a buffer, deferring the decoding of the children until they are accessed. If the data was
+	 * not written with the {@link BinaryFeature#INDEXED} feature, the whole memento is decoded immediately.
+	 *
+	 * @param buffer the buffer holding the data; it must not be modified afterwards
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento readLazily(ByteBuffer buffer) throws IOException, MementoFormatException {
+		BinaryDecoder decoder=open(buffer);
+		Memento memento=decoder.createRoot();
+		if (!decoder.indexed || decoder.streamed)
+			return decoder.readBody(memento);
+		decoder.readLazyBody(memento, buffer);
+		return memento;
+	}
+
+	/**
+	 * Reads a memento from a buffer, decoding its children in parallel. If the data was not written with the
+	 * {@link BinaryFeature#INDEXED} feature, the memento is decoded sequentially.
+	 *
+	 * @param buffer the buffer holding the data
+	 * @param pool the pool executing the decoding tasks
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento readParallel(ByteBuffer buffer, ForkJoinPool pool) throws IOException, MementoFormatException {
+		BinaryDecoder decoder=open(buffer);
+		BinaryInput in=decoder.in;
+		Memento memento=decoder.createRoot();
+		if (!decoder.indexed || decoder.streamed)
+			return decoder.readBody(memento);
+		decoder.readProperties(memento);
+		
+		// build the segment table by skipping over the children
+		int[] positions=new int[decoder.readLength(1)];
+		for (int i=0; i<positions.length; i++) {
+			long size=decoder.readSize();
+			positions[i]=in.position();
+			if (size<0 || size>buffer.limit()-positions[i])
+				throw new MementoFormatException("Invalid memento size: "+size);
+			in.position(positions[i]+(int)size);
+		}
+		
+		Memento[] children=new Memento[positions.length];
+		int threshold=Math.max(1, positions.length/(8*pool.getParallelism()));
+		try {
+			pool.invoke(new DecodeTask(decoder, buffer, positions, children, 0, positions.length, threshold));
+		} catch (DecodingException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw (MementoFormatException)e.getCause();
+		}
+		for (Memento child: children)
+			memento.addChild(child);
+		return memento;
+	}
+
+	/**
+	 * Reads a key or a type name.
+	 */
+	String readName() throws IOException, MementoFormatException {
+		if (strings==null) return in.readUTF();
+		int index=readCount();
+		if (index>=strings.length)
+			throw new MementoFormatException("Invalid string reference: "+index);
+		return strings[index];
+	}
+
+	/**
+	 * Skips a key or a type name.
+	 */
+	private void skipName() throws IOException, MementoFormatException {
+		if (strings==null)
+			skip(in.readUnsignedShort());
+		else
+			readCount();
+	}
+
+	String readType(int hasType) throws IOException, MementoFormatException {
+		return hasType!=0 ? readName() : null;
+	}
+
+	private Memento readBody(Memento memento) throws IOException, MementoFormatException {
+		if (streamed) {
+			while (true) {
+				int entry=in.readUnsignedByte();
+				if (entry==BinaryEncoder.END_ENTRY)
+					return memento;
+				else if (entry==BinaryEncoder.PROPERTY_ENTRY)
+					readProperty(memento);
+				else if (entry==BinaryEncoder.CHILD_ENTRY)
+					readChild(memento);
+				else
+					throw new MementoFormatException("Invalid entry: "+entry);
+			}
+		}
+		readProperties(memento);
+		int count=readCount();
+		while (count-->0)
+			readChild(memento);
+		return memento;
+	}
+
+	private void readChild(Memento memento) throws IOException, MementoFormatException {
+		long size=indexed ? readSize() : -1;
+		long start=in.offset();
+		String type=readType(in.readUnsignedByte());
+		if (options.acceptsChild(type))
+			readBody(memento.createChild(type));
+		else if (size!=-1 && (!blobs || pendingBlobs==null || blobFile!=null))
+			skip(size-(in.offset()-start));
+		else
+			// the referenced blobs must be seen to find the end of the blob region
+			skipBody();
+	}
+
+	/**
+	 * Skips the properties and the children of a memento whose type has already been read.
+	 */
+	private void skipBody() throws IOException, MementoFormatException {
+		if (streamed) {
+			while (true) {
+				int entry=in.readUnsignedByte();
+				if (entry==BinaryEncoder.END_ENTRY)
+					return;
+				else if (entry==BinaryEncoder.PROPERTY_ENTRY)
+					skipProperty();
+				else if (entry==BinaryEncoder.CHILD_ENTRY)
+					skipChild();
+				else
+					throw new MementoFormatException("Invalid entry: "+entry);
+			}
+		}
+		for (int count=readCount(); count>0; count--)
+			skipProperty();
+		for (int count=readCount(); count>0; count--)
+			skipChild();
+	}
+
+	private void skipProperty() throws IOException, MementoFormatException {
+		skipName();
+		skipValue(in.readByte());
+	}
+
+	private void skipChild() throws IOException, MementoFormatException {
+		if (indexed) readSize();
+		if (in.readUnsignedByte()!=0) skipName();
+		skipBody();
+	}
+
+	/**
+	 * Reads the properties of a memento, and sets up the lazy loading of its children.
+	 */
+	private void readLazyBody(Memento memento, ByteBuffer buffer) throws IOException, MementoFormatException {
+		readProperties(memento);
+		int count=readCount();
+		if (count>0)
+			memento.setChildLoader(new LazyChildLoader(this, buffer, in.position(), count));
+	}
+
+	private void readProperties(Memento memento) throws IOException, MementoFormatException {
+		int count=readCount();
+		while (count-->0)
+			readProperty(memento);
+	}
+
+	private void readProperty(Memento memento) throws IOException, MementoFormatException {
+		String key=readName();
+		byte type=in.readByte();
+		if (!options.acceptsKey(key)) {
+			skipValue(type);
+			return;
+		}
+		switch (type) {
+			case 0:
+				memento.putString(key,in.readUTF());
+				break;
+			case 1:
+				memento.putInt(key,readIntValue());
+				break;
+			case 2:
+				memento.putFloat(key,in.readFloat());
+				break;
+			case 3:
+				memento.putBoolean(key,in.readBoolean());
+				break;
+			case 4:
+				memento.putChar(key,in.readChar());
+				break;
+			case 5:
+			case 12:
+				memento.putStringArray(key,readStringArray(type));
+				break;
+			case 6:
+				memento.putIntArray(key,readIntArray());
+				break;
+			case 7:
+				memento.putByteArray(key,readByteArray());
+				break;
+			case 8:
+				memento.putDouble(key, in.readDouble());
+				break;
+			case 9:
+				memento.putLong(key, readLongValue());
+				break;
+			case 10:
+				memento.putDoubleArray(key, readDoubleArray());
+				break;
+			case 11:
+				memento.putString(key, readLongString());
+				break;
+			case 13:
+				memento.putByteArray(key, readBlob());
+				break;
+			default:
+				throw new MementoFormatException("Unknown type: "+type);
+		}
+	}
+
+	/**
+	 * Returns the class describing the value of a property type, in the same way as
+	 * {@link Memento#getPropertyType(String)}.
+	 *
+	 * @throws MementoFormatException if the type is unknown
+	 */
+	static Class<?> valueClass(byte type) throws MementoFormatException {
+		switch (type) {
+			case 0: case 11: return String.class;
+			case 1: return Integer.class;
+			case 2: return Float.class;
+			case 3: return Boolean.class;
+			case 4: return Character.class;
+			case 5: case 12: return String[].class;
+			case 6: return Integer[].class;
+			case 7: return Byte[].class;
+			case 8: return Double.class;
+			case 9: return Long.class;
+			case 10: return Double[].class;
+			case 13: return Byte[].class;
+			default:
+				throw new MementoFormatException("Unknown type: "+type);
+		}
+	}
+
+	/**
+	 * Reads a property value of the specified type. Arrays are returned as primitive arrays.
+	 */
+	Object readValue(byte type) throws IOException, MementoFormatException {
+		switch (type) {
+			case 0: return in.readUTF();
+			case 1: return readIntValue();
+			case 2: return in.readFloat();
+			case 3: return in.readBoolean();
+			case 4: return in.readChar();
+			case 5: case 12: return readStringArray(type);
+			case 6: return readIntArray();
+			case 7: return readByteArray();
+			case 8: return in.readDouble();
+			case 9: return readLongValue();
+			case 10: return readDoubleArray();
+			case 11: return readLongString();
+			case 13: return readBlob().getArray();
+			default:
+				throw new MementoFormatException("Unknown type: "+type);
+		}
+	}
+
+	/**
+	 * Skips a property value of the specified type.
+	 */
+	void skipValue(byte type) throws IOException, MementoFormatException {
+		switch (type) {
+			case 0: skip(in.readUnsignedShort()); break;
+			case 1: readIntValue(); break;
+			case 2: skip(4); break;
+			case 3: skip(1); break;
+			case 4: skip(2); break;
+			case 5:
+				for (int count=readCount(); count>0; count--)
+					skip(in.readUnsignedShort());
+				break;
+			case 6:
+				if (compact) {
+					for (int count=readCount(); count>0; count--)
+						readIntValue();
+				} else
+					skip(4L*readCount());
+				break;
+			case 7: skip(readCount()); break;
+			case 8: skip(8); break;
+			case 9: readLongValue(); break;
+			case 10: skip(8L*readCount()); break;
+			case 11: skip(readSize()); break;
+			case 12:
+				for (int count=readCount(); count>0; count--)
+					skip(readSize());
+				break;
+			case 13: checkBlob(in.readLong(), in.readInt()); break;
+			default:
+				throw new MementoFormatException("Unknown type: "+type);
+		}
+	}
+
+	/**
+	 * Skips the specified number of bytes.
+	 */
+	void skip(long count) throws IOException {
+		while (count>0) {
+			int skipped=in.skipBytes((int)Math.min(count, Integer.MAX_VALUE));
+			if (skipped==0) throw new EOFException();
+			count-=skipped;
+		}
+	}
+
+	private String readLongString() throws IOException, MementoFormatException {
+		long size=readSize();
+		checkLength(size, 1);
+		return in.readLongUTF(size);
+	}
+
+	private String[] readStringArray(byte type) throws IOException, MementoFormatException {
+		int length=readLength(type==5 ? 2 : compact ? 1 : 8);
+		String[] array=new String[in.allocation(length, 0)];
+		for (int i=0; i<length; i++) {
+			if (i==array.length) array=Arrays.copyOf(array, in.allocation(length, i));
+			array[i]=type==5 ? in.readUTF() : readLongString();
+		}
+		return array;
+	}
+
+	private int[] readIntArray() throws IOException, MementoFormatException {
+		int length=readLength(compact ? 1 : 4);
+		int[] array=new int[in.allocation(length, 0)];
+		int filled=0;
+		while (true) {
+			if (compact) {
+				for (int i=filled; i<array.length; i++)
+					array[i]=readIntValue();
+			} else
+				in.readInts(array, filled, array.length-filled);
+			if (array.length==length) return array;
+			filled=array.length;
+			array=Arrays.copyOf(array, in.allocation(length, filled));
+		}
+	}
+
+	private byte[] readByteArray() throws IOException, MementoFormatException {
+		return in.readBytes(readLength(1));
+	}
+
+	/**
+	 * Reads a reference to a blob. The content of the blob is taken from the blob region if it is available,
+	 * otherwise it is filled in by {@link #readBlobRegion()}.
+	 */
+	private ByteArray readBlob() throws IOException, MementoFormatException {
+		long offset=in.readLong();
+		int length=in.readInt();
+		checkBlob(offset, length);
+		if (blobRegion!=null) {
+			if (offset>blobRegion.limit()-length)
+				throw new MementoFormatException("Blob outside the blob region: "+offset+", "+length);
+			ByteBuffer blob=blobRegion.duplicate();
+			blob.position((int)offset).limit((int)offset+length);
+			return new ByteArray(blob);
+		}
+		if (pendingBlobs==null) throw new MementoFormatException("Blobs are not supported here");
+		ByteArray blob=new ByteArray();
+		pendingBlobs.add(new PendingBlob(blob, offset, length));
+		return blob;
+	}
+
+	/**
+	 * Checks the position and the length of a blob, and updates {@link #blobEnd}.
+	 */
+	private void checkBlob(long offset, int length) throws MementoFormatException {
+		if (!blobs) throw new MementoFormatException("Blob reference without blob region");
+		if (offset<0 || length<0) throw new MementoFormatException("Invalid blob: "+offset+", "+length);
+		blobEnd=Math.max(blobEnd, offset+length);
+	}
+
+	/**
+	 * Reads the blob region following the mementos, filling in the content of the pending blobs. The blobs are stored
+	 * in the order in which they are referenced; the ones that were skipped are skipped in the region as well.
+	 */
+	private void readBlobRegion() throws IOException, MementoFormatException {
+		long regionStart=in.offset();
+		long position=0;
+		for (PendingBlob pending: pendingBlobs) {
+			if (pending.offset<position)
+				throw new MementoFormatException("Unexpected blob position: "+pending.offset);
+			if (blobFile!=null)
+				pending.blob.setBuffer(blobFile.map(regionStart+pending.offset, pending.length));
+			else {
+				skip(pending.offset-position);
+				pending.blob.setArray(in.readBytes(pending.length));
+			}
+			position=pending.offset+pending.length;
+		}
+		pendingBlobs.clear();
+		// the file is not read further, so the rest of the region need not be skipped
+		if (blobFile!=null) return;
+		skip(blobEnd-position);
+		long length=in.readLong();
+		if (length!=blobEnd)
+			throw new MementoFormatException("Invalid blob region length: "+length);
+	}
+
+	private double[] readDoubleArray() throws IOException, MementoFormatException {
+		int length=readLength(8);
+		double[] array=new double[in.allocation(length, 0)];
+		int filled=0;
+		while (true) {
+			in.readDoubles(array, filled, array.length-filled);
+			if (array.length==length) return array;
+			filled=array.length;
+			array=Arrays.copyOf(array, in.allocation(length, filled));
+		}
+	}
+
+	/**
+	 * Reads a non-negative integer: a count, a length, or an index.
+	 */
+	int readCount() throws IOException, MementoFormatException {
+		long count=compact ? readVarLong() : in.readInt();
+		if (count<0 || count>Integer.MAX_VALUE) throw new MementoFormatException("Invalid count: "+count);
+		return (int)count;
+	}
+
+	/**
+	 * Reads the length of an array whose elements take at least the specified number of bytes each, and checks it
+	 * against the number of bytes left in the input, so that corrupt data is reported instead of causing a huge
+	 * allocation.
+	 */
+	private int readLength(int elementSize) throws IOException, MementoFormatException {
+		int length=readCount();
+		checkLength(length, elementSize);
+		return length;
+	}
+
+	private void checkLength(long length, int elementSize) throws IOException, MementoFormatException {
+		long remaining=in.remaining();
+		if (remaining!=-1 && length>remaining/elementSize)
+			throw new MementoFormatException("Length exceeds the remaining data: "+length);
+	}
+
+	/**
+	 * Reads the encoded size of a memento or a long string.
+	 */
+	long readSize() throws IOException, MementoFormatException {
+		long size=compact ? readVarLong() : in.readLong();
+		if (size<0) throw new MementoFormatException("Invalid size: "+size);
+		return size;
+	}
+
+	private int readIntValue() throws IOException, MementoFormatException {
+		if (!compact) return in.readInt();
+		long value=readVarLong();
+		if ((value & ~0xFFFFFFFFL)!=0) throw new MementoFormatException("Integer value out of range");
+		return (int)(value >>> 1) ^ -(int)(value & 1);
+	}
+
+	private long readLongValue() throws IOException, MementoFormatException {
+		if (!compact) return in.readLong();
+		long value=readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads a number written in groups of 7 bits, least significant group first.
+	 */
+	private long readVarLong() throws IOException, MementoFormatException {
+		long value=0;
+		for (int shift=0; shift<64; shift+=7) {
+			int b=in.readUnsignedByte();
+			value|=(long)(b & 0x7F) << shift;
+			if ((b & 0x80)==0) return value;
+		}
+		throw new MementoFormatException("Variable length integer too long");
+	}
+
+	/**
+	 * A blob whose content has not yet been read.
+	 */
+	private static final class PendingBlob {
+		final ByteArray blob;
+		final long offset;
+		final int length;
+
+		PendingBlob(ByteArray blob, long offset, int length) {
+			this.blob=blob;
+			this.offset=offset;
+			this.length=length;
+		}
+	}
+
+	/**
+	 * Decodes the children of a memento from a buffer on demand.
+	 */
+	private static final class LazyChildLoader implements Memento.ChildLoader {
+		private final BinaryDecoder format;
+		private final ByteBuffer buffer;
+		private final int position;
+		private final int count;
+
+		LazyChildLoader(BinaryDecoder format, ByteBuffer buffer, int position, int count) {
+			this.format=format;
+			this.buffer=buffer;
+			this.position=position;
+			this.count=count;
+		}
+
+		@Override
+		public void loadChildren(List<Memento> children) throws IOException, MementoFormatException {
+			BinaryInput in=new BinaryInput(buffer.duplicate());
+			BinaryDecoder decoder=new BinaryDecoder(format, in);
+			int next=position;
+			for (int i=0; i<count; i++) {
+				in.position(next);
+				long size=decoder.readSize();
+				if (size<0 || size>buffer.limit()-in.position())
+					throw new MementoFormatException("Invalid memento size: "+size);
+				next=in.position()+(int)size;
+				Memento child=new Memento(decoder.readType(in.readUnsignedByte()));
+				decoder.readLazyBody(child, buffer);
+				children.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Wraps the checked exceptions thrown while decoding in a task.
+	 */
+	private static final class DecodingException extends RuntimeException {
+		private static final long serialVersionUID = 4412093570934L;
+
+		DecodingException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Decodes a range of the children of a memento.
+	 */
+	private static final class DecodeTask extends RecursiveAction {
+		private static final long serialVersionUID = 7523097153095L;
+
+		private final BinaryDecoder format;
+		private final ByteBuffer buffer;
+		private final int[] positions;
+		private final Memento[] children;
+		private final int from, to, threshold;
+
+		DecodeTask(BinaryDecoder format, ByteBuffer buffer, int[] positions, Memento[] children, int from, int to, int threshold) {
+			this.format=format;
+			this.buffer=buffer;
+			this.positions=positions;
+			this.children=children;
+			this.from=from;
+			this.to=to;
+			this.threshold=threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to-from>threshold) {
+				int middle=(from+to) >>> 1;
+				invokeAll(
+						new DecodeTask(format, buffer, positions, children, from, middle, threshold),
+						new DecodeTask(format, buffer, positions, children, middle, to, threshold));
+				return;
+			}
+			BinaryInput in=new BinaryInput(buffer.duplicate());
+			BinaryDecoder decoder=new BinaryDecoder(format, in);
+			try {
+				for (int i=from; i<to; i++) {
+					in.position(positions[i]);
+					children[i]=decoder.readBody(new Memento(decoder.readType(in.readUnsignedByte())));
+				}
+			} catch (IOException | MementoFormatException e) {
+				throw new DecodingException(e);
+			}
+		}
+	}
+}
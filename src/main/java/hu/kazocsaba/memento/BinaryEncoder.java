@@ -0,0 +1,558 @@
+package hu.kazocsaba.memento;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes mementos in the binary format.
+ *
+ * @author Kazó Csaba
+ */
+final class BinaryEncoder {
+	/**
+	 * The first byte of data written with a format header. The legacy format, which has no header, starts with a
+	 * boolean, so this value cannot occur there.
+	 */
+	static final byte MARKER=0x4D;
+	/**
+	 * The version of the format written after the marker.
+	 */
+	static final byte VERSION=1;
+	/**
+	 * Marks the end of a memento in the {@linkplain BinaryFeature#STREAMED streamed} format.
+	 */
+	static final int END_ENTRY=0;
+	/**
+	 * Precedes a property in the {@linkplain BinaryFeature#STREAMED streamed} format.
+	 */
+	static final int PROPERTY_ENTRY=1;
+	/**
+	 * Precedes a child memento in the {@linkplain BinaryFeature#STREAMED streamed} format.
+	 */
+	static final int CHILD_ENTRY=2;
+	/**
+	 * The minimum length of the byte arrays stored as {@linkplain BinaryFeature#BLOBS blobs}.
+	 */
+	static final int BLOB_THRESHOLD=1 << 16;
+
+	private final BinaryOutput out;
+	private final Set<BinaryFeature> features;
+	private final boolean indexed;
+	private final boolean compact;
+	private final boolean streamed;
+	private final boolean blobs;
+	/**
+	 * The position in the blob region of the next blob to write.
+	 */
+	private long blobOffset;
+	/**
+	 * The indices of the strings in the string table, or {@code null} if strings are written inline.
+	 */
+	private Map<String,Integer> strings;
+	/**
+	 * The encoded sizes of the mementos that have been measured but not yet written.
+	 */
+	private final Map<Memento,Long> sizes;
+	private BinaryOutput counter;
+
+	/**
+	 * Creates a new encoder.
+	 *
+	 * @param out the output to write to
+	 * @param features the features of the format to use; if it is {@code null} or empty, the legacy format is written
+	 * without a header
+	 */
+	BinaryEncoder(BinaryOutput out, Set<BinaryFeature> features) {
+		this.out=out;
+		// without features the header carries no information, so all variants write the same bytes
+		this.features=features==null || features.isEmpty() ? null : features;
+		indexed=features!=null && features.contains(BinaryFeature.INDEXED);
+		compact=features!=null && features.contains(BinaryFeature.COMPACT_INTEGERS);
+		streamed=features!=null && features.contains(BinaryFeature.STREAMED);
+		blobs=features!=null && features.contains(BinaryFeature.BLOBS);
+		sizes=indexed ? new IdentityHashMap<Memento,Long>() : null;
+	}
+
+	/**
+	 * Writes a memento with all its descendants, preceded by the format header.
+	 *
+	 * @param memento the memento to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	void encode(Memento memento) throws IOException {
+		memento=memento.consistentView();
+		writeHeader(memento);
+		write(memento);
+		if (blobs) writeBlobRegion(memento);
+	}
+
+	/**
+	 * Creates an encoder for the same format as another encoder, writing to a different output.
+	 */
+	private BinaryEncoder(BinaryEncoder format, BinaryOutput out) {
+		this(out, format.features);
+		strings=format.strings;
+	}
+
+	/**
+	 * Writes a memento with all its descendants, preceded by the format header. The children of the memento are
+	 * encoded in parallel into separate buffers, which are then written in order. The output is the same as that
+	 * of {@link #encode(Memento)}.
+	 *
+	 * @param memento the memento to write
+	 * @param pool the pool executing the encoding tasks
+	 * @throws IOException if an I/O error occurs
+	 */
+	void encodeInParallel(Memento memento, ForkJoinPool pool) throws IOException {
+		memento=memento.consistentView();
+		writeHeader(memento);
+		writeHead(memento, out);
+		// the number of children encoded ahead of the output, limiting the memory used by the buffers
+		int window=4*pool.getParallelism();
+		Queue<Future<EncodedChild>> pending=new ArrayDeque<>();
+		try {
+			int childrenToWrite=memento.getChildCount();
+			for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext(); childrenToWrite--) {
+				final Memento child=i.next();
+				final long childBlobOffset=blobOffset;
+				if (blobs) blobOffset+=blobLength(child);
+				pending.add(pool.submit(new Callable<EncodedChild>() {
+					@Override
+					public EncodedChild call() throws IOException {
+						EncodedChild encoded=new EncodedChild();
+						BinaryOutput childOut=new BinaryOutput(encoded, 1 << 13);
+						BinaryEncoder encoder=new BinaryEncoder(BinaryEncoder.this, childOut);
+						encoder.blobOffset=childBlobOffset;
+						encoder.write(child);
+						childOut.flush();
+						return encoded;
+					}
+				}));
+				if (pending.size()>=window) writeEncodedChild(pending.remove());
+			}
+			if (childrenToWrite!=0)
+				throw new ConcurrentModificationException("Didn't write as many children as there were");
+			while (!pending.isEmpty())
+				writeEncodedChild(pending.remove());
+			if (streamed) out.writeByte(END_ENTRY);
+			if (blobs) writeBlobRegion(memento);
+		} finally {
+			for (Future<EncodedChild> future: pending)
+				future.cancel(false);
+		}
+	}
+
+	private void writeEncodedChild(Future<EncodedChild> future) throws IOException {
+		EncodedChild encoded;
+		try {
+			encoded=future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while encoding a memento");
+		} catch (ExecutionException e) {
+			Throwable cause=e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IOException(cause);
+		}
+		if (streamed) out.writeByte(CHILD_ENTRY);
+		if (indexed) writeSize(encoded.size(), out);
+		encoded.writeTo(out);
+	}
+
+	/**
+	 * The encoded form of a child memento.
+	 */
+	private static final class EncodedChild extends ByteArrayOutputStream {
+		void writeTo(BinaryOutput out) throws IOException {
+			out.write(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Writes the format header, including the string table if needed.
+	 */
+	private void writeHeader(Memento memento) throws IOException {
+		if (features!=null) {
+			writeHeader();
+			if (features.contains(BinaryFeature.STRING_TABLE)) {
+				strings=new LinkedHashMap<>();
+				collectStrings(memento);
+				writeCount(strings.size(), out);
+				for (String s: strings.keySet())
+					out.writeUTF(s);
+			}
+		}
+	}
+
+	/**
+	 * Writes the marker, the version, and the features of the format.
+	 */
+	void writeHeader() throws IOException {
+		out.writeByte(MARKER);
+		out.writeByte(VERSION);
+		out.writeByte(BinaryFeature.toMask(features));
+	}
+
+	/**
+	 * Writes the blobs of a memento and its descendants in the order in which they are referenced, followed by the
+	 * total length of the blobs. The trailing length allows readers to locate the blob region from the end of a file.
+	 */
+	private void writeBlobRegion(Memento memento) throws IOException {
+		writeBlobs(memento);
+		out.writeLong(blobOffset);
+	}
+
+	private void writeBlobs(Memento memento) throws IOException {
+		try {
+			for (Iterator<String> i=memento.iterateProperties(); i.hasNext();) {
+				String key=i.next();
+				if (memento.getPropertyType(key)==Byte[].class) {
+					ByteBuffer value=memento.getByteBuffer(key);
+					if (value.remaining()>=BLOB_THRESHOLD) out.write(value);
+				}
+			}
+		} catch (MementoFormatException e) {
+			throw new Error(e);
+		}
+		for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext();)
+			writeBlobs(i.next());
+	}
+
+	/**
+	 * Returns the total length of the blobs of a memento and its descendants.
+	 */
+	private static long blobLength(Memento memento) {
+		long length=0;
+		try {
+			for (Iterator<String> i=memento.iterateProperties(); i.hasNext();) {
+				String key=i.next();
+				if (memento.getPropertyType(key)==Byte[].class) {
+					int arrayLength=memento.getByteBuffer(key).remaining();
+					if (arrayLength>=BLOB_THRESHOLD) length+=arrayLength;
+				}
+			}
+		} catch (MementoFormatException e) {
+			throw new Error(e);
+		}
+		for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext();)
+			length+=blobLength(i.next());
+		return length;
+	}
+
+	/**
+	 * Adds the keys and types of a memento and its descendants to the string table.
+	 */
+	private void collectStrings(Memento memento) {
+		if (memento.getType()!=null) addString(memento.getType());
+		for (Iterator<String> i=memento.iterateProperties(); i.hasNext();)
+			addString(i.next());
+		for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext();)
+			collectStrings(i.next());
+	}
+
+	private void addString(String s) {
+		if (!strings.containsKey(s))
+			strings.put(s, strings.size());
+	}
+
+	/**
+	 * Writes a memento with all its descendants.
+	 */
+	private void write(Memento memento) throws IOException {
+		writeHead(memento, out);
+		int childrenToWrite=memento.getChildCount();
+		for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext(); childrenToWrite--) {
+			Memento child=i.next();
+			if (streamed) out.writeByte(CHILD_ENTRY);
+			if (indexed) writeSize(measure(child), out);
+			write(child);
+		}
+		if (childrenToWrite!=0)
+			throw new ConcurrentModificationException("Didn't write as many children as there were");
+		if (streamed) out.writeByte(END_ENTRY);
+		if (indexed) sizes.remove(memento);
+	}
+
+	/**
+	 * Returns the number of bytes {@link #write(Memento)} writes for a memento.
+	 */
+	private long measure(Memento memento) throws IOException {
+		Long size=sizes.get(memento);
+		if (size==null) {
+			if (counter==null) counter=new BinaryOutput();
+			// blob references have a fixed size, but writing them to the counter advances the blob offset
+			long savedBlobOffset=blobOffset;
+			long start=counter.size();
+			writeHead(memento, counter);
+			long total=counter.size()-start;
+			for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext();) {
+				long childSize=measure(i.next());
+				total+=(streamed ? 1 : 0)+(compact ? varLongLength(childSize) : 8)+childSize;
+			}
+			if (streamed) total++;
+			size=total;
+			sizes.put(memento, size);
+			blobOffset=savedBlobOffset;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the type and the properties of a memento, followed by the number of its children unless the format is
+	 * streamed.
+	 */
+	private void writeHead(Memento memento, BinaryOutput dos) throws IOException {
+		writeType(memento.getType(), dos);
+		int propertiesToWrite=memento.getPropertyCount();
+		if (!streamed) writeCount(propertiesToWrite, dos);
+		try {
+			for (Iterator<String> i=memento.iterateProperties(); i.hasNext();propertiesToWrite--) {
+				String key=i.next();
+				if (streamed) dos.writeByte(PROPERTY_ENTRY);
+				writeName(key, dos);
+				Class<?> type=memento.getPropertyType(key);
+				if (type==String.class)
+					writeStringProperty(memento.getString(key), dos);
+				else if (type==Integer.class)
+					writeIntProperty(memento.getInt(key), dos);
+				else if (type==Float.class)
+					writeFloatProperty(memento.getFloat(key), dos);
+				else if (type==Boolean.class)
+					writeBooleanProperty(memento.getBoolean(key), dos);
+				else if (type==Character.class)
+					writeCharProperty(memento.getChar(key), dos);
+				else if (type==String[].class)
+					writeStringArrayProperty(memento.getStringArray(key), dos);
+				else if (type==Integer[].class)
+					writeIntArrayProperty(memento.getIntArray(key), dos);
+				else if (type==Byte[].class)
+					writeByteArrayProperty(memento.getByteBuffer(key), dos);
+				else if (type==Double.class)
+					writeDoubleProperty(memento.getDouble(key), dos);
+				else if (type==Long.class)
+					writeLongProperty(memento.getLong(key), dos);
+				else if (type==Double[].class)
+					writeDoubleArrayProperty(memento.getDoubleArray(key), dos);
+				else
+					throw new IllegalStateException("Unknown type: "+type);
+			}
+		} catch (MementoFormatException e) {
+			throw new Error(e);
+		}
+		if (propertiesToWrite!=0)
+			throw new ConcurrentModificationException("Didn't write as many properties as there were");
+		if (!streamed) writeCount(memento.getChildCount(), dos);
+	}
+
+	/**
+	 * Writes the type of a memento.
+	 */
+	void writeType(String type, BinaryOutput dos) throws IOException {
+		if (type==null)
+			dos.writeBoolean(false);
+		else {
+			dos.writeBoolean(true);
+			writeName(type, dos);
+		}
+	}
+
+	/**
+	 * Writes the type tag and the value of a String property. The methods following this one do the same for the
+	 * other property types.
+	 */
+	void writeStringProperty(String value, BinaryOutput dos) throws IOException {
+		if (isLong(value)) {
+			dos.writeByte(11);
+			writeLongString(value, dos);
+		} else {
+			dos.writeByte(0);
+			dos.writeUTF(value);
+		}
+	}
+
+	void writeIntProperty(int value, BinaryOutput dos) throws IOException {
+		dos.writeByte(1);
+		writeIntValue(value, dos);
+	}
+
+	void writeFloatProperty(float value, BinaryOutput dos) throws IOException {
+		dos.writeByte(2);
+		dos.writeFloat(value);
+	}
+
+	void writeBooleanProperty(boolean value, BinaryOutput dos) throws IOException {
+		dos.writeByte(3);
+		dos.writeBoolean(value);
+	}
+
+	void writeCharProperty(char value, BinaryOutput dos) throws IOException {
+		dos.writeByte(4);
+		dos.writeChar(value);
+	}
+
+	void writeStringArrayProperty(String[] value, BinaryOutput dos) throws IOException {
+		boolean longStrings=false;
+		for (String s:value)
+			if (isLong(s)) {
+				longStrings=true;
+				break;
+			}
+		if (longStrings) {
+			dos.writeByte(12);
+			writeCount(value.length, dos);
+			for (String s:value) writeLongString(s, dos);
+		} else {
+			dos.writeByte(5);
+			writeCount(value.length, dos);
+			for (String s:value) dos.writeUTF(s);
+		}
+	}
+
+	void writeIntArrayProperty(int[] value, BinaryOutput dos) throws IOException {
+		dos.writeByte(6);
+		writeCount(value.length, dos);
+		if (compact) {
+			for (int in:value) writeIntValue(in, dos);
+		} else
+			dos.writeInts(value);
+	}
+
+	void writeByteArrayProperty(byte[] value, BinaryOutput dos) throws IOException {
+		dos.writeByte(7);
+		writeCount(value.length, dos);
+		dos.write(value);
+	}
+
+	/**
+	 * Writes a byte array property from a buffer. If blobs are enabled and the array is large enough, only a
+	 * reference is written, with fixed size fields; the bytes are written later by {@link #writeBlobRegion(Memento)}.
+	 */
+	private void writeByteArrayProperty(ByteBuffer value, BinaryOutput dos) throws IOException {
+		int length=value.remaining();
+		if (blobs && length>=BLOB_THRESHOLD) {
+			dos.writeByte(13);
+			dos.writeLong(blobOffset);
+			dos.writeInt(length);
+			blobOffset+=length;
+		} else {
+			dos.writeByte(7);
+			writeCount(length, dos);
+			dos.write(value);
+		}
+	}
+
+	void writeDoubleProperty(double value, BinaryOutput dos) throws IOException {
+		dos.writeByte(8);
+		dos.writeDouble(value);
+	}
+
+	void writeLongProperty(long value, BinaryOutput dos) throws IOException {
+		dos.writeByte(9);
+		writeLongValue(value, dos);
+	}
+
+	void writeDoubleArrayProperty(double[] value, BinaryOutput dos) throws IOException {
+		dos.writeByte(10);
+		writeCount(value.length, dos);
+		dos.writeDoubles(value);
+	}
+
+	/**
+	 * Writes a key or a type name.
+	 */
+	void writeName(String name, BinaryOutput dos) throws IOException {
+		if (strings==null)
+			dos.writeUTF(name);
+		else {
+			Integer index=strings.get(name);
+			if (index==null) throw new ConcurrentModificationException("Memento modified while writing");
+			writeCount(index, dos);
+		}
+	}
+
+	/**
+	 * Returns whether a string is too long to be written with {@code writeUTF}.
+	 */
+	private static boolean isLong(String s) {
+		return s.length()>65535/3 && BinaryOutput.utfLength(s)>65535;
+	}
+
+	/**
+	 * Writes a string of any length, prefixed by the length of its encoded form.
+	 */
+	private void writeLongString(String s, BinaryOutput dos) throws IOException {
+		writeSize(BinaryOutput.utfLength(s), dos);
+		dos.writeLongUTF(s);
+	}
+
+	/**
+	 * Writes a non-negative integer: a count, a length, or an index.
+	 */
+	private void writeCount(int count, BinaryOutput dos) throws IOException {
+		if (compact)
+			writeVarLong(count, dos);
+		else
+			dos.writeInt(count);
+	}
+
+	/**
+	 * Writes the encoded size of a memento or a long string.
+	 */
+	private void writeSize(long size, BinaryOutput dos) throws IOException {
+		if (compact)
+			writeVarLong(size, dos);
+		else
+			dos.writeLong(size);
+	}
+
+	private void writeIntValue(int value, BinaryOutput dos) throws IOException {
+		if (compact)
+			writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL, dos);
+		else
+			dos.writeInt(value);
+	}
+
+	private void writeLongValue(long value, BinaryOutput dos) throws IOException {
+		if (compact)
+			writeVarLong((value << 1) ^ (value >> 63), dos);
+		else
+			dos.writeLong(value);
+	}
+
+	/**
+	 * Writes a value as an unsigned number in groups of 7 bits, least significant group first. The highest bit of each
+	 * byte is set if more bytes follow.
+	 */
+	private static void writeVarLong(long value, BinaryOutput dos) throws IOException {
+		while ((value & ~0x7FL)!=0) {
+			dos.writeByte((int)(value & 0x7F) | 0x80);
+			value>>>=7;
+		}
+		dos.writeByte((int)value);
+	}
+
+	private static int varLongLength(long value) {
+		int length=1;
+		while ((value & ~0x7FL)!=0) {
+			value>>>=7;
+			length++;
+		}
+		return length;
+	}
+}
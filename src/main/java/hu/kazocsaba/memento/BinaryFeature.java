@@ -0,0 +1,78 @@
+package hu.kazocsaba.memento;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Optional features of the binary memento format. Data written with any combination of features can be read by
+ * {@link MementoStore#binaryToMemento(java.io.InputStream)} and {@link MementoStore#binaryFileToMemento(java.nio.file.Path)},
+ * the features in use are recorded in the header of the data.
+ *
+ * @author Kazó Csaba
+ */
+public enum BinaryFeature {
+	/**
+	 * Records the encoded size of each child memento, so that readers can skip a subtree without decoding it. This
+	 * is required for {@linkplain MementoStore#binaryFileToMementoLazily(java.nio.file.Path) lazy loading}.
+	 * <p>
+	 * The sizes must be known before a child is written, so the writer first measures each memento by encoding its
+	 * type and properties into a counting output that discards the bytes. Writing with this feature therefore encodes
+	 * every property twice, and holds the sizes of the descendants of each child in memory until they are written.
+	 */
+	INDEXED,
+	/**
+	 * Writes each distinct key and type name once, in a table at the start of the data, and refers to it by index
+	 * afterwards. When reading, all occurrences of a key or type share the same {@code String} instance. This
+	 * reduces both the size of the data and the memory used by the loaded mementos if many of them use the
+	 * same keys and types.
+	 */
+	STRING_TABLE,
+	/**
+	 * Writes counts, lengths, and integer values (including the elements of integer arrays) with a variable length
+	 * encoding, using fewer bytes for values of smaller magnitude. This makes the data considerably smaller if most
+	 * of these values are small.
+	 */
+	COMPACT_INTEGERS,
+	/**
+	 * Marks the end of the properties and the children of each memento, instead of writing their numbers in advance.
+	 * This allows writing mementos whose content is not known in advance, and it is always used by
+	 * {@link MementoWriter}. Data written with this feature is always loaded entirely, without lazy loading or
+	 * parallel decoding.
+	 */
+	STREAMED,
+	/**
+	 * Stores byte arrays of at least 64 KB in a region appended after the mementos, which the properties refer to by
+	 * position. When an uncompressed file is read, these arrays are not loaded: they remain in the memory-mapped file,
+	 * and can be accessed as read-only buffers using {@link Memento#getByteBuffer(String)}. Data read from a stream
+	 * or a compressed file is loaded entirely. This feature cannot be used with {@link MementoWriter}, and data
+	 * written with it cannot be read by {@link MementoReader}.
+	 */
+	BLOBS;
+
+	/**
+	 * Returns the bit mask representing a set of features in the binary format.
+	 */
+	static int toMask(Set<BinaryFeature> features) {
+		int mask=0;
+		for (BinaryFeature feature: features)
+			mask|=1 << feature.ordinal();
+		return mask;
+	}
+
+	/**
+	 * Returns the set of features represented by a bit mask.
+	 *
+	 * @throws MementoFormatException if the mask contains an unknown feature
+	 */
+	static Set<BinaryFeature> fromMask(int mask) throws MementoFormatException {
+		Set<BinaryFeature> features=EnumSet.noneOf(BinaryFeature.class);
+		for (BinaryFeature feature: values()) {
+			if ((mask & (1 << feature.ordinal()))!=0) {
+				features.add(feature);
+				mask&=~(1 << feature.ordinal());
+			}
+		}
+		if (mask!=0) throw new MementoFormatException("Unknown binary format features: "+Integer.toHexString(mask));
+		return features;
+	}
+}
@@ -0,0 +1,471 @@
+package hu.kazocsaba.memento;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A {@code DataInput} reading from a byte buffer. The buffer either holds all the data (e.g. when it is a memory
+ * mapped file), or it is refilled from a channel or a stream whenever it runs out.
+ * <p>
+ * A stream is never read past the last byte requested from this object, so that the data following a memento remains
+ * in the stream. This means that the bytes of a stream are transferred in small pieces, except for primitive arrays,
+ * whose length is known in advance.
+ *
+ * @author Kazó Csaba
+ */
+final class BinaryInput implements DataInput {
+	/**
+	 * The number of elements allocated at a time for an array whose length is read from an input of unknown size.
+	 */
+	private static final int ALLOCATION_STEP=1 << 16;
+
+	private final ByteBuffer buffer;
+	private final ReadableByteChannel channel;
+	private final InputStream stream;
+	/**
+	 * The number of bytes read that are no longer in the buffer.
+	 */
+	private long discarded;
+	/**
+	 * The offset of the end of the data, -1 if it is not known, or -2 if it has not been determined yet.
+	 */
+	private long end=-2;
+	/**
+	 * Temporary storage for the bytes of strings.
+	 */
+	private byte[] bytes=new byte[64];
+	/**
+	 * Temporary storage for the characters of strings.
+	 */
+	private char[] chars=new char[64];
+
+	/**
+	 * Creates a new instance reading the remaining bytes of the buffer.
+	 *
+	 * @param buffer the buffer holding the data
+	 */
+	public BinaryInput(ByteBuffer buffer) {
+		this.buffer=buffer;
+		this.channel=null;
+		this.stream=null;
+	}
+
+	/**
+	 * Creates a new instance reading from a channel through a buffer of the specified size.
+	 *
+	 * @param channel the channel to read from
+	 * @param bufferSize the size of the buffer
+	 */
+	public BinaryInput(ReadableByteChannel channel, int bufferSize) {
+		this.buffer=ByteBuffer.allocateDirect(bufferSize);
+		this.buffer.limit(0);
+		this.channel=channel;
+		this.stream=null;
+	}
+
+	/**
+	 * Creates a new instance reading from a stream through a buffer of the specified size.
+	 *
+	 * @param stream the stream to read from
+	 * @param bufferSize the size of the buffer
+	 */
+	public BinaryInput(InputStream stream, int bufferSize) {
+		this.buffer=ByteBuffer.allocate(bufferSize);
+		this.buffer.limit(0);
+		this.channel=null;
+		this.stream=stream;
+	}
+
+	/**
+	 * Returns the current position of the buffer. Only meaningful if the input is not backed by a channel or a stream.
+	 *
+	 * @return the position of the next byte to read
+	 */
+	public int position() {
+		return buffer.position();
+	}
+
+	/**
+	 * Sets the position of the buffer. Only meaningful if the input is not backed by a channel or a stream.
+	 *
+	 * @param position the position of the next byte to read
+	 */
+	public void position(int position) {
+		buffer.position(position);
+	}
+
+	/**
+	 * Returns the number of bytes read from this input so far. For an input reading a buffer, this is the same as the
+	 * position.
+	 *
+	 * @return the number of bytes read
+	 */
+	public long offset() {
+		return discarded+buffer.position();
+	}
+
+	/**
+	 * Returns the number of bytes left in the input. This is only known if the input is a buffer or a seekable channel,
+	 * such as a file.
+	 *
+	 * @return the number of bytes left, or -1 if it is not known
+	 * @throws IOException if an I/O error occurs
+	 */
+	public long remaining() throws IOException {
+		if (end==-2) {
+			if (stream!=null || channel!=null && !(channel instanceof SeekableByteChannel))
+				end=-1;
+			else if (channel==null)
+				end=offset()+buffer.remaining();
+			else {
+				SeekableByteChannel seekable=(SeekableByteChannel)channel;
+				end=offset()+buffer.remaining()+seekable.size()-seekable.position();
+			}
+		}
+		return end==-1 ? -1 : end-offset();
+	}
+
+	/**
+	 * Returns the length to allocate for an array that is read from this input. If the number of bytes left is known,
+	 * the caller must have checked the length against it, and the whole array is allocated at once. Otherwise the
+	 * array is grown as its elements are read, so that a corrupt length runs into the end of the data instead of
+	 * exhausting the memory.
+	 *
+	 * @param length the length of the array
+	 * @param filled the number of elements read so far
+	 * @return the length of the array to allocate
+	 * @throws IOException if an I/O error occurs
+	 */
+	public int allocation(int length, int filled) throws IOException {
+		if (remaining()!=-1) return length;
+		return (int)Math.min(length, Math.max(ALLOCATION_STEP, 2L*filled));
+	}
+
+	/**
+	 * Reads the specified number of bytes into a new array, allocated as described in {@link #allocation(int, int)}.
+	 *
+	 * @param length the number of bytes to read
+	 * @return the bytes read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public byte[] readBytes(int length) throws IOException {
+		byte[] array=new byte[allocation(length, 0)];
+		int filled=0;
+		while (true) {
+			readFully(array, filled, array.length-filled);
+			if (array.length==length) return array;
+			filled=array.length;
+			array=Arrays.copyOf(array, allocation(length, filled));
+		}
+	}
+
+	/**
+	 * Makes sure that at least the specified number of bytes are available in the buffer. The number must not be
+	 * greater than the capacity of the buffer. When reading from a stream, exactly the missing bytes are read.
+	 */
+	private void require(int count) throws IOException {
+		if (buffer.remaining()>=count) return;
+		if (channel==null && stream==null) throw new EOFException();
+		discarded+=buffer.position();
+		buffer.compact();
+		try {
+			if (channel!=null) {
+				while (buffer.position()<count) {
+					if (channel.read(buffer)==-1) throw new EOFException();
+				}
+			} else {
+				while (buffer.position()<count) {
+					int read=stream.read(buffer.array(), buffer.arrayOffset()+buffer.position(), count-buffer.position());
+					if (read==-1) throw new EOFException();
+					buffer.position(buffer.position()+read);
+				}
+			}
+		} finally {
+			buffer.flip();
+		}
+	}
+
+	/**
+	 * Makes sure that at least one byte is available, and as many as possible up to the specified number.
+	 *
+	 * @return the number of bytes available, at most {@code count}
+	 */
+	private int available(int count) throws IOException {
+		count=Math.min(count, buffer.capacity());
+		if (!buffer.hasRemaining()) require(channel!=null ? 1 : count);
+		return Math.min(count, buffer.remaining());
+	}
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		if (stream!=null && buffer.remaining()<len) {
+			// bypass the buffer
+			int chunk=buffer.remaining();
+			buffer.get(b, off, chunk);
+			off+=chunk;
+			len-=chunk;
+			while (len>0) {
+				int read=stream.read(b, off, len);
+				if (read==-1) throw new EOFException();
+				discarded+=read;
+				off+=read;
+				len-=read;
+			}
+			return;
+		}
+		while (len>0) {
+			int chunk=available(len);
+			buffer.get(b, off, chunk);
+			off+=chunk;
+			len-=chunk;
+		}
+	}
+
+	/**
+	 * Reads an array of integers written by {@link BinaryOutput#writeInts(int[])}.
+	 *
+	 * @param array the array to fill
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void readInts(int[] array) throws IOException {
+		readInts(array, 0, array.length);
+	}
+
+	/**
+	 * Reads a part of an array of integers written by {@link BinaryOutput#writeInts(int[])}.
+	 *
+	 * @param array the array to fill
+	 * @param off the index of the first element to read
+	 * @param len the number of elements to read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void readInts(int[] array, int off, int len) throws IOException {
+		int end=off+len;
+		while (off<end) {
+			int count=Math.min(end-off, buffer.capacity()/4);
+			require(4*count);
+			buffer.asIntBuffer().get(array, off, count);
+			buffer.position(buffer.position()+4*count);
+			off+=count;
+		}
+	}
+
+	/**
+	 * Reads an array of doubles written by {@link BinaryOutput#writeDoubles(double[])}.
+	 *
+	 * @param array the array to fill
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void readDoubles(double[] array) throws IOException {
+		readDoubles(array, 0, array.length);
+	}
+
+	/**
+	 * Reads a part of an array of doubles written by {@link BinaryOutput#writeDoubles(double[])}.
+	 *
+	 * @param array the array to fill
+	 * @param off the index of the first element to read
+	 * @param len the number of elements to read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void readDoubles(double[] array, int off, int len) throws IOException {
+		int end=off+len;
+		while (off<end) {
+			int count=Math.min(end-off, buffer.capacity()/8);
+			require(8*count);
+			buffer.asDoubleBuffer().get(array, off, count);
+			buffer.position(buffer.position()+8*count);
+			off+=count;
+		}
+	}
+
+	@Override
+	public int skipBytes(int n) throws IOException {
+		int skipped=0;
+		while (skipped<n) {
+			int chunk;
+			try {
+				chunk=available(n-skipped);
+			} catch (EOFException e) {
+				break;
+			}
+			buffer.position(buffer.position()+chunk);
+			skipped+=chunk;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte()!=0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		require(1);
+		return buffer.get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return buffer.getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		require(2);
+		return buffer.getChar();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return buffer.getLong();
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		require(4);
+		return buffer.getFloat();
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		require(8);
+		return buffer.getDouble();
+	}
+
+	/**
+	 * Reads a line of text in the same way as {@link java.io.DataInputStream#readLine()}: each byte is converted to
+	 * the character with the same value, and the line ends with a line feed, a carriage return, a carriage return
+	 * followed by a line feed, or the end of the input. The binary format does not contain text lines; this method is
+	 * only provided to implement {@code DataInput} completely.
+	 *
+	 * @return the next line without the line terminator, or {@code null} if the end of the input has been reached
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public String readLine() throws IOException {
+		StringBuilder line=new StringBuilder();
+		while (true) {
+			if (!hasMore()) return line.length()==0 ? null : line.toString();
+			int c=buffer.get() & 0xFF;
+			if (c=='\n') return line.toString();
+			if (c=='\r') {
+				if (hasMore() && buffer.get(buffer.position())=='\n') buffer.get();
+				return line.toString();
+			}
+			line.append((char)c);
+		}
+	}
+
+	/**
+	 * Returns whether there is at least one more byte to read, making it available in the buffer.
+	 */
+	private boolean hasMore() throws IOException {
+		if (buffer.hasRemaining()) return true;
+		try {
+			require(1);
+			return true;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public String readUTF() throws IOException {
+		int length=readUnsignedShort();
+		if (bytes.length<length) bytes=new byte[Math.max(length, 2*bytes.length)];
+		readFully(bytes, 0, length);
+		return decode(bytes, length);
+	}
+
+	/**
+	 * Reads a string written by {@link BinaryOutput#writeLongUTF(String)}.
+	 *
+	 * @param length the number of bytes of the encoded string
+	 * @return the string
+	 * @throws IOException if an I/O error occurs
+	 */
+	public String readLongUTF(long length) throws IOException {
+		if (length>Integer.MAX_VALUE-8) throw new UTFDataFormatException("encoded string too long: "+length+" bytes");
+		if (length>bytes.length) return decode(readBytes((int)length), (int)length);
+		readFully(bytes, 0, (int)length);
+		return decode(bytes, (int)length);
+	}
+
+	/**
+	 * Decodes the first {@code length} bytes of an array as modified UTF-8.
+	 */
+	private String decode(byte[] encoded, int length) throws UTFDataFormatException {
+		boolean ascii=true;
+		for (int i=0; i<length; i++)
+			if (encoded[i]<0) {
+				ascii=false;
+				break;
+			}
+		if (ascii) return new String(encoded, 0, length, StandardCharsets.ISO_8859_1);
+		if (length>this.chars.length && length<=65535) this.chars=new char[Math.max(length, 2*this.chars.length)];
+		char[] chars=length<=this.chars.length ? this.chars : new char[length];
+		int count=0;
+		int i=0;
+		while (i<length) {
+			int b=encoded[i] & 0xFF;
+			switch (b >> 4) {
+				case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+					chars[count++]=(char)b;
+					i++;
+					break;
+				case 12: case 13:
+					if (i+2>length) throw new UTFDataFormatException("malformed input: partial character at end");
+					int b2=encoded[i+1];
+					if ((b2 & 0xC0)!=0x80) throw new UTFDataFormatException("malformed input around byte "+(i+1));
+					chars[count++]=(char)(((b & 0x1F) << 6) | (b2 & 0x3F));
+					i+=2;
+					break;
+				case 14:
+					if (i+3>length) throw new UTFDataFormatException("malformed input: partial character at end");
+					int c2=encoded[i+1];
+					int c3=encoded[i+2];
+					if ((c2 & 0xC0)!=0x80 || (c3 & 0xC0)!=0x80)
+						throw new UTFDataFormatException("malformed input around byte "+(i+1));
+					chars[count++]=(char)(((b & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+					i+=3;
+					break;
+				default:
+					throw new UTFDataFormatException("malformed input around byte "+i);
+			}
+		}
+		return new String(chars, 0, count);
+	}
+}
@@ -0,0 +1,327 @@
+package hu.kazocsaba.memento;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@code DataOutput} collecting the data in a byte buffer, and writing it to a channel or a stream whenever the
+ * buffer is full. The produced bytes are the same as those of a {@code DataOutputStream}. Without a channel or a
+ * stream the data is discarded, and the instance only counts the bytes written to it.
+ *
+ * @author Kazó Csaba
+ */
+final class BinaryOutput implements DataOutput {
+	private final ByteBuffer buffer;
+	private final WritableByteChannel channel;
+	private final OutputStream stream;
+	private long drained;
+	/**
+	 * Temporary storage for the encoded bytes of strings.
+	 */
+	private byte[] bytes=new byte[64];
+
+	/**
+	 * Creates a new instance that discards the data and only counts the number of bytes.
+	 */
+	public BinaryOutput() {
+		this.buffer=ByteBuffer.allocate(1 << 12);
+		this.channel=null;
+		this.stream=null;
+	}
+
+	/**
+	 * Creates a new instance writing to a channel through a buffer of the specified size.
+	 *
+	 * @param channel the channel to write to
+	 * @param bufferSize the size of the buffer
+	 */
+	public BinaryOutput(WritableByteChannel channel, int bufferSize) {
+		this.buffer=ByteBuffer.allocateDirect(bufferSize);
+		this.channel=channel;
+		this.stream=null;
+	}
+
+	/**
+	 * Creates a new instance writing to a stream through a buffer of the specified size.
+	 *
+	 * @param stream the stream to write to
+	 * @param bufferSize the size of the buffer
+	 */
+	public BinaryOutput(OutputStream stream, int bufferSize) {
+		this.buffer=ByteBuffer.allocate(bufferSize);
+		this.channel=null;
+		this.stream=stream;
+	}
+
+	/**
+	 * Makes sure that at least the specified number of bytes can be put into the buffer. The number must not be
+	 * greater than the capacity of the buffer.
+	 */
+	private void require(int count) throws IOException {
+		if (buffer.remaining()<count) drain();
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		drained+=buffer.remaining();
+		if (channel!=null) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} else if (stream!=null)
+			stream.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+		buffer.clear();
+	}
+
+	/**
+	 * Returns the number of bytes written to this output so far.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long size() {
+		return drained+buffer.position();
+	}
+
+	/**
+	 * Writes all buffered data to the channel or stream. The stream itself is not flushed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		drain();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		require(1);
+		buffer.put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len>0) {
+			if (!buffer.hasRemaining()) drain();
+			int chunk=Math.min(len, buffer.remaining());
+			buffer.put(b, off, chunk);
+			off+=chunk;
+			len-=chunk;
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, advancing its position to the limit. Large buffers are written to the
+	 * channel directly, without copying them.
+	 *
+	 * @param src the buffer to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		if (channel!=null && src.remaining()>=buffer.capacity()) {
+			drain();
+			drained+=src.remaining();
+			while (src.hasRemaining())
+				channel.write(src);
+			return;
+		}
+		while (src.hasRemaining()) {
+			if (!buffer.hasRemaining()) drain();
+			int chunk=Math.min(src.remaining(), buffer.remaining());
+			ByteBuffer part=src.duplicate();
+			part.limit(part.position()+chunk);
+			buffer.put(part);
+			src.position(part.position());
+		}
+	}
+
+	/**
+	 * Writes the elements of an integer array. The result is the same as writing each of them using
+	 * {@link #writeInt(int)}.
+	 *
+	 * @param array the array to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeInts(int[] array) throws IOException {
+		int off=0;
+		while (off<array.length) {
+			if (buffer.remaining()<4) drain();
+			int count=Math.min(array.length-off, buffer.remaining()/4);
+			buffer.asIntBuffer().put(array, off, count);
+			buffer.position(buffer.position()+4*count);
+			off+=count;
+		}
+	}
+
+	/**
+	 * Writes the elements of a double array. The result is the same as writing each of them using
+	 * {@link #writeDouble(double)}.
+	 *
+	 * @param array the array to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeDoubles(double[] array) throws IOException {
+		int off=0;
+		while (off<array.length) {
+			if (buffer.remaining()<8) drain();
+			int count=Math.min(array.length-off, buffer.remaining()/8);
+			buffer.asDoubleBuffer().put(array, off, count);
+			buffer.position(buffer.position()+8*count);
+			off+=count;
+		}
+	}
+
+	@Override
+	public void writeBoolean(boolean v) throws IOException {
+		write(v ? 1 : 0);
+	}
+
+	@Override
+	public void writeByte(int v) throws IOException {
+		write(v);
+	}
+
+	@Override
+	public void writeShort(int v) throws IOException {
+		require(2);
+		buffer.putShort((short)v);
+	}
+
+	@Override
+	public void writeChar(int v) throws IOException {
+		require(2);
+		buffer.putChar((char)v);
+	}
+
+	@Override
+	public void writeInt(int v) throws IOException {
+		require(4);
+		buffer.putInt(v);
+	}
+
+	@Override
+	public void writeLong(long v) throws IOException {
+		require(8);
+		buffer.putLong(v);
+	}
+
+	@Override
+	public void writeFloat(float v) throws IOException {
+		require(4);
+		buffer.putFloat(v);
+	}
+
+	@Override
+	public void writeDouble(double v) throws IOException {
+		require(8);
+		buffer.putDouble(v);
+	}
+
+	@Override
+	public void writeBytes(String s) throws IOException {
+		for (int i=0; i<s.length(); i++)
+			write(s.charAt(i));
+	}
+
+	@Override
+	public void writeChars(String s) throws IOException {
+		for (int i=0; i<s.length(); i++)
+			writeChar(s.charAt(i));
+	}
+
+	@Override
+	public void writeUTF(String s) throws IOException {
+		int chars=s.length();
+		if (bytes.length<chars) bytes=new byte[Math.max(chars, 2*bytes.length)];
+		// fast path for the leading ASCII characters, which are encoded as single bytes
+		int length=0;
+		while (length<chars) {
+			char c=s.charAt(length);
+			if (c<0x0001 || c>0x007F) break;
+			bytes[length++]=(byte)c;
+		}
+		if (length<chars) length=encodeModifiedUTF8(s, length);
+		if (length>65535) throw new UTFDataFormatException("encoded string too long: "+length+" bytes");
+		writeShort(length);
+		write(bytes, 0, length);
+	}
+
+	/**
+	 * Returns the number of bytes {@link #writeLongUTF(String)} writes for a string.
+	 *
+	 * @param s a string
+	 * @return the length of the encoded string
+	 */
+	public static long utfLength(String s) {
+		long length=s.length();
+		for (int i=0; i<s.length(); i++) {
+			char c=s.charAt(i);
+			if (c<0x0001 || c>0x007F)
+				length+=c>0x07FF ? 2 : 1;
+		}
+		return length;
+	}
+
+	/**
+	 * Writes a string in modified UTF-8 encoding without a length prefix. Unlike {@link #writeUTF(String)}, this
+	 * method has no limit on the length of the string. The string is encoded into the buffer in chunks.
+	 *
+	 * @param s the string to write
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void writeLongUTF(String s) throws IOException {
+		int i=0;
+		while (i<s.length()) {
+			if (buffer.remaining()<3) drain();
+			int end=Math.min(s.length(), i+buffer.remaining()/3);
+			for (; i<end; i++) {
+				char c=s.charAt(i);
+				if (c>=0x0001 && c<=0x007F)
+					buffer.put((byte)c);
+				else if (c>0x07FF) {
+					buffer.put((byte)(0xE0 | ((c >> 12) & 0x0F)));
+					buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+					buffer.put((byte)(0x80 | (c & 0x3F)));
+				} else {
+					buffer.put((byte)(0xC0 | ((c >> 6) & 0x1F)));
+					buffer.put((byte)(0x80 | (c & 0x3F)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes a string into the byte array as modified UTF-8, assuming that the first {@code start} characters are
+	 * already encoded as single bytes.
+	 *
+	 * @return the number of encoded bytes
+	 */
+	private int encodeModifiedUTF8(String s, int start) {
+		if (bytes.length<3*s.length()) {
+			byte[] newBytes=new byte[3*s.length()];
+			System.arraycopy(bytes, 0, newBytes, 0, start);
+			bytes=newBytes;
+		}
+		int length=start;
+		for (int i=start; i<s.length(); i++) {
+			char c=s.charAt(i);
+			if (c>=0x0001 && c<=0x007F)
+				bytes[length++]=(byte)c;
+			else if (c>0x07FF) {
+				bytes[length++]=(byte)(0xE0 | ((c >> 12) & 0x0F));
+				bytes[length++]=(byte)(0x80 | ((c >> 6) & 0x3F));
+				bytes[length++]=(byte)(0x80 | (c & 0x3F));
+			} else {
+				bytes[length++]=(byte)(0xC0 | ((c >> 6) & 0x1F));
+				bytes[length++]=(byte)(0x80 | (c & 0x3F));
+			}
+		}
+		return length;
+	}
+}
@@ -1,14 +1,20 @@
 package hu.kazocsaba.memento;
 
-import java.util.AbstractList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
- * A wrapper around an array of bytes to properly implement equals and hashcode.
+ * A wrapper around an array of bytes to properly implement equals and hashcode. The bytes are either stored in an
+ * array, or, for blobs loaded from a file, in a read-only buffer that is only copied into an array on request.
  * @author Kazó Csaba
  */
 class ByteArray {
-	private byte[] array;
+	private volatile byte[] array;
+	/**
+	 * The buffer holding the bytes, or {@code null} if they are in the array. Once the array has been created, it
+	 * holds the bytes, as it is returned by reference and may be modified.
+	 */
+	private volatile ByteBuffer buffer;
 	/**
 	 * Creates a new instance backed by the specified array.
 	 * @param array the integer array to wrap
@@ -18,14 +24,92 @@ class ByteArray {
 		if (array==null) throw new NullPointerException();
 		this.array=array;
 	}
+	/**
+	 * Creates a new instance backed by the remaining bytes of the specified buffer.
+	 * @param buffer the buffer holding the bytes; it must not be modified afterwards
+	 * @throws NullPointerException if <code>buffer</code> is <code>null</code>
+	 */
+	public ByteArray(ByteBuffer buffer) {
+		if (buffer==null) throw new NullPointerException();
+		this.buffer=buffer.slice().asReadOnlyBuffer();
+	}
+	/**
+	 * Creates a new instance without content. One of the setters must be called before the instance is used.
+	 */
+	ByteArray() {}
+	void setArray(byte[] array) {
+		this.array=array;
+	}
+	void setBuffer(ByteBuffer buffer) {
+		this.buffer=buffer.slice().asReadOnlyBuffer();
+	}
 	@Override
 	public boolean equals(Object obj) {
-		return obj instanceof ByteArray && Arrays.equals(((ByteArray) obj).array,array);
+		if (!(obj instanceof ByteArray)) return false;
+		ByteArray other=(ByteArray)obj;
+		if (buffer==null && other.buffer==null) return Arrays.equals(other.array,array);
+		return other.getBuffer().equals(getBuffer());
 	}
 	@Override
 	public int hashCode() {
-		return Arrays.hashCode(array);
+		ByteBuffer buffer=this.buffer;
+		if (buffer==null) return Arrays.hashCode(array);
+		// same as Arrays.hashCode
+		int hash=1;
+		for (int i=0, length=buffer.limit(); i<length; i++)
+			hash=31*hash+buffer.get(i);
+		return hash;
+	}
+	/**
+	 * Returns the 64-bit digest of the bytes.
+	 */
+	long digest() {
+		ByteBuffer buffer=this.buffer;
+		long state=Digest.START;
+		int length;
+		if (buffer==null) {
+			byte[] array=this.array;
+			for (byte element: array) state=Digest.step(state, element);
+			length=array.length;
+		} else {
+			length=buffer.limit();
+			for (int i=0; i<length; i++) state=Digest.step(state, buffer.get(i));
+		}
+		return Digest.mix(Digest.step(state, length));
+	}
+	/**
+	 * Returns the number of bytes.
+	 */
+	public int length() {
+		ByteBuffer buffer=this.buffer;
+		return buffer!=null ? buffer.limit() : array.length;
+	}
+	/**
+	 * Returns the bytes as an array, copying them from the buffer on the first call if needed. From then on the array
+	 * holds the bytes, so modifications of the array are not lost.
+	 */
+	public synchronized byte[] getArray() {
+		if (array==null) {
+			byte[] copy=new byte[buffer.limit()];
+			buffer.duplicate().get(copy);
+			array=copy;
+			buffer=null;
+		}
+		return array;
+	}
+	/**
+	 * Returns an instance holding the same bytes that can be modified independently of this one. A read-only buffer
+	 * is shared, the array is copied.
+	 */
+	synchronized ByteArray copy() {
+		return array!=null ? new ByteArray(array.clone()) : new ByteArray(buffer);
+	}
+	/**
+	 * Returns a new read-only buffer holding the bytes, positioned at the first byte.
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer buffer=this.buffer;
+		return buffer!=null ? buffer.duplicate() : ByteBuffer.wrap(array).asReadOnlyBuffer();
 	}
-	public byte[] getArray() {return array;}
 
 }
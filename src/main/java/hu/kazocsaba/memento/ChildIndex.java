@@ -0,0 +1,111 @@
+package hu.kazocsaba.memento;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The positions of the children of a memento, grouped by type. The index is built when the children are looked up by
+ * type repeatedly, and is then kept up to date as children are appended. It takes a hash table and an array for each
+ * type, so the first lookup only {@linkplain #scan(List, String) scans} the children, and mementos whose children are
+ * looked up only once do not keep an index.
+ * <p>
+ * The index has a single writer at a time, which appends the child to the list of children before adding its position
+ * to the index. Readers do not lock: the positions are published by writing the array and then the volatile size, so a
+ * reader sees every child whose position it has read.
+ *
+ * @author Kazó Csaba
+ */
+final class ChildIndex {
+	private final ConcurrentHashMap<String,Positions> typed=new ConcurrentHashMap<>();
+	/**
+	 * The positions of the children without type, or {@code null} if there are none.
+	 */
+	private volatile Positions untyped;
+
+	/**
+	 * Creates the index of a list of children.
+	 */
+	ChildIndex(List<Memento> children) {
+		for (int i=0, size=children.size(); i<size; i++)
+			add(children.get(i).getType(), i);
+	}
+
+	/**
+	 * Returns the positions of the children with a type by examining every child, without building an index.
+	 *
+	 * @param children the children
+	 * @param type the type; can be {@code null}
+	 * @return the positions in increasing order, or {@code null} if there is no child with the type
+	 */
+	static Positions scan(List<Memento> children, String type) {
+		Positions positions=null;
+		for (int i=0, size=children.size(); i<size; i++) {
+			if (Objects.equals(type, children.get(i).getType())) {
+				if (positions==null) positions=new Positions();
+				positions.add(i);
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * Returns the positions of the children with a type.
+	 *
+	 * @param type the type; can be {@code null}
+	 * @return the positions in increasing order, or {@code null} if there is no child with the type
+	 */
+	Positions positions(String type) {
+		return type==null ? untyped : typed.get(type);
+	}
+
+	/**
+	 * Records a child appended to the list of children.
+	 *
+	 * @param type the type of the child; can be {@code null}
+	 * @param position the position of the child in the list of children
+	 */
+	void add(String type, int position) {
+		Positions positions=positions(type);
+		if (positions!=null) {
+			positions.add(position);
+			return;
+		}
+		// publish the positions only after the first position has been added
+		positions=new Positions();
+		positions.add(position);
+		if (type==null)
+			untyped=positions;
+		else
+			typed.put(type, positions);
+	}
+
+	/**
+	 * The increasing positions of the children with the same type.
+	 */
+	static final class Positions {
+		private volatile int[] array=new int[4];
+		private volatile int size;
+
+		int size() {
+			return size;
+		}
+
+		int get(int index) {
+			int currentSize=size;
+			if (index<0 || index>=currentSize) throw new IndexOutOfBoundsException("Index: "+index+", size: "+currentSize);
+			return array[index];
+		}
+
+		private void add(int position) {
+			int[] current=array;
+			if (size==current.length) {
+				current=Arrays.copyOf(current, 2*size);
+				array=current;
+			}
+			current[size]=position;
+			size++;
+		}
+	}
+}
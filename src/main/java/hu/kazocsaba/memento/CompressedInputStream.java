@@ -0,0 +1,177 @@
+package hu.kazocsaba.memento;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An input stream reading data written by {@link CompressedOutputStream}. The blocks are decompressed one at a time.
+ * Corrupt blocks are reported by a {@code ZipException}.
+ *
+ * @author Kazó Csaba
+ */
+final class CompressedInputStream extends InputStream {
+	/**
+	 * The largest block size accepted, to avoid allocating huge buffers for corrupt headers.
+	 */
+	private static final int MAX_BLOCK_SIZE=1 << 26;
+
+	private final DataInputStream in;
+	private final Compression compression;
+	private final byte[] block;
+	private final byte[] compressed;
+	private int position;
+	private int length;
+	private boolean finished;
+	private Inflater inflater;
+	private boolean closed;
+
+	/**
+	 * Creates a new stream decompressing the data of another stream, and reads the header.
+	 *
+	 * @param in the stream to read from
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the stream does not contain compressed data in a known format
+	 */
+	public CompressedInputStream(InputStream in) throws IOException, MementoFormatException {
+		this.in=new DataInputStream(Objects.requireNonNull(in, "null stream"));
+		byte[] magic=new byte[CompressedOutputStream.MAGIC.length];
+		this.in.readFully(magic);
+		if (!Arrays.equals(magic, CompressedOutputStream.MAGIC))
+			throw new MementoFormatException("Not compressed data");
+		int version=this.in.readUnsignedByte();
+		if (version!=CompressedOutputStream.VERSION)
+			throw new MementoFormatException("Unsupported compressed format version: "+version);
+		int method=this.in.readUnsignedByte();
+		if (method>=Compression.values().length)
+			throw new MementoFormatException("Unknown compression method: "+method);
+		compression=Compression.values()[method];
+		int blockSize=this.in.readInt();
+		if (blockSize<=0 || blockSize>MAX_BLOCK_SIZE)
+			throw new MementoFormatException("Invalid block size: "+blockSize);
+		block=new byte[blockSize];
+		compressed=new byte[blockSize];
+		if (compression==Compression.DEFLATE) inflater=new Inflater();
+	}
+
+	/**
+	 * Checks whether a file contains compressed data. The position of the channel is not changed.
+	 *
+	 * @param channel the channel of the file
+	 * @return {@code true} if the file starts with the header of compressed data
+	 * @throws IOException if an I/O error occurs
+	 */
+	static boolean isCompressed(FileChannel channel) throws IOException {
+		ByteBuffer magic=ByteBuffer.allocate(CompressedOutputStream.MAGIC.length);
+		while (magic.hasRemaining()) {
+			if (channel.read(magic, magic.position())==-1) return false;
+		}
+		return Arrays.equals(magic.array(), CompressedOutputStream.MAGIC);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) throw new IOException("Stream closed");
+	}
+
+	/**
+	 * Makes sure that the current block has unread bytes, unless the end of the data has been reached.
+	 *
+	 * @return {@code false} if the end of the data has been reached
+	 */
+	private boolean fill() throws IOException {
+		while (position==length) {
+			if (finished) return false;
+			readBlock();
+		}
+		return true;
+	}
+
+	private void readBlock() throws IOException {
+		int blockLength=in.readInt();
+		if (blockLength==0) {
+			finished=true;
+			return;
+		}
+		if (blockLength<0 || blockLength>block.length) throw new ZipException("Invalid block length: "+blockLength);
+		int compressedLength=in.readInt();
+		if (compressedLength<=0 || compressedLength>blockLength)
+			throw new ZipException("Invalid compressed block length: "+compressedLength);
+		if (compressedLength==blockLength) {
+			in.readFully(block, 0, blockLength);
+		} else {
+			in.readFully(compressed, 0, compressedLength);
+			decompress(compressedLength, blockLength);
+		}
+		position=0;
+		length=blockLength;
+	}
+
+	private void decompress(int compressedLength, int blockLength) throws ZipException {
+		switch (compression) {
+			case DEFLATE:
+				inflater.reset();
+				inflater.setInput(compressed, 0, compressedLength);
+				try {
+					int inflated=0;
+					while (inflated<blockLength && !inflater.finished()) {
+						int count=inflater.inflate(block, inflated, blockLength-inflated);
+						if (count==0 && (inflater.needsInput() || inflater.needsDictionary()))
+							throw new ZipException("Truncated compressed block");
+						inflated+=count;
+					}
+					if (inflated!=blockLength || !inflater.finished() || inflater.getRemaining()!=0)
+						throw new ZipException("Compressed block length mismatch");
+				} catch (DataFormatException e) {
+					ZipException zipException=new ZipException("Corrupt compressed block");
+					zipException.initCause(e);
+					throw zipException;
+				}
+				break;
+			case LZ:
+				LzCodec.decompress(compressed, compressedLength, block, blockLength);
+				break;
+			default:
+				throw new AssertionError(compression);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		ensureOpen();
+		if (!fill()) return -1;
+		return block[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off<0 || len<0 || off+len>b.length) throw new IndexOutOfBoundsException();
+		if (len==0) return 0;
+		if (!fill()) return -1;
+		int chunk=Math.min(len, length-position);
+		System.arraycopy(block, position, b, off, chunk);
+		position+=chunk;
+		return chunk;
+	}
+
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return length-position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed=true;
+		if (inflater!=null) inflater.end();
+		in.close();
+	}
+}
@@ -0,0 +1,168 @@
+package hu.kazocsaba.memento;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream writing the compressed container format. The data is collected in blocks of a fixed size, and each
+ * block is compressed and written separately. Blocks that cannot be compressed are stored as they are.
+ * <p>
+ * The format starts with the {@linkplain #MAGIC magic bytes}, the version of the format, the compression method, and
+ * the block size as an int. Each block is written as its uncompressed length and its compressed length as ints,
+ * followed by the compressed bytes; a block whose compressed length equals its uncompressed length is stored
+ * uncompressed. The data is terminated by a block of length zero.
+ *
+ * @author Kazó Csaba
+ */
+final class CompressedOutputStream extends OutputStream {
+	/**
+	 * The bytes at the start of compressed data. The first byte can be neither the start of a binary memento nor
+	 * that of an XML document.
+	 */
+	static final byte[] MAGIC={(byte)0x89, 'M', 'Z'};
+	/**
+	 * The version of the format written after the magic bytes.
+	 */
+	static final byte VERSION=1;
+	/**
+	 * The size of the blocks written by default. This is also the largest distance of matches in the LZ
+	 * compression, so larger blocks would not improve its ratio.
+	 */
+	static final int DEFAULT_BLOCK_SIZE=1 << 16;
+
+	private final DataOutputStream out;
+	private final Compression compression;
+	private final byte[] block;
+	private final byte[] compressed;
+	private int length;
+	private Deflater deflater;
+	private LzCodec lz;
+	private boolean closed;
+
+	/**
+	 * Creates a new stream writing compressed data to another stream, and writes the header.
+	 *
+	 * @param out the stream to write to
+	 * @param compression the compression method
+	 * @throws IOException if an I/O error occurs
+	 */
+	public CompressedOutputStream(OutputStream out, Compression compression) throws IOException {
+		this.out=new DataOutputStream(Objects.requireNonNull(out, "null stream"));
+		this.compression=Objects.requireNonNull(compression, "null compression");
+		block=new byte[DEFAULT_BLOCK_SIZE];
+		compressed=new byte[DEFAULT_BLOCK_SIZE];
+		switch (compression) {
+			case DEFLATE:
+				deflater=new Deflater();
+				break;
+			case LZ:
+				lz=new LzCodec();
+				break;
+			default:
+				throw new AssertionError(compression);
+		}
+		this.out.write(MAGIC);
+		this.out.writeByte(VERSION);
+		this.out.writeByte(compression.ordinal());
+		this.out.writeInt(DEFAULT_BLOCK_SIZE);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) throw new IOException("Stream closed");
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (length==block.length) writeBlock();
+		block[length++]=(byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (off<0 || len<0 || off+len>b.length) throw new IndexOutOfBoundsException();
+		while (len>0) {
+			if (length==block.length) writeBlock();
+			int chunk=Math.min(len, block.length-length);
+			System.arraycopy(b, off, block, length, chunk);
+			length+=chunk;
+			off+=chunk;
+			len-=chunk;
+		}
+	}
+
+	/**
+	 * Compresses and writes the buffered block.
+	 */
+	private void writeBlock() throws IOException {
+		if (length==0) return;
+		int compressedLength=compress();
+		out.writeInt(length);
+		if (compressedLength<0) {
+			out.writeInt(length);
+			out.write(block, 0, length);
+		} else {
+			out.writeInt(compressedLength);
+			out.write(compressed, 0, compressedLength);
+		}
+		length=0;
+	}
+
+	/**
+	 * Compresses the buffered block.
+	 *
+	 * @return the compressed length, or -1 if the block cannot be compressed into fewer bytes
+	 */
+	private int compress() {
+		switch (compression) {
+			case DEFLATE:
+				deflater.reset();
+				deflater.setInput(block, 0, length);
+				deflater.finish();
+				int compressedLength=0;
+				while (!deflater.finished() && compressedLength<length)
+					compressedLength+=deflater.deflate(compressed, compressedLength, length-compressedLength);
+				return deflater.finished() && compressedLength<length ? compressedLength : -1;
+			case LZ:
+				return lz.compress(block, length, compressed, length-1);
+			default:
+				throw new AssertionError(compression);
+		}
+	}
+
+	/**
+	 * Writes the buffered block and flushes the underlying stream. Note that flushing often reduces the
+	 * compression ratio.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		writeBlock();
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered block and the end of the data, and closes the underlying stream.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed=true;
+		try {
+			writeBlock();
+			out.writeInt(0);
+			out.flush();
+		} finally {
+			if (deflater!=null) deflater.end();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package hu.kazocsaba.memento;
+
+/**
+ * Compression methods for memento files. A compressed file consists of a short header followed by independently
+ * compressed blocks, so that it can be written and read as a stream without holding the whole compressed data in
+ * memory. {@link MementoStore#binaryFileToMemento(java.nio.file.Path)} and
+ * {@link MementoStore#xmlFileToMemento(java.nio.file.Path)} recognize compressed files automatically.
+ *
+ * @author Kazó Csaba
+ */
+public enum Compression {
+	/**
+	 * Compresses the blocks with the Deflate algorithm of {@link java.util.zip.Deflater}. This gives the best
+	 * compression ratio.
+	 */
+	DEFLATE,
+	/**
+	 * Compresses the blocks with a simple LZ77 algorithm. This compresses less than {@link #DEFLATE}, but it is
+	 * considerably faster, especially when reading.
+	 */
+	LZ
+}
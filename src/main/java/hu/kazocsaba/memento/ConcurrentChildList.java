@@ -0,0 +1,102 @@
+package hu.kazocsaba.memento;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * The list of the children of a {@link ConcurrentMemento}. Appending is amortized constant time, and reading never
+ * blocks: the elements are published by writing the array and then the volatile size, and a reader reading the size
+ * first sees an array holding at least that many elements. Modifications are serialized by the monitor of the list.
+ * <p>
+ * Iterators are weakly consistent: they return the children present when they were created, and they may or may not
+ * return the children appended later. They never throw {@code ConcurrentModificationException}. Children cannot be
+ * removed.
+ *
+ * @author Kazó Csaba
+ */
+final class ConcurrentChildList extends AbstractList<Memento> {
+	private volatile Memento[] array=new Memento[0];
+	private volatile int size;
+
+	@Override
+	public Memento get(int index) {
+		int currentSize=size;
+		if (index<0 || index>=currentSize) throw new IndexOutOfBoundsException("Index: "+index+", size: "+currentSize);
+		return array[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized boolean add(Memento child) {
+		Objects.requireNonNull(child, "null child");
+		Memento[] current=array;
+		if (size==current.length) {
+			current=Arrays.copyOf(current, Math.max(4, 2*size));
+			array=current;
+		}
+		current[size]=child;
+		size++;
+		return true;
+	}
+
+	@Override
+	public synchronized Memento set(int index, Memento child) {
+		Objects.requireNonNull(child, "null child");
+		if (index<0 || index>=size) throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+		// replace the array, so that the new element is published by the volatile write
+		Memento[] current=array.clone();
+		Memento old=current[index];
+		current[index]=child;
+		array=current;
+		return old;
+	}
+
+	@Override
+	public Object[] toArray() {
+		int currentSize=size;
+		return Arrays.copyOf(array, currentSize, Object[].class);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T[] toArray(T[] a) {
+		int currentSize=size;
+		Memento[] current=array;
+		if (a.length<currentSize) return (T[])Arrays.copyOf(current, currentSize, a.getClass());
+		System.arraycopy(current, 0, a, 0, currentSize);
+		if (a.length>currentSize) a[currentSize]=null;
+		return a;
+	}
+
+	@Override
+	public Iterator<Memento> iterator() {
+		final int currentSize=size;
+		final Memento[] current=array;
+		return new Iterator<Memento>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next<currentSize;
+			}
+
+			@Override
+			public Memento next() {
+				if (next>=currentSize) throw new NoSuchElementException();
+				return current[next++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
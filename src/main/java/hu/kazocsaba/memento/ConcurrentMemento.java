@@ -0,0 +1,218 @@
+package hu.kazocsaba.memento;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A memento that can be read and modified by multiple threads concurrently. The children created by
+ * {@link #createChild(String)} are also concurrent mementos.
+ * <p>
+ * The properties are kept in an immutable table that is replaced on every modification: reading a property is a
+ * single volatile read followed by a lookup in the table, without locking. A modification copies the table and
+ * installs the copy with a compare-and-set, retrying if another thread modified the same memento in the meantime.
+ * Thus writers only contend with writers of the same memento, and never block readers. As the whole table is copied,
+ * this class suits mementos with a moderate number of properties that are read much more often than they are written.
+ * <p>
+ * The children are appended under the lock of the memento, and read without locking. The arrays returned by the
+ * getters must not be modified: they are shared with the snapshots, and other threads may be reading them. To change
+ * an array property, put a new array.
+ * <p>
+ * The iterators returned by {@link #iterateProperties()} and {@link #iterateChildren()} are weakly consistent: they
+ * reflect the state of the memento when they were created, and never throw
+ * {@link java.util.ConcurrentModificationException}. The iterator of the properties supports removal.
+ * <p>
+ * The methods of {@link MementoStore} save a snapshot created by {@link #freeze()}, so each memento is written with a
+ * consistent set of properties, even if it is being modified.
+ *
+ * @author Kazó Csaba
+ */
+public class ConcurrentMemento extends Memento {
+	private static final AtomicReferenceFieldUpdater<ConcurrentMemento,PropertyTable> TABLE=
+			AtomicReferenceFieldUpdater.newUpdater(ConcurrentMemento.class, PropertyTable.class, "table");
+
+	/**
+	 * The current properties; never modified after it has been stored in this field.
+	 */
+	private volatile PropertyTable table=new PropertyTable();
+
+	/**
+	 * Creates a new empty memento instance.
+	 */
+	public ConcurrentMemento() {
+		this(null);
+	}
+
+	/**
+	 * Creates a new empty memento instance.
+	 *
+	 * @param type the type of the memento; can be {@code null}
+	 */
+	public ConcurrentMemento(String type) {
+		super(type, new ConcurrentChildList());
+	}
+
+	@Override
+	PropertyTable properties() {
+		return table;
+	}
+
+	@Override
+	PropertyTable shareProperties() {
+		return table;
+	}
+
+	/*
+	 * The tables are shared with the snapshots, so the arrays returned by the getters must not be modified.
+	 */
+	@Override
+	PropertyTable arrayProperties() {
+		return table;
+	}
+
+	@Override
+	void storeBits(String key, byte tag, long value) {
+		PropertyTable current, updated;
+		do {
+			current=table;
+			updated=current.copy();
+			updated.putBits(key, tag, value);
+		} while (!TABLE.compareAndSet(this, current, updated));
+	}
+
+	@Override
+	void storeRef(String key, byte tag, Object value) {
+		PropertyTable current, updated;
+		do {
+			current=table;
+			updated=current.copy();
+			updated.putRef(key, tag, value);
+		} while (!TABLE.compareAndSet(this, current, updated));
+	}
+
+	@Override
+	void storeAll(PropertyTable properties) {
+		PropertyTable current, updated;
+		do {
+			current=table;
+			updated=current.copy();
+			updated.putAll(properties);
+		} while (!TABLE.compareAndSet(this, current, updated));
+	}
+
+	@Override
+	boolean deleteProperty(String key) {
+		PropertyTable current, updated;
+		do {
+			current=table;
+			if (current.find(key)==-1) return false;
+			updated=current.copy();
+			updated.remove(key);
+		} while (!TABLE.compareAndSet(this, current, updated));
+		return true;
+	}
+
+	/*
+	 * Appending a child and recording it in the index is atomic, so that the index lists the positions of each type
+	 * in order. Readers of the index do not lock.
+	 */
+	@Override
+	synchronized void addChild(Memento child) {
+		super.addChild(child);
+	}
+
+	@Override
+	synchronized ChildIndex buildChildIndex() {
+		return super.buildChildIndex();
+	}
+
+	@Override
+	boolean cachesDigest() {
+		return false;
+	}
+
+	@Override
+	Memento consistentView() {
+		return freeze();
+	}
+
+	/*
+	 * Another thread may modify the memento while it is being frozen, so the snapshot is not kept.
+	 */
+	@Override
+	boolean cachesSnapshot() {
+		return false;
+	}
+
+	/**
+	 * Returns the digest of this memento, computed from the current properties of each memento in the hierarchy
+	 * without creating a snapshot. Concurrent mementos do not cache their digests, so this method, and thus
+	 * {@link #hashCode()}, takes time proportional to the size of the hierarchy; for repeated comparisons,
+	 * {@linkplain #freeze() freeze} the memento and use the digest of the snapshot.
+	 * <p>
+	 * If the memento is modified concurrently, the digest may reflect some of the modifications but not others.
+	 *
+	 * @return the digest of this memento
+	 */
+	@Override
+	public long digest() {
+		return computeDigest();
+	}
+
+	/**
+	 * Returns an iterator over the keys of the properties present when this method is called. Properties added or
+	 * removed later do not affect the iteration.
+	 *
+	 * @return an iterator over the keys of the properties
+	 */
+	@Override
+	public Iterator<String> iterateProperties() {
+		final PropertyTable snapshot=table;
+		return new Iterator<String>() {
+			private int next;
+			private String last;
+
+			@Override
+			public boolean hasNext() {
+				return next<snapshot.size();
+			}
+
+			@Override
+			public String next() {
+				if (next>=snapshot.size()) throw new NoSuchElementException();
+				last=snapshot.key(next++);
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last==null) throw new IllegalStateException();
+				deleteProperty(last);
+				last=null;
+			}
+		};
+	}
+
+	/**
+	 * Creates a new concurrent child of this memento. The new child will be the last of this memento's children.
+	 *
+	 * @param type the type of the child memento; can be {@code null}
+	 * @return the newly created child memento
+	 */
+	@Override
+	public ConcurrentMemento createChild(String type) {
+		ConcurrentMemento child=new ConcurrentMemento(type);
+		addChild(child);
+		return child;
+	}
+
+	/**
+	 * Creates a new concurrent child of this memento. The new child will be the last of this memento's children.
+	 *
+	 * @return the newly created child memento
+	 */
+	@Override
+	public ConcurrentMemento createChild() {
+		return createChild(null);
+	}
+}
@@ -0,0 +1,47 @@
+package hu.kazocsaba.memento;
+
+/**
+ * The hash functions used to compute the digests of mementos. A digest is built by feeding values one by one into
+ * {@link #step(long, long)}, starting from {@link #START}, and finally spreading the bits of the result with
+ * {@link #mix(long)}. The digests are not cryptographic: they detect accidental changes, not deliberate collisions.
+ *
+ * @author Kazó Csaba
+ */
+final class Digest {
+	/**
+	 * The initial state of a digest.
+	 */
+	static final long START=0xcbf29ce484222325L;
+	private static final long PRIME=0x100000001b3L;
+
+	private Digest() {}
+
+	/**
+	 * Adds a value to a digest. Different values give different results for the same state.
+	 */
+	static long step(long state, long value) {
+		return (state ^ value)*PRIME;
+	}
+
+	/**
+	 * The finalization step of MurmurHash3, making each bit of the result depend on every bit of the argument.
+	 */
+	static long mix(long value) {
+		value^=value >>> 33;
+		value*=0xff51afd7ed558ccdL;
+		value^=value >>> 33;
+		value*=0xc4ceb9fe1a85ec53L;
+		value^=value >>> 33;
+		return value;
+	}
+
+	/**
+	 * Returns the digest of a string.
+	 */
+	static long of(String text) {
+		long state=START;
+		for (int i=0, length=text.length(); i<length; i++)
+			state=step(state, text.charAt(i));
+		return mix(step(state, text.length()));
+	}
+}
@@ -25,6 +25,20 @@ class DoubleArray {
 	public int hashCode() {
 		return Arrays.hashCode(array);
 	}
+	/**
+	 * Returns the 64-bit digest of the elements, consistent with {@link #equals(Object)}.
+	 */
+	long digest() {
+		long state=Digest.START;
+		for (double element: array) state=Digest.step(state, Double.doubleToLongBits(element));
+		return Digest.mix(Digest.step(state, array.length));
+	}
 	public double[] getArray() {return array;}
+	/**
+	 * Returns a wrapper around a copy of the array.
+	 */
+	DoubleArray copy() {
+		return new DoubleArray(array.clone());
+	}
 
 }
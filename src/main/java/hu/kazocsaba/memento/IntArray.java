@@ -25,6 +25,20 @@ class IntArray {
 	public int hashCode() {
 		return Arrays.hashCode(array);
 	}
+	/**
+	 * Returns the 64-bit digest of the elements.
+	 */
+	long digest() {
+		long state=Digest.START;
+		for (int element: array) state=Digest.step(state, element);
+		return Digest.mix(Digest.step(state, array.length));
+	}
 	public int[] getArray() {return array;}
+	/**
+	 * Returns a wrapper around a copy of the array.
+	 */
+	IntArray copy() {
+		return new IntArray(array.clone());
+	}
 
 }
@@ -0,0 +1,514 @@
+package hu.kazocsaba.memento;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.iharder.Base64;
+
+/**
+ * Reads mementos in the JSON format written by {@link JsonEncoder}. The data is parsed in a single pass directly from
+ * the bytes of the stream, building the mementos as their members are read. The {@code type} member of a memento, if
+ * present, must precede its other members.
+ *
+ * @author Kazó Csaba
+ */
+final class JsonDecoder {
+	private static final int BUFFER_SIZE=1 << 13;
+
+	private final InputStream in;
+	private final LoadOptions options;
+	private final byte[] buffer=new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	/**
+	 * Holds the characters of the string or number being read.
+	 */
+	private char[] chars=new char[64];
+
+	private JsonDecoder(InputStream in, LoadOptions options) {
+		this.in=in;
+		this.options=options;
+	}
+
+	/**
+	 * Reads a memento from a stream in JSON format. The stream is read until its end, but it is not closed.
+	 *
+	 * @param in the stream to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento read(InputStream in, LoadOptions options) throws IOException, MementoFormatException {
+		return new JsonDecoder(in, options).readDocument();
+	}
+
+	private Memento readDocument() throws IOException, MementoFormatException {
+		Memento root=readMemento(null);
+		if (skipWhitespace()!=-1)
+			throw unexpected("end of data");
+		return root;
+	}
+
+	/**
+	 * Reads a memento object.
+	 *
+	 * @param parent the memento to add the memento to as a child, or {@code null} if it is the root
+	 * @return the memento, or {@code null} if it was skipped
+	 */
+	private Memento readMemento(Memento parent) throws IOException, MementoFormatException {
+		expect('{');
+		String name=nextMember(true);
+		String type=null;
+		if ("type".equals(name)) {
+			type=readNullableString();
+			name=nextMember(false);
+		}
+		Memento memento;
+		if (parent==null)
+			memento=new Memento(type);
+		else if (options.acceptsChild(type))
+			memento=parent.createChild(type);
+		else {
+			for (; name!=null; name=nextMember(false))
+				skipValue();
+			return null;
+		}
+		for (; name!=null; name=nextMember(false)) {
+			switch (name) {
+				case "properties":
+					expect('{');
+					for (String key=nextMember(true); key!=null; key=nextMember(false))
+						readProperty(memento, key);
+					break;
+				case "children":
+					expect('[');
+					for (boolean first=true; nextItem(first); first=false)
+						readMemento(memento);
+					break;
+				case "type":
+					throw new MementoFormatException("The 'type' member should precede the other members of a memento");
+				default:
+					throw new MementoFormatException("Unexpected member: "+name);
+			}
+		}
+		return memento;
+	}
+
+	/**
+	 * Reads the object holding the type and the value of a property.
+	 */
+	private void readProperty(Memento memento, String key) throws IOException, MementoFormatException {
+		if (!options.acceptsKey(key)) {
+			skipValue();
+			return;
+		}
+		if (memento.getPropertyType(key)!=null)
+			throw new MementoFormatException("Found memento with duplicate properties");
+		expect('{');
+		String type=nextMember(true);
+		if (type==null) throw new MementoFormatException("Property type missing");
+		readValue(memento, key, type);
+		if (nextMember(false)!=null)
+			throw new MementoFormatException("Property value should have a single member");
+	}
+
+	private void readValue(Memento memento, String key, String type) throws IOException, MementoFormatException {
+		switch (type) {
+			case "string":
+				memento.putString(key, readString());
+				break;
+			case "integer":
+				memento.putInt(key, readInt());
+				break;
+			case "long":
+				memento.putLong(key, readLong());
+				break;
+			case "float":
+				try {
+					memento.putFloat(key, Float.parseFloat(readFloatingPoint()));
+				} catch (NumberFormatException e) {
+					throw new MementoFormatException("Incorrect value format: expected float", e);
+				}
+				break;
+			case "double":
+				memento.putDouble(key, readDouble());
+				break;
+			case "boolean":
+				memento.putBoolean(key, readBoolean());
+				break;
+			case "character": {
+				String value=readString();
+				if (value.length()!=1)
+					throw new MementoFormatException("Incorrect value format: expected character, found "+value);
+				memento.putChar(key, value.charAt(0));
+				break;
+			}
+			case "byte[]":
+				try {
+					memento.putByteArray(key, Base64.decode(readString()));
+				} catch (IOException e) {
+					throw new MementoFormatException("Invalid base64 binary data", e);
+				}
+				break;
+			case "string[]": {
+				expect('[');
+				List<String> strings=new ArrayList<>();
+				for (boolean first=true; nextItem(first); first=false)
+					strings.add(readString());
+				memento.putStringArray(key, strings.toArray(new String[strings.size()]));
+				break;
+			}
+			case "integer[]": {
+				expect('[');
+				int[] ints=new int[16];
+				int count=0;
+				for (boolean first=true; nextItem(first); first=false) {
+					if (count==ints.length) ints=Arrays.copyOf(ints, 2*count);
+					ints[count++]=readInt();
+				}
+				memento.putIntArray(key, Arrays.copyOf(ints, count));
+				break;
+			}
+			case "double[]": {
+				expect('[');
+				double[] doubles=new double[16];
+				int count=0;
+				for (boolean first=true; nextItem(first); first=false) {
+					if (count==doubles.length) doubles=Arrays.copyOf(doubles, 2*count);
+					doubles[count++]=readDouble();
+				}
+				memento.putDoubleArray(key, Arrays.copyOf(doubles, count));
+				break;
+			}
+			default:
+				throw new MementoFormatException("Incorrect type: "+type);
+		}
+	}
+
+	/**
+	 * Advances to the next member of the current object, reading its name and the following colon.
+	 *
+	 * @param first whether the member is the first one, which is not preceded by a comma
+	 * @return the name of the member, or {@code null} if the end of the object has been reached instead
+	 */
+	private String nextMember(boolean first) throws IOException, MementoFormatException {
+		int c=skipWhitespace();
+		if (c=='}') {
+			position++;
+			return null;
+		}
+		if (!first) {
+			if (c!=',') throw unexpected("',' or '}'");
+			position++;
+		}
+		String name=readString();
+		expect(':');
+		return name;
+	}
+
+	/**
+	 * Advances to the next item of the current array.
+	 *
+	 * @param first whether the item is the first one, which is not preceded by a comma
+	 * @return {@code false} if the end of the array has been reached instead
+	 */
+	private boolean nextItem(boolean first) throws IOException, MementoFormatException {
+		int c=skipWhitespace();
+		if (c==']') {
+			position++;
+			return false;
+		}
+		if (!first) {
+			if (c!=',') throw unexpected("',' or ']'");
+			position++;
+		}
+		return true;
+	}
+
+	/**
+	 * Skips a value of any kind, without validating the numbers and the escape sequences it contains.
+	 */
+	private void skipValue() throws IOException, MementoFormatException {
+		int c=skipWhitespace();
+		switch (c) {
+			case '{':
+				position++;
+				for (boolean first=true; nextMember(first)!=null; first=false)
+					skipValue();
+				break;
+			case '[':
+				position++;
+				for (boolean first=true; nextItem(first); first=false)
+					skipValue();
+				break;
+			case '"':
+				position++;
+				while ((c=readByte())!='"') {
+					if (c=='\\') readByte();
+				}
+				break;
+			case 't':
+				expectWord("true");
+				break;
+			case 'f':
+				expectWord("false");
+				break;
+			case 'n':
+				expectWord("null");
+				break;
+			default:
+				if (readNumberToken()==0) throw unexpected("value");
+		}
+	}
+
+	private String readNullableString() throws IOException, MementoFormatException {
+		if (skipWhitespace()=='n') {
+			expectWord("null");
+			return null;
+		}
+		return readString();
+	}
+
+	private boolean readBoolean() throws IOException, MementoFormatException {
+		switch (skipWhitespace()) {
+			case 't':
+				expectWord("true");
+				return true;
+			case 'f':
+				expectWord("false");
+				return false;
+			default:
+				throw unexpected("boolean");
+		}
+	}
+
+	private int readInt() throws IOException, MementoFormatException {
+		long value=readLong();
+		if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE)
+			throw new MementoFormatException("Integer out of range: "+value);
+		return (int)value;
+	}
+
+	/**
+	 * Reads an integer number, accumulating it negatively to handle {@code Long.MIN_VALUE}.
+	 */
+	private long readLong() throws IOException, MementoFormatException {
+		int c=skipWhitespace();
+		boolean negative=c=='-';
+		if (negative) {
+			position++;
+			c=peek();
+		}
+		if (c<'0' || c>'9') throw unexpected("integer");
+		long min=negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long result=0;
+		do {
+			position++;
+			int digit=c-'0';
+			if (result<min/10 || result*10<min+digit)
+				throw new MementoFormatException("Integer out of range");
+			result=result*10-digit;
+		} while ((c=peek())>='0' && c<='9');
+		if (c=='.' || c=='e' || c=='E') throw unexpected("integer");
+		return negative ? result : -result;
+	}
+
+	private double readDouble() throws IOException, MementoFormatException {
+		try {
+			return Double.parseDouble(readFloatingPoint());
+		} catch (NumberFormatException e) {
+			throw new MementoFormatException("Incorrect value format: expected double", e);
+		}
+	}
+
+	/**
+	 * Reads a floating point number, either as a number or as one of the special values written as strings.
+	 *
+	 * @return the text of the number, which can be parsed by {@link Double#parseDouble(String)}
+	 */
+	private String readFloatingPoint() throws IOException, MementoFormatException {
+		if (skipWhitespace()=='"') {
+			String value=readString();
+			switch (value) {
+				case "NaN":
+				case "Infinity":
+				case "-Infinity":
+					return value;
+				default:
+					throw new MementoFormatException("Incorrect number: "+value);
+			}
+		}
+		int length=readNumberToken();
+		if (length==0) throw unexpected("number");
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * Reads the characters that can appear in a number into {@link #chars}.
+	 *
+	 * @return the number of characters read
+	 */
+	private int readNumberToken() throws IOException {
+		int length=0;
+		while (true) {
+			int c=peek();
+			if ((c<'0' || c>'9') && c!='-' && c!='+' && c!='.' && c!='e' && c!='E') return length;
+			if (length==chars.length) chars=Arrays.copyOf(chars, 2*length);
+			chars[length++]=(char)c;
+			position++;
+		}
+	}
+
+	/**
+	 * Reads a string literal, decoding its escape sequences and UTF-8 byte sequences.
+	 */
+	private String readString() throws IOException, MementoFormatException {
+		if (skipWhitespace()!='"') throw unexpected("string");
+		position++;
+		int length=0;
+		while (true) {
+			if (position==limit && !fill()) throw unexpected("'\"'");
+			int b=buffer[position++];
+			if (length+2>chars.length) chars=Arrays.copyOf(chars, 2*chars.length);
+			if (b=='"')
+				return new String(chars, 0, length);
+			else if (b=='\\')
+				chars[length++]=readEscape();
+			else if (b>=' ')
+				chars[length++]=(char)b;
+			else if (b>=0)
+				throw new MementoFormatException("Control character in string");
+			else
+				length=readUtf8(b & 0xFF, length);
+		}
+	}
+
+	private char readEscape() throws IOException, MementoFormatException {
+		int c=readByte();
+		switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				return (char)c;
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'u': {
+				int value=0;
+				for (int i=0; i<4; i++) {
+					int digit=Character.digit(readByte(), 16);
+					if (digit==-1) throw new MementoFormatException("Invalid unicode escape");
+					value=value << 4 | digit;
+				}
+				return (char)value;
+			}
+			default:
+				throw new MementoFormatException("Invalid escape sequence");
+		}
+	}
+
+	/**
+	 * Decodes a multi-byte UTF-8 sequence into {@link #chars}, which has room for at least two characters.
+	 *
+	 * @param first the first byte of the sequence
+	 * @param length the number of characters already in {@link #chars}
+	 * @return the new number of characters
+	 */
+	private int readUtf8(int first, int length) throws IOException, MementoFormatException {
+		int count, codePoint, min;
+		if ((first & 0xE0)==0xC0) {
+			count=1;
+			codePoint=first & 0x1F;
+			min=0x80;
+		} else if ((first & 0xF0)==0xE0) {
+			count=2;
+			codePoint=first & 0x0F;
+			min=0x800;
+		} else if ((first & 0xF8)==0xF0) {
+			count=3;
+			codePoint=first & 0x07;
+			min=0x10000;
+		} else
+			throw new MementoFormatException("Invalid UTF-8 data");
+		for (int i=0; i<count; i++) {
+			int b=readByte();
+			if ((b & 0xC0)!=0x80) throw new MementoFormatException("Invalid UTF-8 data");
+			codePoint=codePoint << 6 | b & 0x3F;
+		}
+		if (codePoint<min || codePoint>Character.MAX_CODE_POINT || Character.isSurrogate((char)codePoint) && codePoint<0x10000)
+			throw new MementoFormatException("Invalid UTF-8 data");
+		return length+Character.toChars(codePoint, chars, length);
+	}
+
+	private void expect(char c) throws IOException, MementoFormatException {
+		if (skipWhitespace()!=c) throw unexpected("'"+c+"'");
+		position++;
+	}
+
+	private void expectWord(String word) throws IOException, MementoFormatException {
+		for (int i=0; i<word.length(); i++) {
+			if (peek()!=word.charAt(i)) throw unexpected(word);
+			position++;
+		}
+	}
+
+	/**
+	 * Skips whitespace, and returns the next byte without consuming it.
+	 *
+	 * @return the next byte, or -1 if the end of the stream has been reached
+	 */
+	private int skipWhitespace() throws IOException {
+		while (true) {
+			int c=peek();
+			if (c!=' ' && c!='\n' && c!='\r' && c!='\t') return c;
+			position++;
+		}
+	}
+
+	/**
+	 * Returns the next byte without consuming it.
+	 *
+	 * @return the next byte, or -1 if the end of the stream has been reached
+	 */
+	private int peek() throws IOException {
+		if (position==limit && !fill()) return -1;
+		return buffer[position] & 0xFF;
+	}
+
+	private int readByte() throws IOException, MementoFormatException {
+		if (position==limit && !fill()) throw new MementoFormatException("Unexpected end of data");
+		return buffer[position++] & 0xFF;
+	}
+
+	/**
+	 * Reads the next block of data into the buffer, which must be empty.
+	 *
+	 * @return {@code false} if the end of the stream has been reached
+	 */
+	private boolean fill() throws IOException {
+		int count;
+		do {
+			count=in.read(buffer);
+		} while (count==0);
+		if (count==-1) return false;
+		position=0;
+		limit=count;
+		return true;
+	}
+
+	private MementoFormatException unexpected(String expected) throws IOException {
+		int c=peek();
+		return new MementoFormatException("Expected "+expected+", found "+(c==-1 ? "end of data" : "'"+(char)c+"'"));
+	}
+}
@@ -0,0 +1,315 @@
+package hu.kazocsaba.memento;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import net.iharder.Base64;
+
+/**
+ * Writes mementos in the JSON format. A memento is an object with the optional members {@code type},
+ * {@code properties} and {@code children}, in this order:
+ * <pre>
+ * {
+ *     "type": "person",
+ *     "properties": {
+ *         "name": {"string": "John"},
+ *         "scores": {"integer[]": [1, 2, 3]}
+ *     },
+ *     "children": [
+ *         {"type": "address"}
+ *     ]
+ * }
+ * </pre>
+ * Each property value is an object with a single member whose name is the type of the value, using the same type
+ * names as the XML format. Byte arrays are encoded in Base64, characters are strings of length one, and the float and
+ * double values not representable as JSON numbers are written as the strings {@code "NaN"}, {@code "Infinity"} and
+ * {@code "-Infinity"}. Unpaired surrogates are escaped, so every string is preserved exactly.
+ *
+ * @author Kazó Csaba
+ */
+final class JsonEncoder {
+	private static final int INDENT_AMOUNT=4;
+	/**
+	 * The number of bytes encoded at once in Base64; a multiple of 3, so that the chunks need no padding.
+	 */
+	private static final int BASE64_CHUNK=3 << 12;
+	private static final char[] HEX_DIGITS="0123456789abcdef".toCharArray();
+
+	private final Writer out;
+	private final boolean indent;
+	private final String nameSeparator;
+	private final String itemSeparator;
+	private final char[] buffer=new char[1 << 13];
+	private int position;
+	private int depth;
+
+	private JsonEncoder(Writer out, boolean indent) {
+		this.out=out;
+		this.indent=indent;
+		nameSeparator=indent ? ": " : ":";
+		itemSeparator=indent ? ", " : ",";
+	}
+
+	/**
+	 * Writes a memento to a stream in JSON format. The data is flushed, but the stream is not closed.
+	 *
+	 * @param memento the memento to write
+	 * @param out the stream to write to
+	 * @param indent whether to put the members of the mementos on separate, indented lines
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(Memento memento, OutputStream out, boolean indent) throws IOException {
+		Writer writer=new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		JsonEncoder encoder=new JsonEncoder(writer, indent);
+		encoder.writeMemento(memento.consistentView());
+		if (indent) encoder.writeRaw('\n');
+		encoder.flushBuffer();
+		writer.flush();
+	}
+
+	private void writeMemento(Memento memento) throws IOException {
+		writeRaw('{');
+		depth++;
+		boolean empty=true;
+		if (memento.getType()!=null) {
+			startMember("type", empty);
+			writeString(memento.getType());
+			empty=false;
+		}
+		Iterator<String> keys=memento.iterateProperties();
+		if (keys.hasNext()) {
+			startMember("properties", empty);
+			writeRaw('{');
+			depth++;
+			try {
+				for (boolean first=true; keys.hasNext(); first=false) {
+					String key=keys.next();
+					startMember(key, first);
+					writeValue(memento, key);
+				}
+			} catch (NoSuchPropertyException | TypeMismatchException e) {
+				throw new AssertionError(e);
+			}
+			depth--;
+			newLine();
+			writeRaw('}');
+			empty=false;
+		}
+		Iterator<Memento> children=memento.iterateChildren();
+		if (children.hasNext()) {
+			startMember("children", empty);
+			writeRaw('[');
+			depth++;
+			for (boolean first=true; children.hasNext(); first=false) {
+				if (!first) writeRaw(',');
+				newLine();
+				writeMemento(children.next());
+			}
+			depth--;
+			newLine();
+			writeRaw(']');
+			empty=false;
+		}
+		depth--;
+		if (!empty) newLine();
+		writeRaw('}');
+	}
+
+	/**
+	 * Writes the name of an object member on a new line, preceded by a comma if it is not the first member.
+	 */
+	private void startMember(String name, boolean first) throws IOException {
+		if (!first) writeRaw(',');
+		newLine();
+		writeString(name);
+		writeRaw(nameSeparator);
+	}
+
+	private void writeValue(Memento memento, String key) throws IOException, NoSuchPropertyException, TypeMismatchException {
+		Class<?> valueType=memento.getPropertyType(key);
+		if (valueType==String.class) {
+			startValue("string");
+			writeString(memento.getString(key));
+		} else if (valueType==Integer.class) {
+			startValue("integer");
+			writeRaw(Integer.toString(memento.getInt(key)));
+		} else if (valueType==Long.class) {
+			startValue("long");
+			writeRaw(Long.toString(memento.getLong(key)));
+		} else if (valueType==Float.class) {
+			startValue("float");
+			float value=memento.getFloat(key);
+			writeNumber(Float.toString(value), Float.isNaN(value) || Float.isInfinite(value));
+		} else if (valueType==Boolean.class) {
+			startValue("boolean");
+			writeRaw(Boolean.toString(memento.getBoolean(key)));
+		} else if (valueType==Character.class) {
+			startValue("character");
+			writeString(Character.toString(memento.getChar(key)));
+		} else if (valueType==Byte[].class) {
+			startValue("byte[]");
+			writeByteArray(memento.getByteBuffer(key));
+		} else if (valueType==Double.class) {
+			startValue("double");
+			writeDouble(memento.getDouble(key));
+		} else if (valueType==String[].class) {
+			startValue("string[]");
+			writeRaw('[');
+			String[] items=memento.getStringArray(key);
+			for (int i=0; i<items.length; i++) {
+				if (i>0) writeRaw(itemSeparator);
+				writeString(items[i]);
+			}
+			writeRaw(']');
+		} else if (valueType==Integer[].class) {
+			startValue("integer[]");
+			writeRaw('[');
+			int[] items=memento.getIntArray(key);
+			for (int i=0; i<items.length; i++) {
+				if (i>0) writeRaw(itemSeparator);
+				writeRaw(Integer.toString(items[i]));
+			}
+			writeRaw(']');
+		} else if (valueType==Double[].class) {
+			startValue("double[]");
+			writeRaw('[');
+			double[] items=memento.getDoubleArray(key);
+			for (int i=0; i<items.length; i++) {
+				if (i>0) writeRaw(itemSeparator);
+				writeDouble(items[i]);
+			}
+			writeRaw(']');
+		} else
+			throw new IllegalStateException("Unknown value type: "+valueType);
+		writeRaw('}');
+	}
+
+	/**
+	 * Starts the object holding a property value, up to the value itself.
+	 */
+	private void startValue(String type) throws IOException {
+		writeRaw("{\"");
+		writeRaw(type);
+		writeRaw('"');
+		writeRaw(nameSeparator);
+	}
+
+	private void writeDouble(double value) throws IOException {
+		writeNumber(Double.toString(value), Double.isNaN(value) || Double.isInfinite(value));
+	}
+
+	/**
+	 * Writes a floating point number, quoting the special values that JSON numbers cannot represent.
+	 */
+	private void writeNumber(String text, boolean special) throws IOException {
+		if (special) writeRaw('"');
+		writeRaw(text);
+		if (special) writeRaw('"');
+	}
+
+	/**
+	 * Writes a byte array as a Base64 string, encoding the bytes in chunks so that large arrays are not turned into a
+	 * single string.
+	 */
+	private void writeByteArray(ByteBuffer bytes) throws IOException {
+		writeRaw('"');
+		CharBuffer chars=CharBuffer.allocate(BASE64_CHUNK/3*4);
+		while (bytes.hasRemaining()) {
+			ByteBuffer chunk=bytes.duplicate();
+			chunk.limit(chunk.position()+Math.min(chunk.remaining(), BASE64_CHUNK));
+			bytes.position(chunk.limit());
+			chars.clear();
+			Base64.encode(chunk, chars);
+			flushBuffer();
+			out.write(chars.array(), 0, chars.position());
+		}
+		writeRaw('"');
+	}
+
+	/**
+	 * Writes a string literal, escaping the characters that cannot appear in it literally, and the unpaired
+	 * surrogates that could not be encoded in UTF-8.
+	 */
+	private void writeString(String text) throws IOException {
+		writeRaw('"');
+		for (int i=0, length=text.length(); i<length; i++) {
+			char c=text.charAt(i);
+			switch (c) {
+				case '"':
+					writeRaw("\\\"");
+					break;
+				case '\\':
+					writeRaw("\\\\");
+					break;
+				case '\n':
+					writeRaw("\\n");
+					break;
+				case '\r':
+					writeRaw("\\r");
+					break;
+				case '\t':
+					writeRaw("\\t");
+					break;
+				case '\b':
+					writeRaw("\\b");
+					break;
+				case '\f':
+					writeRaw("\\f");
+					break;
+				default:
+					if (c<' ')
+						writeEscape(c);
+					else if (Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(text.charAt(i+1))) {
+						writeRaw(c);
+						writeRaw(text.charAt(++i));
+					} else if (Character.isSurrogate(c))
+						writeEscape(c);
+					else
+						writeRaw(c);
+			}
+		}
+		writeRaw('"');
+	}
+
+	private void writeEscape(char c) throws IOException {
+		writeRaw("\\u");
+		for (int shift=12; shift>=0; shift-=4)
+			writeRaw(HEX_DIGITS[(c >> shift) & 0xF]);
+	}
+
+	private void newLine() throws IOException {
+		if (!indent) return;
+		writeRaw('\n');
+		for (int i=depth*INDENT_AMOUNT; i>0; i--)
+			writeRaw(' ');
+	}
+
+	private void writeRaw(char c) throws IOException {
+		if (position==buffer.length) flushBuffer();
+		buffer[position++]=c;
+	}
+
+	private void writeRaw(String s) throws IOException {
+		int length=s.length();
+		if (position+length>buffer.length) {
+			flushBuffer();
+			if (length>buffer.length) {
+				out.write(s);
+				return;
+			}
+		}
+		s.getChars(0, length, buffer, position);
+		position+=length;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		position=0;
+	}
+}
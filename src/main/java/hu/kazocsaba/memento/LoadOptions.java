@@ -0,0 +1,125 @@
+package hu.kazocsaba.memento;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Selects the parts of a memento to load. Properties with keys not accepted by the options are skipped, and so are the
+ * child mementos with types not accepted, together with all their descendants. The root memento is always loaded. By
+ * default, everything is loaded.
+ * <pre>
+ *    // load the names of the people, without their other data and without the other children of the root
+ *    LoadOptions options = new LoadOptions().keys("name").childTypes("person");
+ *    Memento people = MementoStore.binaryFileToMemento(file, options);
+ * </pre>
+ * The skipped data is not decoded: in the binary format, the values and the mementos are skipped using their lengths,
+ * and in the XML format, the skipped elements are only parsed. This also means that errors in the skipped data may go
+ * unnoticed.
+ * <p>
+ * The options must not be modified while a memento is being loaded with them.
+ *
+ * @author Kazó Csaba
+ */
+public final class LoadOptions {
+	/**
+	 * Decides which child mementos to load based on their types.
+	 */
+	public interface TypeFilter {
+		/**
+		 * Returns whether child mementos with the given type should be loaded.
+		 *
+		 * @param type the type of a child memento; can be {@code null}
+		 * @return {@code true} if the child memento and its descendants should be loaded, {@code false} if they should
+		 * be skipped
+		 */
+		boolean accept(String type);
+	}
+
+	/**
+	 * The options loading everything, used when no options are specified; never modified.
+	 */
+	static final LoadOptions ALL=new LoadOptions();
+
+	/**
+	 * The keys of the properties to load, or {@code null} to load all properties.
+	 */
+	private Set<String> keys;
+	/**
+	 * The filter of the child mementos, or {@code null} to load all children.
+	 */
+	private TypeFilter childFilter;
+
+	/**
+	 * Creates new options that load everything.
+	 */
+	public LoadOptions() {}
+
+	/**
+	 * Restricts the loaded properties to those with the given keys.
+	 *
+	 * @param keys the keys of the properties to load
+	 * @return these options
+	 */
+	public LoadOptions keys(String... keys) {
+		return keys(Arrays.asList(keys));
+	}
+
+	/**
+	 * Restricts the loaded properties to those with the given keys.
+	 *
+	 * @param keys the keys of the properties to load
+	 * @return these options
+	 */
+	public LoadOptions keys(Collection<String> keys) {
+		Objects.requireNonNull(keys, "null keys");
+		Set<String> set=new HashSet<>(keys.size()*2);
+		for (String key: keys)
+			set.add(Objects.requireNonNull(key, "null key"));
+		this.keys=set;
+		return this;
+	}
+
+	/**
+	 * Restricts the loaded child mementos to those with one of the given types.
+	 *
+	 * @param types the types of the child mementos to load; can contain {@code null}
+	 * @return these options
+	 */
+	public LoadOptions childTypes(String... types) {
+		final Set<String> set=new HashSet<>(Arrays.asList(types));
+		return childTypes(new TypeFilter() {
+			@Override
+			public boolean accept(String type) {
+				return set.contains(type);
+			}
+		});
+	}
+
+	/**
+	 * Restricts the loaded child mementos to those with types accepted by a filter.
+	 *
+	 * @param filter the filter deciding which children to load
+	 * @return these options
+	 */
+	public LoadOptions childTypes(TypeFilter filter) {
+		childFilter=Objects.requireNonNull(filter, "null filter");
+		return this;
+	}
+
+	/**
+	 * Returns whether the property with the given key should be loaded.
+	 */
+	boolean acceptsKey(String key) {
+		return keys==null || keys.contains(key);
+	}
+
+	/**
+	 * Returns whether the child memento with the given type should be loaded.
+	 */
+	boolean acceptsChild(String type) {
+		return childFilter==null || childFilter.accept(type);
+	}
+}
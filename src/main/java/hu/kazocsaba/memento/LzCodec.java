@@ -0,0 +1,146 @@
+package hu.kazocsaba.memento;
+
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * A simple and fast LZ77 compressor for the blocks of {@link Compression#LZ}.
+ * <p>
+ * The compressed data is a sequence of literal runs and matches. Each sequence starts with a token byte whose high
+ * four bits are the number of literals and whose low four bits are the length of the match minus
+ * {@value #MIN_MATCH}. A value of 15 means that the length continues in the following bytes: each byte is added to
+ * it, until a byte other than 255. The literals follow, then the distance of the match as a little-endian unsigned
+ * short, and then the continuation of the match length. The last sequence has only literals, and it ends the data.
+ *
+ * @author Kazó Csaba
+ */
+final class LzCodec {
+	private static final int MIN_MATCH=4;
+	private static final int MAX_DISTANCE=65535;
+	private static final int HASH_BITS=14;
+
+	/**
+	 * The last positions (plus one) at which the hashes of four bytes occurred.
+	 */
+	private final int[] table=new int[1 << HASH_BITS];
+
+	/**
+	 * Compresses the first {@code length} bytes of an array.
+	 *
+	 * @param src the data to compress
+	 * @param length the number of bytes to compress
+	 * @param dst the array receiving the compressed data
+	 * @param maxLength the maximum length of the compressed data
+	 * @return the length of the compressed data, or -1 if it would be longer than {@code maxLength}
+	 */
+	int compress(byte[] src, int length, byte[] dst, int maxLength) {
+		Arrays.fill(table, 0);
+		int anchor=0;
+		int i=0;
+		int d=0;
+		while (i+MIN_MATCH<=length) {
+			int value=readInt(src, i);
+			int hash=(value*-1640531535) >>> (32-HASH_BITS);
+			int candidate=table[hash]-1;
+			table[hash]=i+1;
+			if (candidate<0 || i-candidate>MAX_DISTANCE || readInt(src, candidate)!=value) {
+				i++;
+				continue;
+			}
+			int matchLength=MIN_MATCH;
+			while (i+matchLength<length && src[candidate+matchLength]==src[i+matchLength])
+				matchLength++;
+			int literals=i-anchor;
+			if (d+sequenceBound(literals)+2+matchLength/255+1>maxLength) return -1;
+			d=writeSequence(src, anchor, literals, matchLength-MIN_MATCH, dst, d);
+			dst[d++]=(byte)(i-candidate);
+			dst[d++]=(byte)((i-candidate) >>> 8);
+			if (matchLength-MIN_MATCH>=15) d=writeLength(matchLength-MIN_MATCH-15, dst, d);
+			i+=matchLength;
+			anchor=i;
+		}
+		int literals=length-anchor;
+		if (d+sequenceBound(literals)>maxLength) return -1;
+		return writeSequence(src, anchor, literals, 0, dst, d);
+	}
+
+	/**
+	 * Returns the maximum number of bytes needed for the token, the literal length, and the literals of a sequence.
+	 */
+	private static int sequenceBound(int literals) {
+		return 1+literals/255+1+literals;
+	}
+
+	/**
+	 * Writes the token, the literal length, and the literals of a sequence.
+	 */
+	private static int writeSequence(byte[] src, int start, int literals, int matchCode, byte[] dst, int d) {
+		dst[d++]=(byte)((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+		if (literals>=15) d=writeLength(literals-15, dst, d);
+		System.arraycopy(src, start, dst, d, literals);
+		return d+literals;
+	}
+
+	private static int writeLength(int value, byte[] dst, int d) {
+		while (value>=255) {
+			dst[d++]=(byte)255;
+			value-=255;
+		}
+		dst[d++]=(byte)value;
+		return d;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i+1] & 0xFF) << 8 | (b[i+2] & 0xFF) << 16 | b[i+3] << 24;
+	}
+
+	/**
+	 * Decompresses data.
+	 *
+	 * @param src the compressed data
+	 * @param srcLength the length of the compressed data
+	 * @param dst the array receiving the decompressed data
+	 * @param dstLength the expected length of the decompressed data
+	 * @throws ZipException if the compressed data is corrupt
+	 */
+	static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength) throws ZipException {
+		int s=0;
+		int d=0;
+		while (true) {
+			if (s==srcLength) throw new ZipException("Truncated compressed block");
+			int token=src[s++] & 0xFF;
+			int literals=token >>> 4;
+			if (literals==15) {
+				int b;
+				do {
+					if (s==srcLength) throw new ZipException("Truncated compressed block");
+					b=src[s++] & 0xFF;
+					literals+=b;
+				} while (b==255 && literals<=dstLength);
+			}
+			if (literals>srcLength-s || literals>dstLength-d) throw new ZipException("Corrupt compressed block");
+			System.arraycopy(src, s, dst, d, literals);
+			s+=literals;
+			d+=literals;
+			if (s==srcLength) break;
+			if (srcLength-s<2) throw new ZipException("Truncated compressed block");
+			int distance=(src[s] & 0xFF) | (src[s+1] & 0xFF) << 8;
+			s+=2;
+			int matchLength=token & 0x0F;
+			if (matchLength==15) {
+				int b;
+				do {
+					if (s==srcLength) throw new ZipException("Truncated compressed block");
+					b=src[s++] & 0xFF;
+					matchLength+=b;
+				} while (b==255 && matchLength<=dstLength);
+			}
+			matchLength+=MIN_MATCH;
+			if (distance==0 || distance>d || matchLength>dstLength-d) throw new ZipException("Corrupt compressed block");
+			// the match can overlap the bytes being written, so they are copied one by one
+			for (int end=d+matchLength; d<end; d++)
+				dst[d]=dst[d-distance];
+		}
+		if (d!=dstLength) throw new ZipException("Compressed block length mismatch");
+	}
+}
@@ -0,0 +1,107 @@
+package hu.kazocsaba.memento;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file from which loaded mementos are memory-mapped. The mappings are recorded, so that the methods writing files
+ * can tell whether a file is still mapped: such a file must not be truncated or overwritten, as the mementos read
+ * their blobs and their lazily decoded children from it.
+ * <p>
+ * A mapping is considered to be in use until its buffer, and all the buffers created from it, are garbage collected.
+ * Files are identified by their {@linkplain BasicFileAttributes#fileKey() file key} where it is available, so a file
+ * that has been replaced by a new one is no longer considered mapped.
+ *
+ * @author Kazó Csaba
+ */
+final class MappedFile {
+	/**
+	 * The mappings by file, each list holding at least one mapping that may still be in use.
+	 */
+	private static final Map<Object,List<WeakReference<ByteBuffer>>> MAPPINGS=new HashMap<>();
+
+	private final FileChannel channel;
+	private final Object key;
+
+	/**
+	 * Creates a new instance for mapping an open file.
+	 *
+	 * @param file the path of the file
+	 * @param channel the channel reading the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	MappedFile(Path file, FileChannel channel) throws IOException {
+		this.channel=channel;
+		key=key(file);
+	}
+
+	/**
+	 * Maps a region of the file into memory for reading, and records the mapping.
+	 *
+	 * @param position the position of the region in the file
+	 * @param size the size of the region
+	 * @return the read-only buffer of the region
+	 * @throws IOException if an I/O error occurs
+	 */
+	ByteBuffer map(long position, long size) throws IOException {
+		ByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		synchronized (MAPPINGS) {
+			List<WeakReference<ByteBuffer>> mappings=MAPPINGS.get(key);
+			if (mappings==null) {
+				mappings=new ArrayList<>();
+				MAPPINGS.put(key, mappings);
+			} else
+				prune(mappings);
+			mappings.add(new WeakReference<>(buffer));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns whether a file may still be mapped by a memento.
+	 *
+	 * @param file the file to check
+	 * @return {@code true} if the file has a mapping that may be in use
+	 * @throws IOException if an I/O error occurs
+	 */
+	static boolean isMapped(Path file) throws IOException {
+		Object key;
+		try {
+			key=key(file);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		synchronized (MAPPINGS) {
+			List<WeakReference<ByteBuffer>> mappings=MAPPINGS.get(key);
+			if (mappings==null) return false;
+			prune(mappings);
+			if (!mappings.isEmpty()) return true;
+			MAPPINGS.remove(key);
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the mappings that have been garbage collected.
+	 */
+	private static void prune(List<WeakReference<ByteBuffer>> mappings) {
+		for (Iterator<WeakReference<ByteBuffer>> i=mappings.iterator(); i.hasNext();)
+			if (i.next().get()==null) i.remove();
+	}
+
+	private static Object key(Path file) throws IOException {
+		Object key=Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+		return key!=null ? key : file.toRealPath();
+	}
+}
@@ -1,13 +1,17 @@
 package hu.kazocsaba.memento;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.RandomAccess;
 
 /**
  * A class storing key-value mappings. Keys are always {@code String} objects; a few simple value data types are
@@ -36,12 +40,9 @@ import java.util.Objects;
  * <pre>
  *    private List&lt;Person> load(Memento m) throws MementoFormatException {
  *        List&lt;Person> people = new ArrayList&lt;>();
- *        // iterate over the child mementos
- *        for (Memento child: m) {
- *            // only process the children with the type "person"
- *            if ("person".equals(child.getType()))
- *                people.add(new Person(child.getString("name"), child.getInt("age")));
- *        }
+ *        // iterate over the child mementos with the type "person"
+ *        for (Memento child: m.getChildrenWithType("person"))
+ *            people.add(new Person(child.getString("name"), child.getInt("age")));
  *        return people;
  *    }
  * </pre>
@@ -59,13 +60,63 @@ import java.util.Objects;
  * </pre>
  * <p>
  * In general, queries for properties that are non-existent or that have a type different from the one requested are
- * considered a format error and result in {@link MementoFormatException}.
+ * considered a format error and result in {@link MementoFormatException}. To probe properties that may be missing or
+ * may have different types without exceptions, use {@link #lookup(String, PropertyLookup)}.
+ * <p>
+ * Mementos are not thread-safe. To share a memento between threads, {@linkplain #freeze() freeze} it: frozen
+ * mementos are immutable, and can be read concurrently.
  * @author Kazó Csaba
  */
 public class Memento implements Iterable<Memento> {
-	private final Map<String,Object> properties;
+	/**
+	 * The number of lookups by type answered by scanning the children before the index of the children is built.
+	 */
+	private static final int SCANNED_LOOKUPS=1;
+	
+	private PropertyTable properties;
+	/**
+	 * Whether the property table is shared with another memento, and has to be copied before it is modified.
+	 */
+	private boolean propertiesShared;
+	/**
+	 * Whether the array values in the property table may be shared with another memento, and have to be copied before
+	 * they are returned by reference. Copying the table does not copy the arrays.
+	 */
+	private boolean arraysShared;
 	private final List<Memento> children;
 	private final String type;
+	private final boolean frozen;
+	/**
+	 * Loads the children of this memento on first access; {@code null} if the children are already available.
+	 */
+	private volatile ChildLoader childLoader;
+	/**
+	 * The positions of the children by type; built on the second lookup by type, {@code null} before that.
+	 */
+	private volatile ChildIndex childIndex;
+	/**
+	 * The number of lookups by type without an index, up to {@link #SCANNED_LOOKUPS}. Concurrent updates may be lost,
+	 * which only delays building the index.
+	 */
+	private byte typeLookups;
+	/**
+	 * The memento whose digest and snapshot depend on this one; {@code null} for root mementos and for frozen
+	 * mementos, which can be shared by multiple parents.
+	 */
+	private Memento parent;
+	/**
+	 * The frozen memento returned by the last call of {@link #freeze()}, or {@code null} if this memento has been
+	 * modified since. If a memento has a snapshot, so do all its mutable descendants.
+	 */
+	private Memento snapshot;
+	/**
+	 * The digest of this memento, if {@link #digestValid} is set.
+	 */
+	private long digest;
+	/**
+	 * Whether {@link #digest} is up to date. If a memento has a valid digest, so do all its descendants.
+	 */
+	private volatile boolean digestValid;
 	
 	/**
 	 * Creates a new empty memento instance.
@@ -80,23 +131,289 @@ public class Memento implements Iterable<Memento> {
 	 * @param type the type of the memento; can be {@code null}
 	 */
 	public Memento(String type) {
-		properties=new HashMap<>();
-		children=new ArrayList<>();
+		this(type, new ArrayList<Memento>());
+	}
+	
+	/**
+	 * Creates a new empty, mutable memento storing its children in the given list.
+	 */
+	Memento(String type, List<Memento> children) {
+		properties=new PropertyTable();
+		this.children=children;
 		this.type=type;
+		frozen=false;
+	}
+	
+	/**
+	 * Creates a frozen memento sharing the given property table.
+	 */
+	private Memento(String type, PropertyTable properties, List<Memento> children) {
+		this.properties=properties;
+		this.children=children;
+		this.type=type;
+		frozen=true;
+	}
+	
+	/**
+	 * Supplies the children of a memento that are loaded on demand.
+	 */
+	interface ChildLoader {
+		/**
+		 * Creates the child mementos.
+		 *
+		 * @param children the list to add the children to
+		 * @throws IOException if an I/O error occurs
+		 * @throws MementoFormatException if the format of the data is incorrect
+		 */
+		void loadChildren(List<Memento> children) throws IOException, MementoFormatException;
+	}
+	
+	/**
+	 * Defers the creation of the children of this memento until they are first accessed.
+	 *
+	 * @param loader the object that creates the children
+	 */
+	void setChildLoader(ChildLoader loader) {
+		childLoader=loader;
+	}
+	
+	/**
+	 * Returns whether the children of this memento have been created, that is, whether they were not deferred with
+	 * {@link #setChildLoader(ChildLoader)} or have been accessed since.
+	 */
+	boolean childrenLoaded() {
+		return childLoader==null;
+	}
+	
+	/**
+	 * Returns the current property table. The methods reading more than one piece of information from the table
+	 * call this method only once, so that subclasses can replace the table atomically.
+	 */
+	PropertyTable properties() {
+		return properties;
+	}
+	
+	/**
+	 * Returns the property table to be modified, copying it first if it is shared.
+	 * @throws UnsupportedOperationException if this memento is frozen
+	 */
+	private PropertyTable writableProperties() {
+		checkMutable();
+		invalidate();
+		if (propertiesShared) {
+			properties=properties.copy();
+			propertiesShared=false;
+		}
+		return properties;
+	}
+	
+	/**
+	 * Returns the property table to be shared with another memento. This memento will not modify the returned table
+	 * afterwards.
+	 */
+	PropertyTable shareProperties() {
+		propertiesShared=true;
+		arraysShared=true;
+		return properties;
+	}
+	
+	/**
+	 * Returns the property table for reading an array value that is returned by reference. As the caller may modify
+	 * the array, this memento is considered modified, and the arrays shared with other mementos are copied first.
+	 */
+	PropertyTable arrayProperties() {
+		if (frozen) return properties;
+		PropertyTable table=writableProperties();
+		if (arraysShared) {
+			table.copyArrays();
+			arraysShared=false;
+		}
+		return table;
+	}
+	
+	/**
+	 * Stores a primitive property. All putter methods of primitive values call this method.
+	 */
+	void storeBits(String key, byte tag, long value) {
+		writableProperties().putBits(key, tag, value);
+	}
+	
+	/**
+	 * Stores a property with a string or array value. All putter methods of such values call this method.
+	 */
+	void storeRef(String key, byte tag, Object value) {
+		writableProperties().putRef(key, tag, value);
+	}
+	
+	/**
+	 * Stores all properties of a table, replacing the existing properties with the same keys.
+	 */
+	void storeAll(PropertyTable table) {
+		writableProperties().putAll(table);
+		// the array values are shared with the other table
+		arraysShared=true;
+	}
+	
+	/**
+	 * Removes a property.
+	 * @return {@code false} if there was no property with the given key
+	 */
+	boolean deleteProperty(String key) {
+		return writableProperties().remove(key);
+	}
+	
+	/**
+	 * Returns a memento with the same content as this one that does not change while it is being saved.
+	 */
+	Memento consistentView() {
+		return this;
+	}
+	
+	private void checkMutable() {
+		if (frozen) throw new UnsupportedOperationException("Frozen memento");
+	}
+	
+	/**
+	 * Invalidates the digest and the snapshot of this memento and its ancestors. As the ancestors of a memento without
+	 * a valid digest and a snapshot do not have them either, this stops at the first such memento.
+	 */
+	private void invalidate() {
+		for (Memento memento=this; memento!=null && (memento.digestValid || memento.snapshot!=null); memento=memento.parent) {
+			memento.digestValid=false;
+			memento.snapshot=null;
+		}
+	}
+	
+	/**
+	 * Returns whether this memento caches its digest, so that it is cheap to call {@link #digest()} repeatedly.
+	 */
+	boolean cachesDigest() {
+		return true;
+	}
+	
+	/**
+	 * Computes the digest of this memento from its type, its properties, and the digests of its children.
+	 */
+	long computeDigest() {
+		long state=Digest.step(Digest.START, type==null ? 0 : Digest.of(type));
+		state=Digest.step(state, properties().digest());
+		List<Memento> list=children();
+		for (int i=0, size=list.size(); i<size; i++) {
+			Memento child=list.get(i);
+			state=Digest.step(state, child.digest());
+		}
+		return Digest.mix(Digest.step(state, list.size()));
+	}
+	
+	private List<Memento> children() {
+		if (childLoader!=null) loadChildren();
+		return children;
+	}
+	
+	private synchronized void loadChildren() {
+		ChildLoader loader=childLoader;
+		if (loader==null) return;
+		try {
+			loader.loadChildren(children);
+		} catch (IOException | MementoFormatException e) {
+			children.clear();
+			throw new IllegalStateException("Cannot load child mementos", e);
+		}
+		for (Memento child: children)
+			if (!child.frozen) child.parent=this;
+		childLoader=null;
+	}
+	
+	/**
+	 * Appends an existing memento to the children of this memento.
+	 *
+	 * @param child the new last child of this memento
+	 */
+	void addChild(Memento child) {
+		List<Memento> list=children();
+		invalidate();
+		if (!child.frozen) child.parent=this;
+		list.add(child);
+		ChildIndex index=childIndex;
+		if (index!=null) index.add(child.getType(), list.size()-1);
+	}
+	
+	/**
+	 * Returns the positions of the children with a type. The children are scanned on the first lookup, and indexed
+	 * from the second one.
+	 *
+	 * @return the positions in increasing order, or {@code null} if there is no child with the type
+	 */
+	private ChildIndex.Positions positions(String type) {
+		ChildIndex index=childIndex;
+		if (index==null) {
+			if (typeLookups<SCANNED_LOOKUPS) {
+				typeLookups++;
+				return ChildIndex.scan(children(), type);
+			}
+			index=buildChildIndex();
+		}
+		return index.positions(type);
+	}
+	
+	/**
+	 * Returns whether the index of the children by type has been built.
+	 */
+	boolean hasChildIndex() {
+		return childIndex!=null;
+	}
+	
+	/**
+	 * Builds the index of the children by type, unless it already exists.
+	 */
+	ChildIndex buildChildIndex() {
+		ChildIndex index=childIndex;
+		if (index==null) childIndex=index=new ChildIndex(children());
+		return index;
 	}
 	
 	@Override
 	public boolean equals(Object obj) {
+		if (obj==this) return true;
 		if (!(obj instanceof Memento)) return false;
 		Memento mem=(Memento)obj;
-		return mem.properties.equals(properties) && 
-				mem.children.equals(children) &&
+		if (cachesDigest() && mem.cachesDigest() && digest()!=mem.digest()) return false;
+		return mem.properties().equals(properties()) && 
+				mem.children().equals(children()) &&
 				(type==null ? mem.type==null : type.equals(mem.type));
 	}
 	
+	/**
+	 * Returns a hash code computed from the {@linkplain #digest() digest} of this memento, thus covering its type,
+	 * properties and all its descendants.
+	 */
 	@Override
 	public int hashCode() {
-		return properties.hashCode();
+		long value=digest();
+		return (int)(value ^ (value >>> 32));
+	}
+	
+	/**
+	 * Returns a 64-bit digest of this memento and all its descendants. The digest is computed from the type and the
+	 * properties of the memento, and the digests of its children in order. Equal mementos have equal digests, so a
+	 * changed digest shows that the memento has been modified. Different mementos have the same digest only with a
+	 * negligible probability, unless they have been crafted to do so.
+	 * <p>
+	 * The digests are cached: modifying a memento invalidates the digest of the memento and its ancestors, and the
+	 * digest of the unmodified descendants is reused when it is recomputed. Therefore, after the first call, this
+	 * method takes constant time while the memento is not modified, and {@link #equals(Object)} returns {@code false}
+	 * in constant time for mementos with different digests. Frozen mementos compute their digests at most once.
+	 * <p>
+	 * Getting an array property counts as a modification, as the array is returned by reference and the caller may
+	 * modify it. Thus an array must be got again to be modified after the digest has been computed.
+	 * @return the digest of this memento
+	 */
+	public long digest() {
+		if (digestValid) return digest;
+		long value=computeDigest();
+		digest=value;
+		digestValid=true;
+		return value;
 	}
 	/**
 	 * Returns the type of the memento.
@@ -114,7 +431,7 @@ public class Memento implements Iterable<Memento> {
 	public Memento putString(String key,String value) {
 		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(value, "null value");
-		properties.put(key, value);
+		storeRef(key, PropertyTable.STRING, value);
 		return this;
 	}
 	/**
@@ -126,7 +443,7 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Memento putInt(String key,int value) {
 		Objects.requireNonNull(key, "null key");
-		properties.put(key, value);
+		storeBits(key, PropertyTable.INT, value);
 		return this;
 	}
 	/**
@@ -138,7 +455,7 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Memento putLong(String key,long value) {
 		Objects.requireNonNull(key, "null key");
-		properties.put(key, value);
+		storeBits(key, PropertyTable.LONG, value);
 		return this;
 	}
 	/**
@@ -150,7 +467,7 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Memento putFloat(String key,float value) {
 		Objects.requireNonNull(key, "null key");
-		properties.put(key, value);
+		storeBits(key, PropertyTable.FLOAT, Float.floatToRawIntBits(value));
 		return this;
 	}
 	/**
@@ -162,7 +479,7 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Memento putDouble(String key,double value) {
 		Objects.requireNonNull(key, "null key");
-		properties.put(key, value);
+		storeBits(key, PropertyTable.DOUBLE, Double.doubleToRawLongBits(value));
 		return this;
 	}
 	/**
@@ -174,7 +491,7 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Memento putBoolean(String key,boolean value) {
 		Objects.requireNonNull(key, "null key");
-		properties.put(key, value);
+		storeBits(key, PropertyTable.BOOLEAN, value ? 1 : 0);
 		return this;
 	}
 	/**
@@ -186,7 +503,7 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Memento putChar(String key,char value) {
 		Objects.requireNonNull(key, "null key");
-		properties.put(key, value);
+		storeBits(key, PropertyTable.CHAR, value);
 		return this;
 	}
 	/**
@@ -202,7 +519,7 @@ public class Memento implements Iterable<Memento> {
 		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(value, "null value");
 		for (String s: value) Objects.requireNonNull(s, "null array element");
-		properties.put(key,new StringArray(value));
+		storeRef(key, PropertyTable.STRING_ARRAY, new StringArray(value));
 		return this;
 	}
 	/**
@@ -228,7 +545,7 @@ public class Memento implements Iterable<Memento> {
 	public Memento putIntArray(String key,int[] value) {
 		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(value, "null value");
-		properties.put(key,new IntArray(value));
+		storeRef(key, PropertyTable.INT_ARRAY, new IntArray(value));
 		return this;
 	}
 	/**
@@ -245,7 +562,7 @@ public class Memento implements Iterable<Memento> {
 		Objects.requireNonNull(value, "null value");
 		int[] array=new int[value.size()];
 		for (int i=0; i<array.length; i++) array[i]=value.get(i);
-		properties.put(key,new IntArray(array));
+		storeRef(key, PropertyTable.INT_ARRAY, new IntArray(array));
 		return this;
 	}
 	/**
@@ -259,9 +576,15 @@ public class Memento implements Iterable<Memento> {
 	public Memento putByteArray(String key,byte[] value) {
 		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(value, "null value");
-		properties.put(key,new ByteArray(value));
+		storeRef(key, PropertyTable.BYTE_ARRAY, new ByteArray(value));
 		return this;
 	}
+	/**
+	 * Creates a byte array property from a wrapper created by a decoder.
+	 */
+	void putByteArray(String key,ByteArray value) {
+		storeRef(key, PropertyTable.BYTE_ARRAY, value);
+	}
 	/**
 	 * Creates a double array property. If a property with the given key
 	 * already exists, it is replaced. The array is stored by value, no further
@@ -273,7 +596,7 @@ public class Memento implements Iterable<Memento> {
 	public Memento putDoubleArray(String key,double[] value) {
 		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(value, "null value");
-		properties.put(key,new DoubleArray(value));
+		storeRef(key, PropertyTable.DOUBLE_ARRAY, new DoubleArray(value));
 		return this;
 	}
 	/**
@@ -288,13 +611,9 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public Class<?> getPropertyType(String key) {
 		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return null;
-		if (value.getClass()==StringArray.class) return String[].class;
-		if (value.getClass()==IntArray.class) return Integer[].class;
-		if (value.getClass()==ByteArray.class) return Byte[].class;
-		if (value.getClass()==DoubleArray.class) return Double[].class;
-		return value.getClass();
+		PropertyTable table=properties();
+		int slot=table.find(key);
+		return slot==-1 ? null : PropertyTable.typeOf(table.tag(slot));
 	}
 	
 	/**
@@ -306,7 +625,67 @@ public class Memento implements Iterable<Memento> {
 	 */
 	public boolean hasProperty(String key) {
 		Objects.requireNonNull(key, "null key");
-		return properties.containsKey(key);
+		return properties().find(key)!=-1;
+	}
+	/**
+	 * Finds the property with the given key and type in a property table.
+	 * @return the slot of the property
+	 */
+	private static int find(PropertyTable table, String key, byte tag) throws TypeMismatchException,NoSuchPropertyException {
+		Objects.requireNonNull(key, "null key");
+		int slot=table.find(key);
+		if (slot==-1) throw NoSuchPropertyException.of(key);
+		if (table.tag(slot)!=tag) throw typeMismatch(table, slot, tag);
+		return slot;
+	}
+	/**
+	 * Creates the exception reporting that a property has a different type than requested.
+	 */
+	private static TypeMismatchException typeMismatch(PropertyTable table, int slot, byte tag) {
+		return TypeMismatchException.of(table.key(slot), PropertyTable.typeOf(table.tag(slot)), PropertyTable.typeOf(tag));
+	}
+	/**
+	 * Finds the property with the given key and type in a property table, if it exists.
+	 * @return the slot of the property, or -1 if no property with the given key exists
+	 */
+	private static int findOptional(PropertyTable table, String key, byte tag) throws TypeMismatchException {
+		Objects.requireNonNull(key, "null key");
+		int slot=table.find(key);
+		if (slot!=-1 && table.tag(slot)!=tag) throw typeMismatch(table, slot, tag);
+		return slot;
+	}
+	/**
+	 * Looks up the property with the given key, and stores its type and value in a result holder. The key is looked up
+	 * only once, and no exception is thrown for a missing property or a different type: the typed getters of the
+	 * result return the provided default value instead. The holder can be reused for any number of lookups.
+	 * @param key the key of the property
+	 * @param result the holder to store the result in
+	 * @return the result holder
+	 */
+	public PropertyLookup lookup(String key, PropertyLookup result) {
+		Objects.requireNonNull(key, "null key");
+		Objects.requireNonNull(result, "null result");
+		PropertyTable table=properties();
+		int slot=table.find(key);
+		if (slot!=-1 && PropertyTable.isArray(table.tag(slot))) {
+			// the array is returned by reference
+			table=arrayProperties();
+			slot=table.find(key);
+		}
+		if (slot==-1)
+			result.clear();
+		else
+			result.set(table.tag(slot), table.bits(slot), table.ref(slot));
+		return result;
+	}
+	/**
+	 * Looks up the property with the given key in the same way as {@link #lookup(String, PropertyLookup)}, storing the
+	 * result in a new holder.
+	 * @param key the key of the property
+	 * @return the result of the lookup
+	 */
+	public PropertyLookup lookup(String key) {
+		return lookup(key, new PropertyLookup());
 	}
 	/**
 	 * Removes the property with the given key.
@@ -314,7 +693,8 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public void removeProperty(String key) throws NoSuchPropertyException {
-		if (properties.remove(key)==null) throw new NoSuchPropertyException();
+		Objects.requireNonNull(key, "null key");
+		if (!deleteProperty(key)) throw NoSuchPropertyException.of(key);
 	}
 	/**
 	 * Returns the value of the String property identified by the given key.
@@ -324,11 +704,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public String getString(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=String.class) throw new TypeMismatchException();
-		return (String)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.STRING);
+		return (String)table.ref(slot);
 	}
 	/**
 	 * Returns the value of the String property identified by the given key. If
@@ -340,11 +718,10 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public String getString(String key,String defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=String.class) throw new TypeMismatchException();
-		return (String)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.STRING);
+		if (slot==-1) return defaultValue;
+		return (String)table.ref(slot);
 	}
 	/**
 	 * Returns the value of the integer property identified by the given key.
@@ -354,11 +731,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public int getInt(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=Integer.class) throw new TypeMismatchException();
-		return (Integer)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.INT);
+		return (int)table.bits(slot);
 	}
 	/**
 	 * Returns the value of the integer property identified by the given key. If
@@ -370,11 +745,10 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public int getInt(String key,int defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=Integer.class) throw new TypeMismatchException();
-		return (Integer)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.INT);
+		if (slot==-1) return defaultValue;
+		return (int)table.bits(slot);
 	}
 	/**
 	 * Returns the value of the long property identified by the given key.
@@ -384,11 +758,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public long getLong(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=Long.class) throw new TypeMismatchException();
-		return (Long)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.LONG);
+		return table.bits(slot);
 	}
 	/**
 	 * Returns the value of the long property identified by the given key. If
@@ -400,11 +772,10 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public long getLong(String key,long defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=Long.class) throw new TypeMismatchException();
-		return (Long)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.LONG);
+		if (slot==-1) return defaultValue;
+		return table.bits(slot);
 	}
 	/**
 	 * Returns the value of the float property identified by the given key.
@@ -414,11 +785,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public float getFloat(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=Float.class) throw new TypeMismatchException();
-		return (Float)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.FLOAT);
+		return Float.intBitsToFloat((int)table.bits(slot));
 	}
 	/**
 	 * Returns the value of the float property identified by the given key. If
@@ -430,11 +799,10 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public float getFloat(String key,float defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=Float.class) throw new TypeMismatchException();
-		return (Float)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.FLOAT);
+		if (slot==-1) return defaultValue;
+		return Float.intBitsToFloat((int)table.bits(slot));
 	}
 	/**
 	 * Returns the value of the double property identified by the given key.
@@ -444,11 +812,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public double getDouble(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=Double.class) throw new TypeMismatchException();
-		return (Double)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.DOUBLE);
+		return Double.longBitsToDouble(table.bits(slot));
 	}
 	/**
 	 * Returns the value of the double property identified by the given key. If
@@ -460,11 +826,10 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public double getDouble(String key,double defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=Double.class) throw new TypeMismatchException();
-		return (Double)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.DOUBLE);
+		if (slot==-1) return defaultValue;
+		return Double.longBitsToDouble(table.bits(slot));
 	}
 	/**
 	 * Returns the value of the boolean property identified by the given key.
@@ -474,11 +839,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public boolean getBoolean(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=Boolean.class) throw new TypeMismatchException();
-		return (Boolean)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.BOOLEAN);
+		return table.bits(slot)!=0;
 	}
 	/**
 	 * Returns the value of the boolean property identified by the given key. If
@@ -490,11 +853,10 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public boolean getBoolean(String key,boolean defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=Boolean.class) throw new TypeMismatchException();
-		return (Boolean)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.BOOLEAN);
+		if (slot==-1) return defaultValue;
+		return table.bits(slot)!=0;
 	}
 	/**
 	 * Returns the value of the character property identified by the given key.
@@ -504,11 +866,9 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public char getChar(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=Character.class) throw new TypeMismatchException();
-		return (Character)value;
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.CHAR);
+		return (char)table.bits(slot);
 	}
 	/**
 	 * Returns the value of the character property identified by the given key. If
@@ -520,26 +880,25 @@ public class Memento implements Iterable<Memento> {
 	 * @throws TypeMismatchException if the property is of a different type
 	 */
 	public char getChar(String key,char defaultValue) throws TypeMismatchException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) return defaultValue;
-		if (value.getClass()!=Character.class) throw new TypeMismatchException();
-		return (Character)value;
+		PropertyTable table=properties();
+		int slot=findOptional(table, key, PropertyTable.CHAR);
+		if (slot==-1) return defaultValue;
+		return (char)table.bits(slot);
 	}
 	/**
 	 * Returns the value of the string array property identified by the given key.
-	 * The array is returned by reference.
+	 * The array is returned by reference: modifying it changes the property. Once {@link #freeze()},
+	 * {@link #digest()}, {@link #hashCode()} or {@link #equals(Object)} has been called on this memento or one of its
+	 * ancestors, get the array again before modifying it.
 	 * @param key the key of the property to retrieve
 	 * @return the value of the property
 	 * @throws TypeMismatchException if the property is of a different type
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public String[] getStringArray(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=StringArray.class) throw new TypeMismatchException();
-		return ((StringArray)value).getArray();
+		PropertyTable table=arrayProperties();
+		int slot=find(table, key, PropertyTable.STRING_ARRAY);
+		return ((StringArray)table.ref(slot)).getArray();
 	}
 	/**
 	 * Adds the value of the string array property identified by the given key to
@@ -550,27 +909,25 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public void getStringArray(String key,List<String> list) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(list, "null list");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=StringArray.class) throw new TypeMismatchException();
-		list.addAll(Arrays.asList(((StringArray)value).getArray()));
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.STRING_ARRAY);
+		list.addAll(Arrays.asList(((StringArray)table.ref(slot)).getArray()));
 	}
 	/**
 	 * Returns the value of the integer array property identified by the given key.
-	 * The array is returned by reference.
+	 * The array is returned by reference: modifying it changes the property. Once {@link #freeze()},
+	 * {@link #digest()}, {@link #hashCode()} or {@link #equals(Object)} has been called on this memento or one of its
+	 * ancestors, get the array again before modifying it.
 	 * @param key the key of the property to retrieve
 	 * @return the value of the property
 	 * @throws TypeMismatchException if the property is of a different type
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public int[] getIntArray(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=IntArray.class) throw new TypeMismatchException();
-		return ((IntArray)value).getArray();
+		PropertyTable table=arrayProperties();
+		int slot=find(table, key, PropertyTable.INT_ARRAY);
+		return ((IntArray)table.ref(slot)).getArray();
 	}
 	/**
 	 * Adds the value of the integer array property identified by the given key to
@@ -581,78 +938,143 @@ public class Memento implements Iterable<Memento> {
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public void getIntArray(String key,List<Integer> list) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
 		Objects.requireNonNull(list, "null list");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=IntArray.class) throw new TypeMismatchException();
-		for (int s:((IntArray)value).getArray()) list.add(s);
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.INT_ARRAY);
+		for (int s:((IntArray)table.ref(slot)).getArray()) list.add(s);
 	}
 	/**
 	 * Returns the value of the byte array property identified by the given key.
-	 * The array is returned by reference.
+	 * The array is returned by reference: modifying it changes the property. Once {@link #freeze()},
+	 * {@link #digest()}, {@link #hashCode()} or {@link #equals(Object)} has been called on this memento or one of its
+	 * ancestors, get the array again before modifying it.
 	 * @param key the key of the property to retrieve
 	 * @return the value of the property
 	 * @throws TypeMismatchException if the property is of a different type
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public byte[] getByteArray(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=ByteArray.class) throw new TypeMismatchException();
-		return ((ByteArray)value).getArray();
+		PropertyTable table=arrayProperties();
+		int slot=find(table, key, PropertyTable.BYTE_ARRAY);
+		return ((ByteArray)table.ref(slot)).getArray();
+	}
+	/**
+	 * Returns the value of the byte array property identified by the given key as a read-only buffer. The buffer is
+	 * positioned at the first byte, and its limit is the length of the array.
+	 * <p>
+	 * Byte arrays loaded from a binary file written with the {@link BinaryFeature#BLOBS} feature are stored in the
+	 * file, and this method returns them without reading them into memory; {@link #getByteArray(String)} copies
+	 * them into an array on the first call.
+	 * @param key the key of the property to retrieve
+	 * @return the value of the property
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws NoSuchPropertyException if the key doesn't denote a property
+	 */
+	public ByteBuffer getByteBuffer(String key) throws TypeMismatchException,NoSuchPropertyException {
+		PropertyTable table=properties();
+		int slot=find(table, key, PropertyTable.BYTE_ARRAY);
+		return ((ByteArray)table.ref(slot)).getBuffer();
 	}
 	/**
 	 * Returns the value of the double array property identified by the given key.
-	 * The array is returned by reference.
+	 * The array is returned by reference: modifying it changes the property. Once {@link #freeze()},
+	 * {@link #digest()}, {@link #hashCode()} or {@link #equals(Object)} has been called on this memento or one of its
+	 * ancestors, get the array again before modifying it.
 	 * @param key the key of the property to retrieve
 	 * @return the value of the property
 	 * @throws TypeMismatchException if the property is of a different type
 	 * @throws NoSuchPropertyException if the key doesn't denote a property
 	 */
 	public double[] getDoubleArray(String key) throws TypeMismatchException,NoSuchPropertyException {
-		Objects.requireNonNull(key, "null key");
-		Object value=properties.get(key);
-		if (value==null) throw new NoSuchPropertyException();
-		if (value.getClass()!=DoubleArray.class) throw new TypeMismatchException();
-		return ((DoubleArray)value).getArray();
+		PropertyTable table=arrayProperties();
+		int slot=find(table, key, PropertyTable.DOUBLE_ARRAY);
+		return ((DoubleArray)table.ref(slot)).getArray();
 	}
 	/**
-	 * Returns an iterator over they keys of this memento's properties. While the
-	 * iterator is used, the property putter methods should not be called.
+	 * Returns an iterator over they keys of this memento's properties, in the
+	 * order the properties were created. While the iterator is used, the property
+	 * putter methods should not be called.
 	 * @return an iterator over the keys of the properties
 	 */
 	public Iterator<String> iterateProperties() {
-		return properties.keySet().iterator();
+		return new Iterator<String>() {
+			private int next;
+			private String last;
+			
+			@Override
+			public boolean hasNext() {
+				return next<properties().size();
+			}
+			
+			@Override
+			public String next() {
+				if (next>=properties().size()) throw new NoSuchElementException();
+				last=properties().key(next++);
+				return last;
+			}
+			
+			@Override
+			public void remove() {
+				if (last==null) throw new IllegalStateException();
+				try {
+					removeProperty(last);
+				} catch (NoSuchPropertyException e) {
+					throw new ConcurrentModificationException();
+				}
+				next--;
+				last=null;
+			}
+		};
 	}
 	/**
 	 * Returns an iterator over this memento's children.
 	 * @return an iterator over this memento's children
 	 */
 	public Iterator<Memento> iterateChildren() {
-		return children.iterator();
+		final Iterator<Memento> iterator=children().iterator();
+		return new Iterator<Memento>() {
+			private Memento last;
+			
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+			
+			@Override
+			public Memento next() {
+				return last=iterator.next();
+			}
+			
+			@Override
+			public void remove() {
+				iterator.remove();
+				invalidate();
+				if (last.parent==Memento.this) last.parent=null;
+				// the positions of the following children have changed
+				childIndex=null;
+			}
+		};
 	}
 	/**
 	 * Returns an immutable view of this memento's children.
 	 * @return an immutable view of this memento's children
 	 */
 	public List<Memento> getChildren() {
-		return Collections.unmodifiableList(children);
+		return Collections.unmodifiableList(children());
 	}
 	/**
 	 * Returns the number of this memento's children.
 	 * @return the number of this memento's children
 	 */
 	public int getChildCount() {
-		return children.size();
+		return children().size();
 	}
 	/**
 	 * Returns the number of this memento's properties.
 	 * @return the number of this memento's properties
 	 */
 	public int getPropertyCount() {
-		return properties.size();
+		return properties().size();
 	}
 	/**
 	 * Returns the first child of this memento. This is a convenience method
@@ -661,8 +1083,8 @@ public class Memento implements Iterable<Memento> {
 	 * @throws MementoFormatException if this memento has no children
 	 */
 	public Memento getFirstChild() throws MementoFormatException {
-		if (children.isEmpty()) throw new MementoFormatException("No children");
-		return children.get(0);
+		if (children().isEmpty()) throw new MementoFormatException("No children");
+		return children().get(0);
 	}
 	/**
 	 * Returns the first child of this memento with the specified type.
@@ -671,8 +1093,27 @@ public class Memento implements Iterable<Memento> {
 	 * @throws MementoFormatException if this memento has no child with the given type
 	 */
 	public Memento getFirstChildWithType(String type) throws MementoFormatException {
-		for (Memento child:children) if (Objects.equals(type, child.getType())) return child;
-		throw new MementoFormatException("No child with type "+type);
+		ChildIndex.Positions positions=positions(type);
+		if (positions==null) throw new MementoFormatException("No child with type "+type);
+		return children.get(positions.get(0));
+	}
+	/**
+	 * Returns an immutable view of this memento's children with the specified type, in the order they appear among
+	 * all the children. The children are looked up in an index, so the view does not examine the other children.
+	 * @param type the type; can be {@code null}
+	 * @return an immutable view of the children with the given type
+	 */
+	public List<Memento> getChildrenWithType(String type) {
+		return new ChildrenWithType(type);
+	}
+	/**
+	 * Returns the number of this memento's children with the specified type.
+	 * @param type the type; can be {@code null}
+	 * @return the number of the children with the given type
+	 */
+	public int getChildCountWithType(String type) {
+		ChildIndex.Positions positions=positions(type);
+		return positions==null ? 0 : positions.size();
 	}
 	/**
 	 * Creates a new child of this memento. The new child will be the last
@@ -687,8 +1128,9 @@ public class Memento implements Iterable<Memento> {
 	 * @return the newly created child memento
 	 */
 	public Memento createChild(String type) {
+		checkMutable();
 		Memento child=new Memento(type);
-		children.add(child);
+		addChild(child);
 		return child;
 	}
 	/**
@@ -699,10 +1141,114 @@ public class Memento implements Iterable<Memento> {
 	 * @param memento the memento to copy into this
 	 */
 	public void copyFrom(Memento memento) {
-		properties.putAll(memento.properties);
-		for (Memento child:memento.children)
+		storeAll(memento.properties());
+		for (Memento child:memento.children())
 			createChild().copyFrom(child);
 	}
+	/**
+	 * Returns whether this memento is frozen. Frozen mementos, and all their descendants, cannot be modified.
+	 * @return {@code true} if this memento is frozen
+	 * @see #freeze()
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+	/**
+	 * Returns an immutable snapshot of this memento. The snapshot and its descendants are frozen: their putter
+	 * methods, {@link #removeProperty(String)}, {@link #createChild(String)} and the other modifying methods throw
+	 * {@link UnsupportedOperationException}. Frozen mementos can be read from any number of threads without
+	 * synchronization, provided that they are published safely, and that the arrays returned by the getters are
+	 * not modified.
+	 * <p>
+	 * The snapshot shares the properties with this memento, which copies them only when it is modified next, and
+	 * frozen children are shared as well. The snapshot is also kept by this memento, and returned again until this
+	 * memento or one of its descendants is modified. Thus freezing an unmodified memento takes constant time, and
+	 * freezing it after modifications takes time proportional to the number of mementos modified and their
+	 * children; freezing a frozen memento returns the memento itself.
+	 * <p>
+	 * This memento remains mutable, and later modifications of it do not affect the snapshot. Getting an array
+	 * property of this memento counts as a modification, as the array is returned by reference; arrays obtained
+	 * before freezing must not be modified afterwards.
+	 * @return a frozen memento equal to this memento
+	 */
+	public Memento freeze() {
+		if (frozen) return this;
+		Memento snapshot=this.snapshot;
+		if (snapshot!=null) return snapshot;
+		PropertyTable table=shareProperties();
+		Memento[] frozenChildren=children().toArray(new Memento[0]);
+		for (int i=0; i<frozenChildren.length; i++)
+			frozenChildren[i]=frozenChildren[i].freeze();
+		snapshot=new Memento(type, table, Collections.unmodifiableList(Arrays.asList(frozenChildren)));
+		snapshot.copyDigest(this);
+		if (cachesSnapshot()) this.snapshot=snapshot;
+		return snapshot;
+	}
+	/**
+	 * Returns whether {@link #freeze()} keeps the snapshot until this memento is modified.
+	 */
+	boolean cachesSnapshot() {
+		return true;
+	}
+	/**
+	 * Returns a mutable copy of this memento, to create a modified version of a frozen memento. The properties are
+	 * shared until one of the mementos is modified. The frozen children of this memento are shared by the copy: they
+	 * can be replaced by mutable copies on demand using {@link #editChild(int)}. Mutable children are copied.
+	 * <pre>
+	 *    Memento config = ...;             // a frozen memento
+	 *    Memento edited = config.edit();
+	 *    edited.editChild(0).putInt("port", 8080);
+	 *    Memento updated = edited.freeze(); // shares all children of config except the first one
+	 * </pre>
+	 * @return a new, mutable memento equal to this memento
+	 */
+	public Memento edit() {
+		Memento copy=new Memento(type);
+		copy.properties=shareProperties();
+		copy.propertiesShared=true;
+		copy.arraysShared=true;
+		for (Memento child: children()) {
+			if (child.frozen) {
+				copy.children.add(child);
+			} else {
+				Memento childCopy=child.edit();
+				childCopy.parent=copy;
+				copy.children.add(childCopy);
+			}
+		}
+		copy.copyDigest(this);
+		// the copy is equal to this memento, so it has the same snapshot
+		copy.snapshot=frozen ? this : snapshot;
+		return copy;
+	}
+	/**
+	 * Takes over the digest of an equal memento, if it is up to date.
+	 */
+	private void copyDigest(Memento memento) {
+		if (memento.cachesDigest() && memento.digestValid) {
+			digest=memento.digest;
+			digestValid=true;
+		}
+	}
+	/**
+	 * Returns a child of this memento for modification. If the child is frozen, it is replaced by its mutable copy
+	 * created by {@link #edit()}.
+	 * @param index the index of the child
+	 * @return the mutable child at the given index
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 * @throws UnsupportedOperationException if this memento is frozen
+	 */
+	public Memento editChild(int index) {
+		checkMutable();
+		List<Memento> list=children();
+		Memento child=list.get(index);
+		if (child.frozen) {
+			child=child.edit();
+			child.parent=this;
+			list.set(index, child);
+		}
+		return child;
+	}
 	/**
 	 * Returns the same as {@link #iterateChildren()}.
 	 * @return an iterator over the child mementos
@@ -711,4 +1257,53 @@ public class Memento implements Iterable<Memento> {
 	public Iterator<Memento> iterator() {
 		return iterateChildren();
 	}
+	
+	/**
+	 * The view of the children with a given type, returned by {@link #getChildrenWithType(String)}.
+	 */
+	private final class ChildrenWithType extends AbstractList<Memento> implements RandomAccess {
+		private final String type;
+		
+		ChildrenWithType(String type) {
+			this.type=type;
+		}
+		
+		@Override
+		public Memento get(int index) {
+			ChildIndex.Positions positions=positions(type);
+			if (positions==null) throw new IndexOutOfBoundsException("Index: "+index+", size: 0");
+			return children.get(positions.get(index));
+		}
+		
+		@Override
+		public int size() {
+			return getChildCountWithType(type);
+		}
+		
+		@Override
+		public Iterator<Memento> iterator() {
+			// look up the positions once, instead of at every step
+			final ChildIndex.Positions positions=positions(type);
+			final int size=positions==null ? 0 : positions.size();
+			return new Iterator<Memento>() {
+				private int next;
+				
+				@Override
+				public boolean hasNext() {
+					return next<size;
+				}
+				
+				@Override
+				public Memento next() {
+					if (next>=size) throw new NoSuchElementException();
+					return children.get(positions.get(next++));
+				}
+				
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
 }
@@ -22,4 +22,15 @@ public class MementoFormatException extends Exception {
 	public MementoFormatException(String message, Throwable cause) {
 		super(message, cause);
 	}
+
+	/**
+	 * Creates an exception with suppression and the stack trace enabled or disabled. An exception without a writable
+	 * stack trace is cheap to create, as the stack is not walked; the methods accessing the properties of
+	 * {@link Memento} and {@link MementoReader} throw such exceptions, and build their messages only when requested.
+	 *
+	 * @see Exception#Exception(String, Throwable, boolean, boolean)
+	 */
+	protected MementoFormatException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
 }
@@ -0,0 +1,601 @@
+package hu.kazocsaba.memento;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A compiled path selecting descendants of a memento, or one of their properties. A path is compiled once by
+ * {@link #compile(String)}, and can then be evaluated any number of times without parsing it again.
+ * <pre>
+ *    private static final MementoPath PORT = MementoPath.compile("cluster/node[id=7]/@port");
+ *
+ *    Integer port = (Integer)PORT.findFirstValue(config);
+ * </pre>
+ * The syntax of the paths is the following:
+ * <ul>
+ * <li>A path consists of steps separated by slashes. The first step selects children of the memento the path is
+ * evaluated on, and each further step selects children of the mementos selected by the previous step. A step is either
+ * a type, selecting the children with that type, or {@code *}, selecting all children.</li>
+ * <li>A step can be followed by any number of predicates in brackets, keeping the mementos matching all of them.
+ * {@code [key]} matches the mementos having a property with the key, and {@code [key=value]} matches those whose
+ * property with the key has the given value. The value matches a string property equal to it, a numeric property if
+ * it is a number equal to the value of the property, a boolean property if it is {@code true} or {@code false}
+ * accordingly, and a character property if it consists of that character. Array properties never match a value.</li>
+ * <li>The path can end with {@code @key}, which selects the property with the key of the mementos selected by the
+ * steps. The mementos without such a property are not selected. A path consisting only of {@code @key} selects a
+ * property of the memento the path is evaluated on.</li>
+ * <li>Types, keys and values can be enclosed in single or double quotes; inside, the quote character is written
+ * twice. Quotes are required if a type or a key contains any of the characters {@code /[]=@*'"}, or if it is empty.
+ * Unquoted values extend to the closing bracket.</li>
+ * </ul>
+ * The mementos are visited in depth-first order, the same order in which they are stored, and the children of each
+ * type are looked up using {@link Memento#getChildrenWithType(String)}. The methods returning the first match stop as
+ * soon as it is found.
+ * <p>
+ * Paths can also be evaluated on a {@link MementoReader}, reading the binary format without loading it in memory: the
+ * mementos not matching a step are skipped with {@link MementoReader#skipMemento()}, and only the selected memento is
+ * loaded. When reading data written by {@link MementoWriter}, the predicates of a step only see the properties that
+ * precede the first child of the memento.
+ * <p>
+ * Instances are immutable, and can be used by multiple threads concurrently.
+ *
+ * @author Kazó Csaba
+ */
+public final class MementoPath {
+	/**
+	 * The characters that cannot appear in unquoted types and keys.
+	 */
+	private static final String SPECIAL="/[]=@*'\"";
+	/**
+	 * The result of the streaming search if no match is found, as {@code null} is a valid value.
+	 */
+	private static final Object NOT_FOUND=new Object();
+
+	private final String source;
+	private final Step[] steps;
+	/**
+	 * The key of the selected property, or {@code null} if the path selects mementos.
+	 */
+	private final String property;
+
+	private MementoPath(String source, Step[] steps, String property) {
+		this.source=source;
+		this.steps=steps;
+		this.property=property;
+	}
+
+	/**
+	 * Compiles a path.
+	 *
+	 * @param path the path
+	 * @return the compiled path
+	 * @throws IllegalArgumentException if the syntax of the path is invalid
+	 */
+	public static MementoPath compile(String path) {
+		Objects.requireNonNull(path, "null path");
+		return new Parser(path).parse();
+	}
+
+	/**
+	 * Returns the key of the property selected by this path.
+	 *
+	 * @return the key of the property, or {@code null} if the path selects mementos
+	 */
+	public String getProperty() {
+		return property;
+	}
+
+	/**
+	 * Returns the first memento selected by this path. If the path selects a property, the memento having the
+	 * property is returned.
+	 *
+	 * @param memento the memento to evaluate the path on
+	 * @return the first selected memento, or {@code null} if there is none
+	 */
+	public Memento findFirst(Memento memento) {
+		Objects.requireNonNull(memento, "null memento");
+		return findFirst(memento, 0);
+	}
+
+	private Memento findFirst(Memento memento, int step) {
+		if (step==steps.length) return property==null || memento.hasProperty(property) ? memento : null;
+		Step current=steps[step];
+		for (Memento child: current.candidates(memento)) {
+			if (current.accepts(child)) {
+				Memento found=findFirst(child, step+1);
+				if (found!=null) return found;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns all mementos selected by this path, in depth-first order. If the path selects a property, the mementos
+	 * having the property are returned.
+	 *
+	 * @param memento the memento to evaluate the path on
+	 * @return the list of the selected mementos
+	 */
+	public List<Memento> findAll(Memento memento) {
+		Objects.requireNonNull(memento, "null memento");
+		List<Memento> result=new ArrayList<>();
+		findAll(memento, 0, result);
+		return result;
+	}
+
+	private void findAll(Memento memento, int step, List<Memento> result) {
+		if (step==steps.length) {
+			if (property==null || memento.hasProperty(property)) result.add(memento);
+			return;
+		}
+		Step current=steps[step];
+		for (Memento child: current.candidates(memento))
+			if (current.accepts(child)) findAll(child, step+1, result);
+	}
+
+	/**
+	 * Returns the value of the first property selected by this path. The values are boxed, and arrays are returned
+	 * the same way as by the getters of {@link Memento}: for example, an {@code int[]} is returned for a property with
+	 * the type {@code Integer[]}.
+	 *
+	 * @param memento the memento to evaluate the path on
+	 * @return the value of the first selected property, or {@code null} if there is none
+	 * @throws IllegalStateException if this path does not select a property
+	 */
+	public Object findFirstValue(Memento memento) {
+		checkProperty();
+		Memento found=findFirst(memento);
+		if (found==null) return null;
+		try {
+			Class<?> type=found.getPropertyType(property);
+			if (type==String.class) return found.getString(property);
+			if (type==Integer.class) return found.getInt(property);
+			if (type==Long.class) return found.getLong(property);
+			if (type==Float.class) return found.getFloat(property);
+			if (type==Double.class) return found.getDouble(property);
+			if (type==Boolean.class) return found.getBoolean(property);
+			if (type==Character.class) return found.getChar(property);
+			if (type==String[].class) return found.getStringArray(property);
+			if (type==Integer[].class) return found.getIntArray(property);
+			if (type==Byte[].class) return found.getByteArray(property);
+			if (type==Double[].class) return found.getDoubleArray(property);
+			throw new AssertionError(type);
+		} catch (MementoFormatException e) {
+			// the type has just been queried
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Reads the first memento selected by this path from a reader. The memento the path is evaluated on is the one
+	 * started by the current event of the reader, or the root memento if the reader has not been advanced yet. The
+	 * selected memento is loaded with all its descendants, and the reader is positioned at its
+	 * {@code END_MEMENTO} event. If no memento is selected, the reader is positioned at the end of the memento the
+	 * path is evaluated on.
+	 *
+	 * @param reader the reader
+	 * @return the first selected memento, or {@code null} if there is none
+	 * @throws IllegalStateException if the reader is not at the start of a memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public Memento findFirst(MementoReader reader) throws IOException, MementoFormatException {
+		Object found=search(reader, false);
+		return found==NOT_FOUND ? null : (Memento)found;
+	}
+
+	/**
+	 * Reads the value of the first property selected by this path from a reader. The memento the path is evaluated on
+	 * is the one started by the current event of the reader, or the root memento if the reader has not been advanced
+	 * yet. The values are returned the same way as by {@link #findFirstValue(Memento)}. If a property is found, the
+	 * reader is positioned at it or after it inside the same memento; otherwise it is positioned at the end of the
+	 * memento the path is evaluated on.
+	 *
+	 * @param reader the reader
+	 * @return the value of the first selected property, or {@code null} if there is none
+	 * @throws IllegalStateException if this path does not select a property, or if the reader is not at the start of
+	 * a memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public Object findFirstValue(MementoReader reader) throws IOException, MementoFormatException {
+		checkProperty();
+		Object found=search(reader, true);
+		return found==NOT_FOUND ? null : found;
+	}
+
+	private void checkProperty() {
+		if (property==null) throw new IllegalStateException("The path does not select a property: "+source);
+	}
+
+	private Object search(MementoReader reader, boolean value) throws IOException, MementoFormatException {
+		Objects.requireNonNull(reader, "null reader");
+		if (reader.getEvent()==null) reader.next();
+		if (reader.getEvent()!=MementoReader.Event.START_MEMENTO)
+			throw new IllegalStateException("Not at the start of a memento");
+		return visit(reader, 0, value);
+	}
+
+	/**
+	 * Searches a memento that has been accepted by the type of the previous step; the reader is at its
+	 * {@code START_MEMENTO} event. Unless a match is returned, the reader is left at the end of the memento.
+	 *
+	 * @param step the index of the step selecting the children of the memento
+	 * @param value whether to return the value of the property rather than the memento
+	 * @return the result, or {@link #NOT_FOUND}
+	 */
+	private Object visit(MementoReader reader, int step, boolean value) throws IOException, MementoFormatException {
+		int depth=reader.getDepth();
+		boolean last=step==steps.length;
+		Predicate[] predicates=step==0 ? Step.NO_PREDICATES : steps[step-1].predicates;
+		boolean[] satisfied=predicates.length==0 ? null : new boolean[predicates.length];
+		Memento loaded=last && !value ? new Memento(reader.getType()) : null;
+		Object found=NOT_FOUND;
+
+		MementoReader.Event event=reader.next();
+		for (; event==MementoReader.Event.PROPERTY; event=reader.next()) {
+			String key=reader.getKey();
+			for (int i=0; i<predicates.length; i++) {
+				if (predicates[i].key.equals(key)) {
+					if (!predicates[i].matches(reader)) {
+						reader.skipMemento();
+						return NOT_FOUND;
+					}
+					satisfied[i]=true;
+				}
+			}
+			if (loaded!=null)
+				copyProperty(reader, loaded);
+			else if (last && key.equals(property))
+				found=readValue(reader);
+		}
+		for (int i=0; i<predicates.length; i++) {
+			if (!satisfied[i]) {
+				skipRest(reader, depth, event);
+				return NOT_FOUND;
+			}
+		}
+
+		if (loaded!=null) {
+			loadRest(reader, loaded, event);
+			return property==null || loaded.hasProperty(property) ? loaded : NOT_FOUND;
+		}
+		if (last) {
+			if (found!=NOT_FOUND) return found;
+			// look for the property among the remaining entries, as they can be interleaved with the children
+			for (; !isEnd(reader, depth, event); event=reader.next()) {
+				if (event==MementoReader.Event.START_MEMENTO)
+					reader.skipMemento();
+				else if (event==MementoReader.Event.PROPERTY && reader.getKey().equals(property))
+					return readValue(reader);
+			}
+			return NOT_FOUND;
+		}
+		Step current=steps[step];
+		for (; !isEnd(reader, depth, event); event=reader.next()) {
+			if (event!=MementoReader.Event.START_MEMENTO) continue;
+			if (current.acceptsType(reader.getType())) {
+				found=visit(reader, step+1, value);
+				if (found!=NOT_FOUND) return found;
+			} else {
+				reader.skipMemento();
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	private static boolean isEnd(MementoReader reader, int depth, MementoReader.Event event) {
+		return event==MementoReader.Event.END_MEMENTO && reader.getDepth()==depth;
+	}
+
+	/**
+	 * Skips the remaining entries of the memento at the given depth, the first of which is the current event.
+	 */
+	private static void skipRest(MementoReader reader, int depth, MementoReader.Event event) throws IOException, MementoFormatException {
+		for (; !isEnd(reader, depth, event); event=reader.next())
+			if (event==MementoReader.Event.START_MEMENTO) reader.skipMemento();
+	}
+
+	/**
+	 * Loads the remaining entries of a memento, the first of which is the current event.
+	 */
+	private static void loadRest(MementoReader reader, Memento memento, MementoReader.Event event) throws IOException, MementoFormatException {
+		List<Memento> open=new ArrayList<>();
+		Memento current=memento;
+		for (;; event=reader.next()) {
+			if (event==MementoReader.Event.PROPERTY) {
+				copyProperty(reader, current);
+			} else if (event==MementoReader.Event.START_MEMENTO) {
+				open.add(current);
+				current=current.createChild(reader.getType());
+			} else {
+				if (open.isEmpty()) return;
+				current=open.remove(open.size()-1);
+			}
+		}
+	}
+
+	private static void copyProperty(MementoReader reader, Memento memento) throws IOException, MementoFormatException {
+		String key=reader.getKey();
+		Class<?> type=reader.getPropertyType();
+		if (type==String.class) memento.putString(key, reader.getString());
+		else if (type==Integer.class) memento.putInt(key, reader.getInt());
+		else if (type==Long.class) memento.putLong(key, reader.getLong());
+		else if (type==Float.class) memento.putFloat(key, reader.getFloat());
+		else if (type==Double.class) memento.putDouble(key, reader.getDouble());
+		else if (type==Boolean.class) memento.putBoolean(key, reader.getBoolean());
+		else if (type==Character.class) memento.putChar(key, reader.getChar());
+		else if (type==String[].class) memento.putStringArray(key, reader.getStringArray());
+		else if (type==Integer[].class) memento.putIntArray(key, reader.getIntArray());
+		else if (type==Byte[].class) memento.putByteArray(key, reader.getByteArray());
+		else if (type==Double[].class) memento.putDoubleArray(key, reader.getDoubleArray());
+		else throw new AssertionError(type);
+	}
+
+	private static Object readValue(MementoReader reader) throws IOException, MementoFormatException {
+		Class<?> type=reader.getPropertyType();
+		if (type==String.class) return reader.getString();
+		if (type==Integer.class) return reader.getInt();
+		if (type==Long.class) return reader.getLong();
+		if (type==Float.class) return reader.getFloat();
+		if (type==Double.class) return reader.getDouble();
+		if (type==Boolean.class) return reader.getBoolean();
+		if (type==Character.class) return reader.getChar();
+		if (type==String[].class) return reader.getStringArray();
+		if (type==Integer[].class) return reader.getIntArray();
+		if (type==Byte[].class) return reader.getByteArray();
+		if (type==Double[].class) return reader.getDoubleArray();
+		throw new AssertionError(type);
+	}
+
+	/**
+	 * Returns the path this object was compiled from.
+	 */
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	/**
+	 * A step of the path, selecting children by type and predicates.
+	 */
+	private static final class Step {
+		static final Predicate[] NO_PREDICATES={};
+
+		/**
+		 * The type of the selected children, or {@code null} to select all children.
+		 */
+		final String type;
+		final Predicate[] predicates;
+
+		Step(String type, Predicate[] predicates) {
+			this.type=type;
+			this.predicates=predicates;
+		}
+
+		boolean acceptsType(String childType) {
+			return type==null || type.equals(childType);
+		}
+
+		/**
+		 * Returns the children of a memento accepted by the type of this step.
+		 */
+		List<Memento> candidates(Memento memento) {
+			return type==null ? memento.getChildren() : memento.getChildrenWithType(type);
+		}
+
+		/**
+		 * Returns whether a memento returned by {@link #candidates(Memento)} matches the predicates.
+		 */
+		boolean accepts(Memento memento) {
+			for (Predicate predicate: predicates)
+				if (!predicate.matches(memento)) return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A predicate of a step. The value is parsed when the path is compiled, so that it can be compared to numeric
+	 * properties directly.
+	 */
+	private static final class Predicate {
+		final String key;
+		/**
+		 * The value, or {@code null} if the predicate only requires the property to exist.
+		 */
+		private final String value;
+		private final boolean integral;
+		private final long longValue;
+		private final boolean numeric;
+		private final double doubleValue;
+		private final float floatValue;
+
+		Predicate(String key, String value) {
+			this.key=key;
+			this.value=value;
+			long parsedLong=0;
+			boolean parsedIntegral=false;
+			double parsedDouble=0;
+			float parsedFloat=0;
+			boolean parsedNumeric=false;
+			if (value!=null && isNumber(value)) {
+				try {
+					parsedLong=Long.parseLong(value);
+					parsedIntegral=true;
+				} catch (NumberFormatException e) {}
+				try {
+					parsedDouble=Double.parseDouble(value);
+					parsedFloat=Float.parseFloat(value);
+					parsedNumeric=true;
+				} catch (NumberFormatException e) {}
+			}
+			integral=parsedIntegral;
+			longValue=parsedLong;
+			numeric=parsedNumeric;
+			doubleValue=parsedDouble;
+			floatValue=parsedFloat;
+		}
+
+		/**
+		 * Returns whether a string looks like a decimal number. The parse methods of the numeric classes also accept
+		 * surrounding whitespace, type suffixes and hexadecimal notation, which are not numbers in a path.
+		 */
+		private static boolean isNumber(String text) {
+			if (text.isEmpty()) return false;
+			char first=text.charAt(0), last=text.charAt(text.length()-1);
+			return (first>='0' && first<='9' || first=='-' || first=='+' || first=='.') &&
+					(last>='0' && last<='9' || last=='.') && text.indexOf('x')==-1 && text.indexOf('X')==-1;
+		}
+
+		private boolean matchesLong(long property) {
+			return integral ? property==longValue : numeric && property==doubleValue;
+		}
+
+		private boolean matchesBoolean(boolean property) {
+			return value.equals(property ? "true" : "false");
+		}
+
+		private boolean matchesChar(char property) {
+			return value.length()==1 && value.charAt(0)==property;
+		}
+
+		boolean matches(Memento memento) {
+			Class<?> type=memento.getPropertyType(key);
+			if (type==null) return false;
+			if (value==null) return true;
+			try {
+				if (type==String.class) return value.equals(memento.getString(key));
+				if (type==Integer.class) return matchesLong(memento.getInt(key));
+				if (type==Long.class) return matchesLong(memento.getLong(key));
+				if (type==Float.class) return numeric && memento.getFloat(key)==floatValue;
+				if (type==Double.class) return numeric && memento.getDouble(key)==doubleValue;
+				if (type==Boolean.class) return matchesBoolean(memento.getBoolean(key));
+				if (type==Character.class) return matchesChar(memento.getChar(key));
+				return false;
+			} catch (MementoFormatException e) {
+				// the type has just been queried
+				throw new AssertionError(e);
+			}
+		}
+
+		/**
+		 * Returns whether the current property of a reader, having the key of this predicate, matches.
+		 */
+		boolean matches(MementoReader reader) throws IOException, MementoFormatException {
+			if (value==null) return true;
+			Class<?> type=reader.getPropertyType();
+			if (type==String.class) return value.equals(reader.getString());
+			if (type==Integer.class) return matchesLong(reader.getInt());
+			if (type==Long.class) return matchesLong(reader.getLong());
+			if (type==Float.class) return numeric && reader.getFloat()==floatValue;
+			if (type==Double.class) return numeric && reader.getDouble()==doubleValue;
+			if (type==Boolean.class) return matchesBoolean(reader.getBoolean());
+			if (type==Character.class) return matchesChar(reader.getChar());
+			return false;
+		}
+	}
+
+	/**
+	 * Parses the text of a path.
+	 */
+	private static final class Parser {
+		private final String path;
+		private int position;
+
+		Parser(String path) {
+			this.path=path;
+		}
+
+		MementoPath parse() {
+			if (path.isEmpty()) throw error("Empty path");
+			List<Step> steps=new ArrayList<>();
+			String property=null;
+			while (true) {
+				if (peek()=='@') {
+					position++;
+					property=name();
+					if (position<path.length()) throw error("The property must be at the end of the path");
+					break;
+				}
+				steps.add(step());
+				if (position==path.length()) break;
+				expect('/');
+			}
+			return new MementoPath(path, steps.toArray(new Step[steps.size()]), property);
+		}
+
+		private Step step() {
+			String type;
+			if (peek()=='*') {
+				position++;
+				type=null;
+			} else {
+				type=name();
+			}
+			List<Predicate> predicates=new ArrayList<>();
+			while (peek()=='[') {
+				position++;
+				String key=name();
+				String value=null;
+				if (peek()=='=') {
+					position++;
+					value=value();
+				}
+				expect(']');
+				predicates.add(new Predicate(key, value));
+			}
+			return new Step(type, predicates.isEmpty() ? Step.NO_PREDICATES : predicates.toArray(new Predicate[predicates.size()]));
+		}
+
+		private String name() {
+			char c=peek();
+			if (c=='\'' || c=='"') return quoted();
+			int start=position;
+			while (position<path.length() && SPECIAL.indexOf(path.charAt(position))==-1)
+				position++;
+			if (position==start) throw error(position==path.length() ? "Unexpected end of path" : "Unexpected character");
+			return path.substring(start, position);
+		}
+
+		private String value() {
+			char c=peek();
+			if (c=='\'' || c=='"') return quoted();
+			int start=position;
+			while (position<path.length() && path.charAt(position)!=']')
+				position++;
+			return path.substring(start, position);
+		}
+
+		private String quoted() {
+			char quote=path.charAt(position++);
+			StringBuilder text=new StringBuilder();
+			while (true) {
+				if (position==path.length()) throw error("Unterminated quote");
+				char c=path.charAt(position++);
+				if (c==quote) {
+					if (peek()!=quote) return text.toString();
+					position++;
+				}
+				text.append(c);
+			}
+		}
+
+		/**
+		 * Returns the next character, or 0 at the end of the path.
+		 */
+		private char peek() {
+			return position<path.length() ? path.charAt(position) : 0;
+		}
+
+		private void expect(char c) {
+			if (peek()!=c) throw error("Expected '"+c+"'");
+			position++;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message+" at position "+position+" in path: "+path);
+		}
+	}
+}
@@ -0,0 +1,465 @@
+package hu.kazocsaba.memento;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a memento in binary format as a sequence of events, without building the memento in memory. Each memento is
+ * reported by a {@link Event#START_MEMENTO START_MEMENTO} event, followed by a {@link Event#PROPERTY PROPERTY} event
+ * for each of its properties, the events of its children, and finally an {@link Event#END_MEMENTO END_MEMENTO}
+ * event. In data written by {@link MementoWriter}, properties and children can be interleaved. The memory used by the
+ * reader depends only on the depth of the memento tree.
+ * <p>
+ * Property values are only decoded if they are queried with one of the getter methods; they are skipped otherwise.
+ * A whole memento can be skipped with {@link #skipMemento()}, which is fast if the data was written with the
+ * {@link BinaryFeature#INDEXED} feature. Data written with the {@link BinaryFeature#BLOBS} feature is not supported.
+ * <pre>
+ *    long sum = 0;
+ *    try (MementoReader reader = MementoStore.binaryFileToMementoReader(file)) {
+ *        while (reader.hasNext()) {
+ *            if (reader.next() == MementoReader.Event.PROPERTY &amp;&amp; reader.getKey().equals("size"))
+ *                sum += reader.getLong();
+ *        }
+ *    }
+ * </pre>
+ * Instances can be created using {@link MementoStore#binaryToMementoReader(java.io.InputStream)} and
+ * {@link MementoStore#binaryFileToMementoReader(java.nio.file.Path)}.
+ *
+ * @author Kazó Csaba
+ */
+public final class MementoReader implements Closeable {
+	/**
+	 * The events reported by a reader.
+	 */
+	public enum Event {
+		/**
+		 * The start of a memento. Its type is available through {@link MementoReader#getType()}.
+		 */
+		START_MEMENTO,
+		/**
+		 * A property of the current memento. Its key, type, and value are available through
+		 * {@link MementoReader#getKey()}, {@link MementoReader#getPropertyType()}, and the typed getters.
+		 */
+		PROPERTY,
+		/**
+		 * The end of a memento. Its type is available through {@link MementoReader#getType()}.
+		 */
+		END_MEMENTO
+	}
+
+	private final BinaryInput in;
+	private final BinaryDecoder decoder;
+	/**
+	 * The resource to release when the reader is closed; can be {@code null}.
+	 */
+	private final Closeable resource;
+
+	/**
+	 * The types of the open mementos, the innermost last.
+	 */
+	private String[] types=new String[16];
+	/**
+	 * The number of properties of the open mementos not yet reported, or -1 if the count has not been read yet.
+	 */
+	private int[] propertiesLeft=new int[16];
+	/**
+	 * The number of children of the open mementos not yet reported, or -1 if the count has not been read yet.
+	 */
+	private int[] childrenLeft=new int[16];
+	/**
+	 * The offsets of the ends of the open mementos, or -1 if unknown.
+	 */
+	private long[] ends=new long[16];
+	/**
+	 * The number of open mementos.
+	 */
+	private int open;
+
+	private Event event;
+	private int depth;
+	private String type;
+	private String key;
+	private byte valueType;
+	/**
+	 * The value of the current property if it has been read; arrays are stored as primitive arrays.
+	 */
+	private Object value;
+	private boolean closed;
+
+	MementoReader(BinaryInput in, Closeable resource) throws IOException, MementoFormatException {
+		this.in=in;
+		this.resource=resource;
+		decoder=BinaryDecoder.open(in);
+		if (decoder.hasBlobs())
+			throw new MementoFormatException("Data written with the BLOBS feature cannot be read sequentially");
+	}
+
+	/**
+	 * Returns whether there are more events.
+	 *
+	 * @return {@code false} if the current event is the end of the root memento, {@code true} otherwise
+	 */
+	public boolean hasNext() {
+		return event!=Event.END_MEMENTO || open>0;
+	}
+
+	/**
+	 * Advances to the next event.
+	 *
+	 * @return the next event
+	 * @throws NoSuchElementException if there are no more events
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public Event next() throws IOException, MementoFormatException {
+		ensureOpen();
+		if (!hasNext()) throw new NoSuchElementException();
+		if (event==Event.PROPERTY && value==null) decoder.skipValue(valueType);
+		key=null;
+		value=null;
+		if (event==null) {
+			push(decoder.readRootType(), -1);
+			return event=Event.START_MEMENTO;
+		}
+		int top=open-1;
+		if (decoder.isStreamed()) {
+			int entry=in.readUnsignedByte();
+			if (entry==BinaryEncoder.PROPERTY_ENTRY) return startProperty(top);
+			if (entry==BinaryEncoder.CHILD_ENTRY) return startChild(top);
+			if (entry==BinaryEncoder.END_ENTRY) return pop();
+			throw new MementoFormatException("Invalid entry: "+entry);
+		}
+		if (propertiesLeft[top]==-1) propertiesLeft[top]=decoder.readCount();
+		if (propertiesLeft[top]>0) {
+			propertiesLeft[top]--;
+			return startProperty(top);
+		}
+		if (childrenLeft[top]==-1) childrenLeft[top]=decoder.readCount();
+		if (childrenLeft[top]>0) {
+			childrenLeft[top]--;
+			return startChild(top);
+		}
+		return pop();
+	}
+
+	/**
+	 * Reads the key and the type of a property of the innermost open memento.
+	 */
+	private Event startProperty(int top) throws IOException, MementoFormatException {
+		key=decoder.readName();
+		valueType=in.readByte();
+		BinaryDecoder.valueClass(valueType);
+		type=null;
+		depth=top;
+		return event=Event.PROPERTY;
+	}
+
+	/**
+	 * Reads the start of a child of the innermost open memento.
+	 */
+	private Event startChild(int top) throws IOException, MementoFormatException {
+		long end=-1;
+		if (decoder.isIndexed()) {
+			long size=decoder.readSize();
+			end=in.offset()+size;
+			if (end<0 || ends[top]>=0 && end>ends[top])
+				throw new MementoFormatException("Invalid memento size: "+size);
+		}
+		push(decoder.readType(in.readUnsignedByte()), end);
+		return event=Event.START_MEMENTO;
+	}
+
+	private void push(String type, long end) {
+		if (open==types.length) {
+			types=Arrays.copyOf(types, 2*open);
+			propertiesLeft=Arrays.copyOf(propertiesLeft, 2*open);
+			childrenLeft=Arrays.copyOf(childrenLeft, 2*open);
+			ends=Arrays.copyOf(ends, 2*open);
+		}
+		types[open]=type;
+		propertiesLeft[open]=-1;
+		childrenLeft[open]=-1;
+		ends[open]=end;
+		depth=open;
+		this.type=type;
+		open++;
+	}
+
+	private Event pop() throws MementoFormatException {
+		open--;
+		if (ends[open]>=0 && in.offset()!=ends[open])
+			throw new MementoFormatException("Invalid memento size");
+		depth=open;
+		type=types[open];
+		types[open]=null;
+		return event=Event.END_MEMENTO;
+	}
+
+	/**
+	 * Skips the rest of the current memento, including its remaining properties and children. The reader is
+	 * positioned at its {@code END_MEMENTO} event. If the data was written with the {@link BinaryFeature#INDEXED}
+	 * feature, the skipped child mementos are not decoded at all.
+	 *
+	 * @throws IllegalStateException if the current event is not {@code START_MEMENTO} or {@code PROPERTY}
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public void skipMemento() throws IOException, MementoFormatException {
+		ensureOpen();
+		if (event!=Event.START_MEMENTO && event!=Event.PROPERTY)
+			throw new IllegalStateException("Not inside a memento");
+		int top=open-1;
+		if (ends[top]>=0) {
+			decoder.skip(ends[top]-in.offset());
+			key=null;
+			value=null;
+			pop();
+			return;
+		}
+		while (true) {
+			Event next=next();
+			if (next==Event.START_MEMENTO)
+				skipMemento();
+			else if (next==Event.END_MEMENTO && open==top)
+				return;
+		}
+	}
+
+	/**
+	 * Returns the current event.
+	 *
+	 * @return the current event, or {@code null} if {@link #next()} has not been called yet
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the depth of the memento the current event belongs to. The depth of the root memento is 0.
+	 *
+	 * @return the depth of the current memento
+	 * @throws IllegalStateException if {@link #next()} has not been called yet
+	 */
+	public int getDepth() {
+		if (event==null) throw new IllegalStateException("No current event");
+		return depth;
+	}
+
+	/**
+	 * Returns the type of the memento that is started or ended by the current event.
+	 *
+	 * @return the type of the memento, or {@code null} if it has no type
+	 * @throws IllegalStateException if the current event is not {@code START_MEMENTO} or {@code END_MEMENTO}
+	 */
+	public String getType() {
+		if (event!=Event.START_MEMENTO && event!=Event.END_MEMENTO)
+			throw new IllegalStateException("Not at the start or end of a memento");
+		return type;
+	}
+
+	/**
+	 * Returns the key of the current property.
+	 *
+	 * @return the key of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 */
+	public String getKey() {
+		checkProperty();
+		return key;
+	}
+
+	/**
+	 * Returns the type of the current property, in the same way as {@link Memento#getPropertyType(String)}.
+	 *
+	 * @return the type of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 */
+	public Class<?> getPropertyType() {
+		checkProperty();
+		try {
+			return BinaryDecoder.valueClass(valueType);
+		} catch (MementoFormatException e) {
+			// the type has been validated when the property was read
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Returns the value of the current String property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public String getString() throws IOException, MementoFormatException {
+		return (String)value(String.class);
+	}
+
+	/**
+	 * Returns the value of the current integer property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public int getInt() throws IOException, MementoFormatException {
+		return (Integer)value(Integer.class);
+	}
+
+	/**
+	 * Returns the value of the current long property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public long getLong() throws IOException, MementoFormatException {
+		return (Long)value(Long.class);
+	}
+
+	/**
+	 * Returns the value of the current float property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public float getFloat() throws IOException, MementoFormatException {
+		return (Float)value(Float.class);
+	}
+
+	/**
+	 * Returns the value of the current double property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public double getDouble() throws IOException, MementoFormatException {
+		return (Double)value(Double.class);
+	}
+
+	/**
+	 * Returns the value of the current boolean property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public boolean getBoolean() throws IOException, MementoFormatException {
+		return (Boolean)value(Boolean.class);
+	}
+
+	/**
+	 * Returns the value of the current char property.
+	 *
+	 * @return the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public char getChar() throws IOException, MementoFormatException {
+		return (Character)value(Character.class);
+	}
+
+	/**
+	 * Returns the value of the current String array property.
+	 *
+	 * @return a copy of the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public String[] getStringArray() throws IOException, MementoFormatException {
+		return ((String[])value(String[].class)).clone();
+	}
+
+	/**
+	 * Returns the value of the current integer array property.
+	 *
+	 * @return a copy of the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public int[] getIntArray() throws IOException, MementoFormatException {
+		return ((int[])value(Integer[].class)).clone();
+	}
+
+	/**
+	 * Returns the value of the current byte array property.
+	 *
+	 * @return a copy of the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public byte[] getByteArray() throws IOException, MementoFormatException {
+		return ((byte[])value(Byte[].class)).clone();
+	}
+
+	/**
+	 * Returns the value of the current double array property.
+	 *
+	 * @return a copy of the value of the property
+	 * @throws IllegalStateException if the current event is not {@code PROPERTY}
+	 * @throws TypeMismatchException if the property is of a different type
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public double[] getDoubleArray() throws IOException, MementoFormatException {
+		return ((double[])value(Double[].class)).clone();
+	}
+
+	private void checkProperty() {
+		if (event!=Event.PROPERTY) throw new IllegalStateException("Not at a property");
+	}
+
+	/**
+	 * Returns the value of the current property, reading it if necessary.
+	 *
+	 * @param expectedType the type of the property, as returned by {@link #getPropertyType()}
+	 */
+	private Object value(Class<?> expectedType) throws IOException, MementoFormatException {
+		ensureOpen();
+		Class<?> type=getPropertyType();
+		if (type!=expectedType) throw TypeMismatchException.of(key, type, expectedType);
+		if (value==null) value=decoder.readValue(valueType);
+		return value;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) throw new IOException("Reader closed");
+	}
+
+	/**
+	 * Closes the reader. If the reader was created for a file, the file is closed; a stream passed to
+	 * {@link MementoStore#binaryToMementoReader(java.io.InputStream)} is not closed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed=true;
+		if (resource!=null) resource.close();
+	}
+}
@@ -0,0 +1,239 @@
+package hu.kazocsaba.memento;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Saves mementos to a binary file asynchronously. The file is written by a task running on an executor, so the
+ * threads requesting the saves do not wait for the I/O. If saves are requested faster than they can be written,
+ * they are coalesced: only the latest memento is written, and the futures of all the skipped saves complete when it
+ * has been written.
+ * <p>
+ * Each memento is written in the format of {@link MementoStore#mementoToBinaryFile(Memento, Path, BinaryFeature...)}
+ * to a temporary file in the same directory, which then replaces the file, so the file always contains a complete
+ * memento, even if writing fails or the process is terminated while writing. If the file is a symbolic link, the
+ * file it points to is replaced, and the new file gets the owner and the permissions of the replaced one. Files that
+ * are not regular files, such as devices, are written in place.
+ * <p>
+ * A memento passed to {@link #save(Memento)} is written at some later time on another thread, so it must not be
+ * modified afterwards, unless it is a {@link ConcurrentMemento}, whose state is captured when it is written. A
+ * typical use is to pass a newly built memento describing the current state each time the state changes.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Kazó Csaba
+ */
+public class MementoSaver implements Closeable {
+	private final Path file;
+	private final Executor executor;
+	private final Set<BinaryFeature> features;
+
+	private final Object lock=new Object();
+	/**
+	 * The memento to write next, or {@code null} if there is none.
+	 */
+	private Memento pending;
+	/**
+	 * The future of the pending memento.
+	 */
+	private SaveFuture pendingFuture;
+	/**
+	 * The future of the memento being written, or {@code null} if none is being written.
+	 */
+	private SaveFuture currentFuture;
+	/**
+	 * Whether a writer task has been submitted to the executor and has not finished yet.
+	 */
+	private boolean running;
+	private boolean closed;
+
+	private final Runnable writer=new Runnable() {
+		@Override
+		public void run() {
+			writePending();
+		}
+	};
+
+	/**
+	 * Creates a new saver.
+	 *
+	 * @param file the file in which to save the mementos
+	 * @param executor the executor on which the file is written
+	 * @param features the optional features of the binary format to use
+	 */
+	public MementoSaver(Path file, Executor executor, BinaryFeature... features) {
+		this.file=Objects.requireNonNull(file, "null file");
+		this.executor=Objects.requireNonNull(executor, "null executor");
+		Set<BinaryFeature> featureSet=EnumSet.noneOf(BinaryFeature.class);
+		for (BinaryFeature feature: features)
+			featureSet.add(Objects.requireNonNull(feature, "null feature"));
+		this.features=featureSet;
+	}
+
+	/**
+	 * Requests a memento to be saved. The returned future completes when this memento, or one whose save was
+	 * requested later, has been written to the file. If writing fails, the future completes with the
+	 * {@code IOException} as the cause of the {@code ExecutionException}. The future cannot be cancelled.
+	 *
+	 * @param memento the memento to save, which must not be modified afterwards
+	 * @return a future completing when the memento has been saved
+	 * @throws IllegalStateException if the saver has been closed
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor does not accept the writing task
+	 */
+	public Future<Void> save(Memento memento) {
+		Objects.requireNonNull(memento, "null memento");
+		synchronized (lock) {
+			if (closed) throw new IllegalStateException("Saver is closed");
+			if (pendingFuture==null) pendingFuture=new SaveFuture();
+			SaveFuture future=pendingFuture;
+			pending=memento;
+			if (!running) {
+				executor.execute(writer);
+				running=true;
+			}
+			return future;
+		}
+	}
+
+	/**
+	 * Writes the pending mementos until there are none.
+	 */
+	private void writePending() {
+		while (true) {
+			Memento memento;
+			SaveFuture future;
+			synchronized (lock) {
+				if (pending==null) {
+					running=false;
+					return;
+				}
+				memento=pending;
+				future=currentFuture=pendingFuture;
+				pending=null;
+				pendingFuture=null;
+			}
+			Throwable failure=null;
+			try {
+				MementoStore.writeBinaryFile(memento, file, features, true);
+			} catch (IOException | RuntimeException e) {
+				failure=e;
+			} catch (Error e) {
+				future.complete(e);
+				synchronized (lock) {
+					currentFuture=null;
+					// let a new task write the mementos arriving in the meantime
+					running=pending!=null;
+					if (running) executor.execute(writer);
+				}
+				throw e;
+			}
+			// completed before it is cleared, so that flush either finds it or sees the save as done
+			future.complete(failure);
+			synchronized (lock) {
+				currentFuture=null;
+			}
+		}
+	}
+
+	/**
+	 * Waits until all the saves requested before this call have been written.
+	 *
+	 * @throws IOException if writing the latest memento failed
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void flush() throws IOException {
+		SaveFuture future;
+		synchronized (lock) {
+			future=pendingFuture!=null ? pendingFuture : currentFuture;
+		}
+		if (future==null) return;
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a memento to be saved");
+		} catch (ExecutionException e) {
+			Throwable cause=e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw (Error)cause;
+		}
+	}
+
+	/**
+	 * Closes the saver, and waits until all the saves requested before this call have been written. No further saves
+	 * can be requested after this method has been called. The executor is not shut down.
+	 *
+	 * @throws IOException if writing the latest memento failed
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed=true;
+		}
+		flush();
+	}
+
+	/**
+	 * The future of a save, completed by the writer task.
+	 */
+	private static final class SaveFuture implements Future<Void> {
+		private boolean done;
+		private Throwable failure;
+
+		synchronized void complete(Throwable failure) {
+			this.failure=failure;
+			done=true;
+			notifyAll();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public synchronized Void get() throws InterruptedException, ExecutionException {
+			while (!done)
+				wait();
+			return result();
+		}
+
+		@Override
+		public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline=System.nanoTime()+unit.toNanos(timeout);
+			while (!done) {
+				long remaining=deadline-System.nanoTime();
+				if (remaining<=0) throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return result();
+		}
+
+		private Void result() throws ExecutionException {
+			if (failure!=null) throw new ExecutionException(failure);
+			return null;
+		}
+	}
+}
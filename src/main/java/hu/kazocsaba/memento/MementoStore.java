@@ -1,28 +1,24 @@
 package hu.kazocsaba.memento;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
+import java.util.EnumSet;
 import java.util.Iterator;
-
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import net.iharder.Base64;
 import org.w3c.dom.Document;
@@ -30,7 +26,6 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
-import org.xml.sax.SAXException;
 
 /**
  * Static functions for saving and loading mementos.
@@ -38,6 +33,15 @@ import org.xml.sax.SAXException;
  * @author Kazó Csaba
  */
 public class MementoStore {
+	/**
+	 * The size of the buffers used when reading and writing binary files.
+	 */
+	private static final int FILE_BUFFER_SIZE=1 << 18;
+	/**
+	 * The size of the buffers used when reading and writing binary streams.
+	 */
+	private static final int STREAM_BUFFER_SIZE=1 << 13;
+
 	private MementoStore() {}
 
 	/**
@@ -51,14 +55,99 @@ public class MementoStore {
 	public static void mementoToBinaryFile(Memento memento, Path file) throws IOException {
 		Objects.requireNonNull(memento, "null memento");
 		Objects.requireNonNull(file, "null file");
-		try (OutputStream out=new BufferedOutputStream(Files.newOutputStream(file))) {
-			mementoToBinary(memento, out);
+		writeBinaryFile(memento, file, null, false);
+	}
+	
+	/**
+	 * Writes a memento to a file in binary format using the specified optional features. Mementos written with this
+	 * function can be read using {@link #binaryFileToMemento(Path)}.
+	 * 
+	 * @param memento a memento
+	 * @param file the file in which to write the memento
+	 * @param features the optional features of the binary format to use
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToBinaryFile(Memento memento, Path file, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		writeBinaryFile(memento, file, featureSet(features), false);
+	}
+	
+	/**
+	 * Writes a memento to a compressed file in binary format using the specified optional features. The file is
+	 * compressed in blocks as it is written. Mementos written with this function can be read using
+	 * {@link #binaryFileToMemento(Path)}.
+	 * 
+	 * @param memento a memento
+	 * @param file the file in which to write the memento
+	 * @param compression the compression method
+	 * @param features the optional features of the binary format to use
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToBinaryFile(Memento memento, Path file, Compression compression, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(compression, "null compression");
+		Set<BinaryFeature> featureSet=featureSet(features);
+		try (TargetFile target=TargetFile.open(file, false)) {
+			try (OutputStream out=new CompressedOutputStream(Files.newOutputStream(target.getPath()), compression)) {
+				writeBinary(memento, out, featureSet);
+			}
+			target.commit();
+		}
+	}
+	
+	/**
+	 * Writes a memento to a file in binary format, encoding the child mementos of the root in parallel. The contents
+	 * of the file are the same as those written by {@link #mementoToBinaryFile(Memento, Path, BinaryFeature...)}.
+	 * 
+	 * @param memento a memento
+	 * @param file the file in which to write the memento
+	 * @param pool the pool in which to execute the encoding tasks
+	 * @param features the optional features of the binary format to use
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToBinaryFileInParallel(Memento memento, Path file, ForkJoinPool pool, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(pool, "null pool");
+		Set<BinaryFeature> featureSet=featureSet(features);
+		try (TargetFile target=TargetFile.open(file, false)) {
+			try (FileChannel channel=FileChannel.open(target.getPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				BinaryOutput out=new BinaryOutput(channel, FILE_BUFFER_SIZE);
+				new BinaryEncoder(out, featureSet).encodeInParallel(memento, pool);
+				out.flush();
+			}
+			target.commit();
+		}
+	}
+	
+	/**
+	 * Writes a memento to a file in binary format.
+	 * 
+	 * @param replace if {@code true}, the file is written to a temporary file that replaces it when it is complete,
+	 * even if it is not mapped by a memento
+	 */
+	static void writeBinaryFile(Memento memento, Path file, Set<BinaryFeature> features, boolean replace) throws IOException {
+		try (TargetFile target=TargetFile.open(file, replace)) {
+			try (FileChannel channel=FileChannel.open(target.getPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				BinaryOutput out=new BinaryOutput(channel, FILE_BUFFER_SIZE);
+				new BinaryEncoder(out, features).encode(memento);
+				out.flush();
+			}
+			target.commit();
 		}
 	}
 	
 	/**
 	 * Reads a memento from a binary file. This function expects a file created using
-	 * {@link #mementoToBinaryFile(Memento, Path)}.
+	 * {@link #mementoToBinaryFile(Memento, Path)} or one of its variants; compressed files are recognized
+	 * automatically.
+	 * <p>
+	 * If the file was written with the {@link BinaryFeature#BLOBS} feature and it is not compressed, the blobs are
+	 * not read: the byte array properties refer to the memory-mapped file, which must not be modified while they are
+	 * in use. The methods of this class do not overwrite a file mapped this way, they replace it with a new one, so
+	 * the memento can be saved back to the same file.
 	 * 
 	 * @param file the file to read from
 	 * @return the memento
@@ -66,9 +155,118 @@ public class MementoStore {
 	 * @throws MementoFormatException if the format of the file is incorrect
 	 */
 	public static Memento binaryFileToMemento(Path file) throws IOException, MementoFormatException {
+		return binaryFileToMemento(file, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from a binary file. This function works in the same way as
+	 * {@link #binaryFileToMemento(Path)}, but the properties and the child mementos not accepted by the options are
+	 * skipped.
+	 * 
+	 * @param file the file to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the file is incorrect
+	 */
+	public static Memento binaryFileToMemento(Path file, LoadOptions options) throws IOException, MementoFormatException {
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(options, "null options");
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ)) {
+			if (CompressedInputStream.isCompressed(channel))
+				return readCompressedBinary(channel, options);
+			long size=channel.size();
+			if (size<=Integer.MAX_VALUE)
+				return BinaryDecoder.read(new MappedFile(file, channel).map(0, size), options);
+			return BinaryDecoder.read(new BinaryInput(channel, FILE_BUFFER_SIZE), new MappedFile(file, channel), options);
+		}
+	}
+	
+	/**
+	 * Reads a memento from a compressed binary file, decompressing it block by block.
+	 */
+	private static Memento readCompressedBinary(FileChannel channel, LoadOptions options) throws IOException, MementoFormatException {
+		try (CompressedInputStream stream=new CompressedInputStream(Channels.newInputStream(channel))) {
+			return BinaryDecoder.read(new BinaryInput(stream, STREAM_BUFFER_SIZE), null, options);
+		}
+	}
+	
+	/**
+	 * Reads a memento from a binary file, decoding the child mementos only when they are first accessed. The
+	 * properties of a memento are read together with the memento, the children are read when the memento's
+	 * children are first queried in any way. Only the child mementos are decoded at that point, their
+	 * children are again deferred. Decoding is thread-safe, the returned memento is safe to use from multiple
+	 * threads in the same way as a fully loaded memento.
+	 * <p>
+	 * Lazy loading requires an uncompressed file written with the {@link BinaryFeature#INDEXED} feature and at most
+	 * 2 GB in size; other files are loaded entirely, in the same way as by {@link #binaryFileToMemento(Path)}.
+	 * <p>
+	 * The file is memory-mapped while any memento in the returned tree has children still to be decoded; it must
+	 * not be modified during that time. Since the content of the file is only validated as it is decoded, accessing
+	 * the children of a memento can throw an {@code IllegalStateException} if the file is corrupt.
+	 * 
+	 * @param file the file to read from
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the file is incorrect
+	 */
+	public static Memento binaryFileToMementoLazily(Path file) throws IOException, MementoFormatException {
 		Objects.requireNonNull(file, "null file");
-		try (InputStream in=new BufferedInputStream(Files.newInputStream(file))) {
-			return binaryToMemento(in);
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ)) {
+			if (CompressedInputStream.isCompressed(channel))
+				return readCompressedBinary(channel, LoadOptions.ALL);
+			long size=channel.size();
+			if (size>Integer.MAX_VALUE)
+				return BinaryDecoder.read(new BinaryInput(channel, FILE_BUFFER_SIZE), new MappedFile(file, channel), LoadOptions.ALL);
+			return BinaryDecoder.readLazily(new MappedFile(file, channel).map(0, size));
+		}
+	}
+	
+	/**
+	 * Reads a memento from a binary file, decoding the child mementos of the root in parallel. The result is the same
+	 * as that of {@link #binaryFileToMemento(Path)}. The decoding tasks are executed by a new pool with parallelism
+	 * equal to the number of available processors.
+	 * <p>
+	 * Parallel decoding requires an uncompressed file written with the {@link BinaryFeature#INDEXED} feature and at
+	 * most 2 GB in size; other files are decoded sequentially.
+	 * 
+	 * @param file the file to read from
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the file is incorrect
+	 */
+	public static Memento binaryFileToMementoInParallel(Path file) throws IOException, MementoFormatException {
+		ForkJoinPool pool=new ForkJoinPool();
+		try {
+			return binaryFileToMementoInParallel(file, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Reads a memento from a binary file, decoding the child mementos of the root in parallel. The result is the same
+	 * as that of {@link #binaryFileToMemento(Path)}.
+	 * <p>
+	 * Parallel decoding requires an uncompressed file written with the {@link BinaryFeature#INDEXED} feature and at
+	 * most 2 GB in size; other files are decoded sequentially.
+	 * 
+	 * @param file the file to read from
+	 * @param pool the pool in which to execute the decoding tasks
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the file is incorrect
+	 */
+	public static Memento binaryFileToMementoInParallel(Path file, ForkJoinPool pool) throws IOException, MementoFormatException {
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(pool, "null pool");
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ)) {
+			if (CompressedInputStream.isCompressed(channel))
+				return readCompressedBinary(channel, LoadOptions.ALL);
+			long size=channel.size();
+			if (size>Integer.MAX_VALUE)
+				return BinaryDecoder.read(new BinaryInput(channel, FILE_BUFFER_SIZE), new MappedFile(file, channel), LoadOptions.ALL);
+			return BinaryDecoder.readParallel(new MappedFile(file, channel).map(0, size), pool);
 		}
 	}
 	
@@ -84,9 +282,65 @@ public class MementoStore {
 	public static void mementoToBinary(Memento memento, OutputStream out) throws IOException {
 		Objects.requireNonNull(memento, "null memento");
 		Objects.requireNonNull(out, "null stream");
-		DataOutputStream dos=out instanceof DataOutputStream ? (DataOutputStream)out : new DataOutputStream(out);
-		saveMementoBinary(memento, dos);
+		writeBinary(memento, out, null);
+	}
+	
+	/**
+	 * Writes a memento to a stream in binary format using the specified optional features. The data written this way
+	 * can be safely read using {@link #binaryToMemento(InputStream)}, even if additional data is appended to the
+	 * stream after the memento.
+	 * 
+	 * @param memento the memento
+	 * @param out the stream to write to
+	 * @param features the optional features of the binary format to use
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToBinary(Memento memento, OutputStream out, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(out, "null stream");
+		writeBinary(memento, out, featureSet(features));
+	}
+	
+	/**
+	 * Writes a memento to a stream in binary format, encoding the child mementos of the root in parallel. The
+	 * written bytes are the same as those written by {@link #mementoToBinary(Memento, OutputStream, BinaryFeature...)}.
+	 * <p>
+	 * Only a limited number of children are encoded ahead of the output, so the memory overhead is proportional to
+	 * the parallelism of the pool and the size of the children.
+	 * 
+	 * @param memento the memento
+	 * @param out the stream to write to
+	 * @param pool the pool in which to execute the encoding tasks
+	 * @param features the optional features of the binary format to use
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToBinaryInParallel(Memento memento, OutputStream out, ForkJoinPool pool, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(out, "null stream");
+		Objects.requireNonNull(pool, "null pool");
+		BinaryOutput bo=new BinaryOutput(out, STREAM_BUFFER_SIZE);
+		new BinaryEncoder(bo, featureSet(features)).encodeInParallel(memento, pool);
+		bo.flush();
+	}
+	
+	private static Set<BinaryFeature> featureSet(BinaryFeature... features) {
+		Set<BinaryFeature> set=EnumSet.noneOf(BinaryFeature.class);
+		for (BinaryFeature feature: features)
+			set.add(Objects.requireNonNull(feature, "null feature"));
+		return set;
 	}
+	
+	/**
+	 * Writes a memento in binary format.
+	 * 
+	 * @param features the features to use; if it is {@code null} or empty, the legacy format is written without a header
+	 */
+	private static void writeBinary(Memento memento, OutputStream out, Set<BinaryFeature> features) throws IOException {
+		BinaryOutput bo=new BinaryOutput(out, STREAM_BUFFER_SIZE);
+		new BinaryEncoder(bo, features).encode(memento);
+		bo.flush();
+	}
+	
 	/**
 	 * Reads a memento to a stream in binary format. This function expects data written using
 	 * {@link #mementoToBinary(Memento, OutputStream)} and reads the exact same number of bytes as
@@ -98,142 +352,147 @@ public class MementoStore {
 	 * @throws MementoFormatException if the format of the data is incorrect
 	 */
 	public static Memento binaryToMemento(InputStream in) throws IOException, MementoFormatException {
-		DataInputStream dis=in instanceof DataInputStream ? (DataInputStream)in : new DataInputStream(in);
-		boolean hasType=dis.readBoolean();
-		String type=hasType ? dis.readUTF() : null;
-		return loadMementoBinary(dis,new Memento(type));
-	}
-	private static Memento loadMementoBinary(DataInputStream dis,Memento memento) throws IOException, MementoFormatException {
-		int count=dis.readInt();
-		while (count-->0) {
-			String key=dis.readUTF();
-			byte type=dis.readByte();
-			switch (type) {
-				case 0:
-					memento.putString(key,dis.readUTF());
-					break;
-				case 1:
-					memento.putInt(key,dis.readInt());
-					break;
-				case 2:
-					memento.putFloat(key,dis.readFloat());
-					break;
-				case 3:
-					memento.putBoolean(key,dis.readBoolean());
-					break;
-				case 4:
-					memento.putChar(key,dis.readChar());
-					break;
-				case 5:
-					String[] sa=new String[dis.readInt()];
-					for (int i=0; i<sa.length; i++)
-						sa[i]=dis.readUTF();
-					memento.putStringArray(key,sa);
-					break;
-				case 6:
-					int[] ia=new int[dis.readInt()];
-					for (int i=0; i<ia.length; i++)
-						ia[i]=dis.readInt();
-					memento.putIntArray(key,ia);
-					break;
-				case 7:
-					byte[] ba=new byte[dis.readInt()];
-					dis.readFully(ba);
-					memento.putByteArray(key,ba);
-					break;
-				case 8:
-					memento.putDouble(key, dis.readDouble());
-					break;
-				case 9:
-					memento.putLong(key, dis.readLong());
-					break;
-				case 10:
-					double[] da=new double[dis.readInt()];
-					for (int i=0; i<da.length; i++)
-						da[i]=dis.readDouble();
-					memento.putDoubleArray(key, da);
-					break;
-				default:
-					throw new MementoFormatException("Unknown type: "+type);
-			}
-		}
-		count=dis.readInt();
-		while (count-->0) {
-			boolean hasType=dis.readBoolean();
-			String type=hasType ? dis.readUTF() : null;
-			loadMementoBinary(dis,memento.createChild(type));
+		return binaryToMemento(in, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from a stream in binary format. This function works in the same way as
+	 * {@link #binaryToMemento(InputStream)}, reading the whole memento from the stream, but the properties and the
+	 * child mementos not accepted by the options are skipped.
+	 * 
+	 * @param in the input stream to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento binaryToMemento(InputStream in, LoadOptions options) throws IOException, MementoFormatException {
+		Objects.requireNonNull(in, "null stream");
+		Objects.requireNonNull(options, "null options");
+		return BinaryDecoder.read(new BinaryInput(in, STREAM_BUFFER_SIZE), null, options);
+	}
+	
+	/**
+	 * Creates a reader for a memento in binary format, which reports the content of the memento as a sequence of
+	 * events without building it in memory. This function expects data written using
+	 * {@link #mementoToBinary(Memento, OutputStream)} or one of its variants, and the reader does not read past the
+	 * end of the memento.
+	 * 
+	 * @param in the input stream to read from
+	 * @return the reader
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static MementoReader binaryToMementoReader(InputStream in) throws IOException, MementoFormatException {
+		Objects.requireNonNull(in, "null stream");
+		return new MementoReader(new BinaryInput(in, STREAM_BUFFER_SIZE), null);
+	}
+	
+	/**
+	 * Creates a reader for a memento in a binary file, which reports the content of the memento as a sequence of
+	 * events without building it in memory. Compressed files are recognized automatically. The file remains open
+	 * until the reader is closed.
+	 * 
+	 * @param file the file to read from
+	 * @return the reader
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the file is incorrect
+	 */
+	public static MementoReader binaryFileToMementoReader(Path file) throws IOException, MementoFormatException {
+		Objects.requireNonNull(file, "null file");
+		FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+		// closing the decompressing stream releases its inflater and closes the channel
+		Closeable resource=channel;
+		try {
+			BinaryInput in;
+			if (CompressedInputStream.isCompressed(channel)) {
+				CompressedInputStream stream=new CompressedInputStream(Channels.newInputStream(channel));
+				resource=stream;
+				in=new BinaryInput(stream, STREAM_BUFFER_SIZE);
+			} else
+				in=new BinaryInput(channel, FILE_BUFFER_SIZE);
+			return new MementoReader(in, resource);
+		} catch (IOException | MementoFormatException | RuntimeException e) {
+			resource.close();
+			throw e;
 		}
-		return memento;
-	}
-	private static void saveMementoBinary(Memento memento,DataOutputStream dos) throws IOException {
-		if (memento.getType()==null)
-			dos.writeBoolean(false);
-		else {
-			dos.writeBoolean(true);
-			dos.writeUTF(memento.getType());
+	}
+	
+	/**
+	 * Creates a writer that writes a memento to a stream in binary format, without building the memento in memory.
+	 * The data written this way can be read using {@link #binaryToMemento(InputStream)}, even if additional data is
+	 * appended to the stream after the memento.
+	 * <p>
+	 * The {@link BinaryFeature#STREAMED} feature is always used. The {@link BinaryFeature#INDEXED},
+	 * {@link BinaryFeature#STRING_TABLE}, and {@link BinaryFeature#BLOBS} features require the whole memento in
+	 * advance, so they cannot be used.
+	 * 
+	 * @param out the stream to write to
+	 * @param features the optional features of the binary format to use
+	 * @return the writer
+	 * @throws IllegalArgumentException if an unsupported feature is specified
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static MementoWriter mementoWriterToBinary(OutputStream out, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(out, "null stream");
+		Set<BinaryFeature> featureSet=streamedFeatureSet(features);
+		return new MementoWriter(new BinaryOutput(out, STREAM_BUFFER_SIZE), featureSet, null);
+	}
+	
+	/**
+	 * Creates a writer that writes a memento to a file in binary format, without building the memento in memory. The
+	 * file can be read using {@link #binaryFileToMemento(Path)}. If the file is still mapped by a memento loaded
+	 * from it, the data is written to a temporary file, which replaces the file when the writer is closed.
+	 * <p>
+	 * The {@link BinaryFeature#STREAMED} feature is always used. The {@link BinaryFeature#INDEXED},
+	 * {@link BinaryFeature#STRING_TABLE}, and {@link BinaryFeature#BLOBS} features require the whole memento in
+	 * advance, so they cannot be used.
+	 * 
+	 * @param file the file to write to
+	 * @param features the optional features of the binary format to use
+	 * @return the writer
+	 * @throws IllegalArgumentException if an unsupported feature is specified
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static MementoWriter mementoWriterToBinaryFile(Path file, BinaryFeature... features) throws IOException {
+		Objects.requireNonNull(file, "null file");
+		Set<BinaryFeature> featureSet=streamedFeatureSet(features);
+		final TargetFile target=TargetFile.open(file, false);
+		final FileChannel channel;
+		try {
+			channel=FileChannel.open(target.getPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			target.close();
+			throw e;
 		}
-		int propertiesToWrite=memento.getPropertyCount();
-		dos.writeInt(propertiesToWrite);
+		// the file is completed when the writer is closed
+		Closeable resource=new Closeable() {
+			@Override
+			public void close() throws IOException {
+				try (TargetFile written=target) {
+					channel.close();
+					written.commit();
+				}
+			}
+		};
 		try {
-			for (Iterator<String> i=memento.iterateProperties(); i.hasNext();propertiesToWrite--) {
-				String key=i.next();
-				dos.writeUTF(key);
-				Class<?> type=memento.getPropertyType(key);
-				if (type==String.class) {
-					dos.writeByte(0);
-					dos.writeUTF(memento.getString(key));
-				} else if (type==Integer.class) {
-					dos.writeByte(1);
-					dos.writeInt(memento.getInt(key));
-				} else if (type==Float.class) {
-					dos.writeByte(2);
-					dos.writeFloat(memento.getFloat(key));
-				} else if (type==Boolean.class) {
-					dos.writeByte(3);
-					dos.writeBoolean(memento.getBoolean(key));
-				} else if (type==Character.class) {
-					dos.writeByte(4);
-					dos.writeChar(memento.getChar(key));
-				} else if (type==String[].class) {
-					dos.writeByte(5);
-					String[] value=memento.getStringArray(key);
-					dos.writeInt(value.length);
-					for (String s:value) dos.writeUTF(s);
-				} else if (type==Integer[].class) {
-					dos.writeByte(6);
-					int[] value=memento.getIntArray(key);
-					dos.writeInt(value.length);
-					for (int in:value) dos.writeInt(in);
-				} else if (type==Byte[].class) {
-					dos.writeByte(7);
-					byte[] value=memento.getByteArray(key);
-					dos.writeInt(value.length);
-					dos.write(value);
-				} else if (type==Double.class) {
-					dos.writeByte(8);
-					dos.writeDouble(memento.getDouble(key));
-				} else if (type==Long.class) {
-					dos.writeByte(9);
-					dos.writeLong(memento.getLong(key));
-				} else if (type==Double[].class) {
-					dos.writeByte(10);
-					double[] value=memento.getDoubleArray(key);
-					dos.writeInt(value.length);
-					for (double d:value) dos.writeDouble(d);
-				} else
-					throw new IllegalStateException("Unknown type: "+type);
+			return new MementoWriter(new BinaryOutput(channel, FILE_BUFFER_SIZE), featureSet, resource);
+		} catch (IOException | RuntimeException e) {
+			try {
+				channel.close();
+			} finally {
+				target.close();
 			}
-		} catch (MementoFormatException e) {
-			throw new Error(e);
+			throw e;
 		}
-		if (propertiesToWrite!=0)
-			throw new ConcurrentModificationException("Didn't write as many properties as there were");
-		int childrenToWrite=memento.getChildCount();
-		dos.writeInt(childrenToWrite);
-		for (Iterator<Memento> i=memento.iterateChildren(); i.hasNext(); childrenToWrite--)
-			saveMementoBinary(i.next(),dos);
-		if (childrenToWrite!=0)
-			throw new ConcurrentModificationException("Didn't write as many children as there were");
+	}
+	
+	private static Set<BinaryFeature> streamedFeatureSet(BinaryFeature... features) {
+		Set<BinaryFeature> set=featureSet(features);
+		if (set.contains(BinaryFeature.INDEXED) || set.contains(BinaryFeature.STRING_TABLE) || set.contains(BinaryFeature.BLOBS))
+			throw new IllegalArgumentException("Unsupported features for streaming: "+set);
+		set.add(BinaryFeature.STREAMED);
+		return set;
 	}
 	
 	/**
@@ -250,27 +509,37 @@ public class MementoStore {
 		} catch (ParserConfigurationException e) {
 			throw new AssertionError(e);
 		}
-		doc.appendChild(createMementoElement(memento, doc));
+		doc.appendChild(createMementoElement(memento.consistentView(), doc));
 		return doc;
 	}
 	
 	/**
-	 * Writes a memento to a stream in XML format.
+	 * Writes a memento to a stream in XML format. The elements are placed on separate, indented lines. The stream is not
+	 * closed.
 	 * 
 	 * @param memento the memento to write
 	 * @param out the stream to write to
 	 * @throws IOException if an I/O error occurs
 	 */
 	public static void mementoToXmlStream(Memento memento, OutputStream out) throws IOException {
+		mementoToXmlStream(memento, out, true);
+	}
+	
+	/**
+	 * Writes a memento to a stream in XML format. The document is written as the memento is traversed, without
+	 * creating an XML document in memory; the result is the same as serializing the document returned by
+	 * {@link #mementoToXml(Memento)}. The stream is not closed.
+	 * 
+	 * @param memento the memento to write
+	 * @param out the stream to write to
+	 * @param indent if {@code true}, the elements are placed on separate, indented lines; otherwise no whitespace is
+	 * added between the elements
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToXmlStream(Memento memento, OutputStream out, boolean indent) throws IOException {
 		Objects.requireNonNull(memento, "null memento");
 		Objects.requireNonNull(out, "null stream");
-		try {
-			Transformer transformer=TransformerFactory.newInstance().newTransformer();
-			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-			transformer.transform(new DOMSource(mementoToXml(memento)), new StreamResult(out));
-		} catch (TransformerException e) {
-			throw new AssertionError(e);
-		}
+		XmlEncoder.write(memento, out, indent);
 	}
 	
 	/**
@@ -281,12 +550,34 @@ public class MementoStore {
 	 * @throws IOException if an I/O error occurs
 	 */
 	public static void mementoToXmlFile(Memento memento, Path file) throws IOException {
-		try {
-			Transformer transformer=TransformerFactory.newInstance().newTransformer();
-			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-			transformer.transform(new DOMSource(mementoToXml(memento)), new StreamResult(file.toFile()));
-		} catch (TransformerException e) {
-			throw new AssertionError(e);
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		try (TargetFile target=TargetFile.open(file, false)) {
+			try (OutputStream out=Files.newOutputStream(target.getPath())) {
+				XmlEncoder.write(memento, out, true);
+			}
+			target.commit();
+		}
+	}
+	
+	/**
+	 * Writes a memento to a compressed file in XML format. The file is compressed in blocks as it is written, and
+	 * it can be read using {@link #xmlFileToMemento(Path)}.
+	 * 
+	 * @param memento the memento to write
+	 * @param file the file to write to
+	 * @param compression the compression method
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToXmlFile(Memento memento, Path file, Compression compression) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(compression, "null compression");
+		try (TargetFile target=TargetFile.open(file, false)) {
+			try (OutputStream out=new CompressedOutputStream(Files.newOutputStream(target.getPath()), compression)) {
+				mementoToXmlStream(memento, out);
+			}
+			target.commit();
 		}
 	}
 	
@@ -375,11 +666,26 @@ public class MementoStore {
 	 * @throws MementoFormatException if the format of the document is incorrect
 	 */
 	public static Memento xmlToMemento(Document doc) throws MementoFormatException {
+		return xmlToMemento(doc, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from an XML document. The properties and the child mementos not accepted
+	 * by the options are skipped.
+	 * 
+	 * @param doc the document storing the memento
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws MementoFormatException if the format of the document is incorrect
+	 */
+	public static Memento xmlToMemento(Document doc, LoadOptions options) throws MementoFormatException {
+		Objects.requireNonNull(doc, "null document");
+		Objects.requireNonNull(options, "null options");
 		Element mementoElement=doc.getDocumentElement();
 		if (mementoElement==null || !"memento".equals(mementoElement.getNodeName()))
 			throw new MementoFormatException("Expected 'memento' root element");
-		Memento root=new Memento();
-		fillMementoFromElement(root,mementoElement);
+		Memento root=new Memento(mementoElement.hasAttribute("type") ? mementoElement.getAttribute("type") : null);
+		fillMementoFromElement(root,mementoElement,options);
 		return root;
 	}
 	
@@ -392,17 +698,27 @@ public class MementoStore {
 	 * @throws MementoFormatException if the format of the data is incorrect
 	 */
 	public static Memento xmlStreamToMemento(InputStream in) throws IOException, MementoFormatException {
-		try {
-			return xmlToMemento(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in));
-		} catch (SAXException e) {
-			throw new MementoFormatException(e);
-		} catch (ParserConfigurationException e) {
-			throw new AssertionError(e);
-		}
+		return xmlStreamToMemento(in, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from a stream in XML format. The properties and the child mementos not
+	 * accepted by the options are skipped.
+	 * 
+	 * @param in the stream to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento xmlStreamToMemento(InputStream in, LoadOptions options) throws IOException, MementoFormatException {
+		Objects.requireNonNull(in, "null stream");
+		Objects.requireNonNull(options, "null options");
+		return XmlDecoder.read(in, options);
 	}
 	
 	/**
-	 * Reads a memento from a file in XML format.
+	 * Reads a memento from a file in XML format. Compressed files are recognized automatically.
 	 * 
 	 * @param file the file to read from
 	 * @return the memento
@@ -410,15 +726,168 @@ public class MementoStore {
 	 * @throws MementoFormatException if the format of the data is incorrect
 	 */
 	public static Memento xmlFileToMemento(Path file) throws IOException, MementoFormatException {
-		try {
-			return xmlToMemento(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file.toFile()));
-		} catch (SAXException e) {
-			throw new MementoFormatException(e);
-		} catch (ParserConfigurationException e) {
-			throw new AssertionError(e);
+		return xmlFileToMemento(file, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from a file in XML format. Compressed files are recognized automatically.
+	 * The properties and the child mementos not accepted by the options are skipped.
+	 * 
+	 * @param file the file to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento xmlFileToMemento(Path file, LoadOptions options) throws IOException, MementoFormatException {
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(options, "null options");
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+				InputStream in=openFileStream(channel)) {
+			return XmlDecoder.read(new BufferedInputStream(in, STREAM_BUFFER_SIZE), options);
 		}
 	}
-	private static void fillMementoFromElement(Memento memento, Node mementoElement) throws MementoFormatException {
+	
+	/**
+	 * Writes a memento to a stream in JSON format. The members are placed on separate, indented lines. The stream is
+	 * not closed.
+	 * <p>
+	 * Every property is written as an object with a single member whose name is the type of the value, so the JSON
+	 * format preserves the types of the properties just like the binary and XML formats do.
+	 * 
+	 * @param memento the memento to write
+	 * @param out the stream to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToJsonStream(Memento memento, OutputStream out) throws IOException {
+		mementoToJsonStream(memento, out, true);
+	}
+	
+	/**
+	 * Writes a memento to a stream in JSON format. The stream is not closed.
+	 * 
+	 * @param memento the memento to write
+	 * @param out the stream to write to
+	 * @param indent if {@code true}, the members of the mementos and the properties are placed on separate, indented
+	 * lines; otherwise no whitespace is added
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToJsonStream(Memento memento, OutputStream out, boolean indent) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(out, "null stream");
+		JsonEncoder.write(memento, out, indent);
+	}
+	
+	/**
+	 * Writes a memento to a file in JSON format.
+	 * 
+	 * @param memento the memento to write
+	 * @param file the file to write to
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToJsonFile(Memento memento, Path file) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		try (TargetFile target=TargetFile.open(file, false)) {
+			try (OutputStream out=Files.newOutputStream(target.getPath())) {
+				JsonEncoder.write(memento, out, true);
+			}
+			target.commit();
+		}
+	}
+	
+	/**
+	 * Writes a memento to a compressed file in JSON format. The file is compressed in blocks as it is written, and
+	 * it can be read using {@link #jsonFileToMemento(Path)}.
+	 * 
+	 * @param memento the memento to write
+	 * @param file the file to write to
+	 * @param compression the compression method
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void mementoToJsonFile(Memento memento, Path file, Compression compression) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(compression, "null compression");
+		try (TargetFile target=TargetFile.open(file, false)) {
+			try (OutputStream out=new CompressedOutputStream(Files.newOutputStream(target.getPath()), compression)) {
+				JsonEncoder.write(memento, out, true);
+			}
+			target.commit();
+		}
+	}
+	
+	/**
+	 * Reads a memento from a stream in JSON format. The stream is read until its end, and it must not contain anything
+	 * other than whitespace after the memento.
+	 * 
+	 * @param in the stream to read from
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento jsonStreamToMemento(InputStream in) throws IOException, MementoFormatException {
+		return jsonStreamToMemento(in, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from a stream in JSON format. The properties and the child mementos not
+	 * accepted by the options are skipped. The stream is read until its end, and it must not contain anything other
+	 * than whitespace after the memento.
+	 * 
+	 * @param in the stream to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento jsonStreamToMemento(InputStream in, LoadOptions options) throws IOException, MementoFormatException {
+		Objects.requireNonNull(in, "null stream");
+		Objects.requireNonNull(options, "null options");
+		return JsonDecoder.read(in, options);
+	}
+	
+	/**
+	 * Reads a memento from a file in JSON format. Compressed files are recognized automatically.
+	 * 
+	 * @param file the file to read from
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento jsonFileToMemento(Path file) throws IOException, MementoFormatException {
+		return jsonFileToMemento(file, LoadOptions.ALL);
+	}
+	
+	/**
+	 * Reads the selected parts of a memento from a file in JSON format. Compressed files are recognized automatically.
+	 * The properties and the child mementos not accepted by the options are skipped.
+	 * 
+	 * @param file the file to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	public static Memento jsonFileToMemento(Path file, LoadOptions options) throws IOException, MementoFormatException {
+		Objects.requireNonNull(file, "null file");
+		Objects.requireNonNull(options, "null options");
+		try (FileChannel channel=FileChannel.open(file, StandardOpenOption.READ);
+				InputStream in=openFileStream(channel)) {
+			return JsonDecoder.read(in, options);
+		}
+	}
+	
+	/**
+	 * Returns a stream reading a file, decompressing the data if the file is compressed. The stream must be closed to
+	 * release the resources of the decompression.
+	 */
+	private static InputStream openFileStream(FileChannel channel) throws IOException, MementoFormatException {
+		InputStream in=Channels.newInputStream(channel);
+		return CompressedInputStream.isCompressed(channel) ? new CompressedInputStream(in) : in;
+	}
+	
+	private static void fillMementoFromElement(Memento memento, Node mementoElement, LoadOptions options) throws MementoFormatException {
 		NodeList children=mementoElement.getChildNodes();
 		for (int i=0; i<children.getLength(); i++) {
 			Node child=children.item(i);
@@ -427,10 +896,11 @@ public class MementoStore {
 				case "memento":
 					Element childMementoElement=(Element)child;
 					String type=childMementoElement.hasAttribute("type") ? childMementoElement.getAttribute("type") : null;
-					fillMementoFromElement(memento.createChild(type),child);
+					if (options.acceptsChild(type))
+						fillMementoFromElement(memento.createChild(type),child,options);
 					break;
 				case "property":
-					fillMementoPropertyFromElement(memento, child);
+					fillMementoPropertyFromElement(memento, child, options);
 					break;
 				default:
 					throw new MementoFormatException("Unexpected element: "+child.getNodeName());
@@ -444,7 +914,7 @@ public class MementoStore {
 			return valueChildren.item(0).getNodeValue();
 		throw new MementoFormatException("A single text child of '"+valueElement.getNodeName()+"' element expected");
 	}
-	private static void fillMementoPropertyFromElement(Memento memento,Node propertyElement) throws MementoFormatException {
+	private static void fillMementoPropertyFromElement(Memento memento,Node propertyElement,LoadOptions options) throws MementoFormatException {
 		String key=null;
 		String value=null;
 		Element valueElement=null;
@@ -478,6 +948,8 @@ public class MementoStore {
 			throw new MementoFormatException("Missing 'key' element in property declaration");
 		if (valueElement==null)
 			throw new MementoFormatException("Missing 'value' element in property declaration");
+		if (!options.acceptsKey(key))
+			return;
 		if (memento.getPropertyType(key)!=null)
 			throw new MementoFormatException("Found memento with duplicate properties");
 		switch (type) {
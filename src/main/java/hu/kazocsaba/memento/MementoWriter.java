@@ -0,0 +1,366 @@
+package hu.kazocsaba.memento;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Writes a memento in binary format directly to its destination, without building the memento in memory. Each memento
+ * is started with {@link #startMemento(String)} and finished with {@link #endMemento()}; in between, its properties
+ * and child mementos can be written in any order. The memory used by the writer does not depend on the size of the
+ * memento.
+ * <pre>
+ *    try (MementoWriter writer = MementoStore.mementoWriterToBinaryFile(file)) {
+ *        writer.startMemento("people");
+ *        for (Person person: people) {
+ *            writer.startMemento("person");
+ *            writer.putString("name", person.getName());
+ *            writer.putInt("age", person.getAge());
+ *            writer.endMemento();
+ *        }
+ *        writer.endMemento();
+ *    }
+ * </pre>
+ * The data is written with the {@link BinaryFeature#STREAMED} feature, and it can be read by all the functions
+ * reading binary mementos. Since keys are not tracked, writing the same key twice in a memento is not detected; when
+ * the memento is loaded, the last value replaces the earlier ones.
+ * <p>
+ * Instances can be created using {@link MementoStore#mementoWriterToBinary(java.io.OutputStream, BinaryFeature...)}
+ * and {@link MementoStore#mementoWriterToBinaryFile(java.nio.file.Path, BinaryFeature...)}.
+ *
+ * @author Kazó Csaba
+ */
+public final class MementoWriter implements Closeable {
+	private final BinaryOutput out;
+	private final BinaryEncoder encoder;
+	/**
+	 * The resource to release when the writer is closed; can be {@code null}.
+	 */
+	private final Closeable resource;
+	/**
+	 * The number of open mementos.
+	 */
+	private int open;
+	private boolean rootWritten;
+	private boolean closed;
+
+	/**
+	 * Creates a new writer, and writes the format header.
+	 *
+	 * @param features the features of the format, which must include {@link BinaryFeature#STREAMED}
+	 */
+	MementoWriter(BinaryOutput out, Set<BinaryFeature> features, Closeable resource) throws IOException {
+		this.out=out;
+		this.resource=resource;
+		encoder=new BinaryEncoder(out, features);
+		encoder.writeHeader();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) throw new IOException("Writer closed");
+	}
+
+	private void checkInMemento() throws IOException {
+		ensureOpen();
+		if (open==0) throw new IllegalStateException("No memento started");
+	}
+
+	/**
+	 * Starts a new memento. The first memento started is the root; all subsequent ones are children of the memento
+	 * that is currently open.
+	 *
+	 * @param type the type of the memento; can be {@code null}
+	 * @return this writer
+	 * @throws IllegalStateException if the root memento has already been ended
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter startMemento(String type) throws IOException {
+		ensureOpen();
+		if (open==0) {
+			if (rootWritten) throw new IllegalStateException("Root memento already written");
+			rootWritten=true;
+		} else
+			out.writeByte(BinaryEncoder.CHILD_ENTRY);
+		encoder.writeType(type, out);
+		open++;
+		return this;
+	}
+
+	/**
+	 * Ends the memento that is currently open.
+	 *
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter endMemento() throws IOException {
+		checkInMemento();
+		out.writeByte(BinaryEncoder.END_ENTRY);
+		open--;
+		return this;
+	}
+
+	/**
+	 * Writes the key of a property of the open memento.
+	 */
+	private void startProperty(String key) throws IOException {
+		Objects.requireNonNull(key, "null key");
+		checkInMemento();
+		out.writeByte(BinaryEncoder.PROPERTY_ENTRY);
+		encoder.writeName(key, out);
+	}
+
+	/**
+	 * Writes a {@code String} property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putString(String key, String value) throws IOException {
+		Objects.requireNonNull(value, "null value");
+		startProperty(key);
+		encoder.writeStringProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes an int property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putInt(String key, int value) throws IOException {
+		startProperty(key);
+		encoder.writeIntProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a long property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putLong(String key, long value) throws IOException {
+		startProperty(key);
+		encoder.writeLongProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a float property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putFloat(String key, float value) throws IOException {
+		startProperty(key);
+		encoder.writeFloatProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a double property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putDouble(String key, double value) throws IOException {
+		startProperty(key);
+		encoder.writeDoubleProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a boolean property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putBoolean(String key, boolean value) throws IOException {
+		startProperty(key);
+		encoder.writeBooleanProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a char property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putChar(String key, char value) throws IOException {
+		startProperty(key);
+		encoder.writeCharProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a string array property of the open memento. No elements of the array may be {@code null}.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putStringArray(String key, String[] value) throws IOException {
+		Objects.requireNonNull(value, "null value");
+		for (String s: value) Objects.requireNonNull(s, "null array element");
+		startProperty(key);
+		encoder.writeStringArrayProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a string array property of the open memento. No elements of the list may be {@code null}.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putStringArray(String key, List<String> value) throws IOException {
+		Objects.requireNonNull(value, "null value");
+		return putStringArray(key, value.toArray(new String[value.size()]));
+	}
+
+	/**
+	 * Writes an integer array property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putIntArray(String key, int[] value) throws IOException {
+		Objects.requireNonNull(value, "null value");
+		startProperty(key);
+		encoder.writeIntArrayProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a byte array property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putByteArray(String key, byte[] value) throws IOException {
+		Objects.requireNonNull(value, "null value");
+		startProperty(key);
+		encoder.writeByteArrayProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a double array property of the open memento.
+	 *
+	 * @param key the key of the property
+	 * @param value the value of the property
+	 * @return this writer
+	 * @throws IllegalStateException if no memento is open
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putDoubleArray(String key, double[] value) throws IOException {
+		Objects.requireNonNull(value, "null value");
+		startProperty(key);
+		encoder.writeDoubleArrayProperty(value, out);
+		return this;
+	}
+
+	/**
+	 * Writes a complete memento with all its descendants as a child of the open memento, or as the root memento if no
+	 * memento has been started yet.
+	 *
+	 * @param memento the memento to write
+	 * @return this writer
+	 * @throws IllegalStateException if the root memento has already been ended
+	 * @throws IOException if an I/O error occurs
+	 */
+	public MementoWriter putMemento(Memento memento) throws IOException {
+		Objects.requireNonNull(memento, "null memento");
+		memento=memento.consistentView();
+		startMemento(memento.getType());
+		try {
+			for (Iterator<String> i=memento.iterateProperties(); i.hasNext();) {
+				String key=i.next();
+				Class<?> type=memento.getPropertyType(key);
+				if (type==String.class) putString(key, memento.getString(key));
+				else if (type==Integer.class) putInt(key, memento.getInt(key));
+				else if (type==Long.class) putLong(key, memento.getLong(key));
+				else if (type==Float.class) putFloat(key, memento.getFloat(key));
+				else if (type==Double.class) putDouble(key, memento.getDouble(key));
+				else if (type==Boolean.class) putBoolean(key, memento.getBoolean(key));
+				else if (type==Character.class) putChar(key, memento.getChar(key));
+				else if (type==String[].class) putStringArray(key, memento.getStringArray(key));
+				else if (type==Integer[].class) putIntArray(key, memento.getIntArray(key));
+				else if (type==Byte[].class) putByteArray(key, memento.getByteArray(key));
+				else if (type==Double[].class) putDoubleArray(key, memento.getDoubleArray(key));
+				else throw new IllegalStateException("Unknown type: "+type);
+			}
+		} catch (MementoFormatException e) {
+			throw new Error(e);
+		}
+		for (Memento child: memento)
+			putMemento(child);
+		return endMemento();
+	}
+
+	/**
+	 * Writes the buffered data to the destination. The destination stream itself is not flushed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		out.flush();
+	}
+
+	/**
+	 * Writes the buffered data and closes the writer. If the writer was created for a file, the file is closed; a
+	 * stream passed to {@link MementoStore#mementoWriterToBinary(java.io.OutputStream, BinaryFeature...)} is not
+	 * closed. If the root memento has not been ended, the written data is incomplete.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			out.flush();
+		} finally {
+			closed=true;
+			if (resource!=null) resource.close();
+		}
+	}
+}
@@ -8,6 +8,11 @@ package hu.kazocsaba.memento;
 public class NoSuchPropertyException extends MementoFormatException {
 	private static final long serialVersionUID = 28614353283745L;
 
+	/**
+	 * The key of the missing property, if the message is built on demand.
+	 */
+	private String key;
+
 	public NoSuchPropertyException() {
 	}
 
@@ -22,4 +27,29 @@ public class NoSuchPropertyException extends MementoFormatException {
 	public NoSuchPropertyException(String message, Throwable cause) {
 		super(message, cause);
 	}
+
+	/**
+	 * @see MementoFormatException#MementoFormatException(String, Throwable, boolean, boolean)
+	 */
+	protected NoSuchPropertyException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+	/**
+	 * Creates the exception reporting a missing property. The exception has no stack trace, and its message is only
+	 * built when requested, so that code probing the properties by catching it remains cheap.
+	 *
+	 * @param key the key of the missing property
+	 * @return the new exception
+	 */
+	static NoSuchPropertyException of(String key) {
+		NoSuchPropertyException e=new NoSuchPropertyException(null, null, false, false);
+		e.key=key;
+		return e;
+	}
+
+	@Override
+	public String getMessage() {
+		return key!=null ? "No property: "+key : super.getMessage();
+	}
 }
@@ -0,0 +1,190 @@
+package hu.kazocsaba.memento;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The result of looking up a property with {@link Memento#lookup(String, PropertyLookup)}: whether the property
+ * exists, its type, and its value. The typed getters never throw an exception: they return the given default value if
+ * the property does not exist or has a different type, so optional properties can be probed cheaply.
+ * <pre>
+ *    PropertyLookup lookup = new PropertyLookup();
+ *    for (Memento child: m) {
+ *        // earlier versions stored the timeout as an int
+ *        long timeout = child.lookup("timeout", lookup).getLong(lookup.getInt(DEFAULT_TIMEOUT));
+ *        ...
+ *    }
+ * </pre>
+ * An instance can be reused for any number of lookups; each lookup replaces the previous result. Instances are not
+ * thread-safe.
+ *
+ * @author Kazó Csaba
+ */
+public final class PropertyLookup {
+	/**
+	 * The tag of the property as defined by {@link PropertyTable}, or 0 if there is no property.
+	 */
+	private byte tag;
+	private long bits;
+	private Object ref;
+
+	/**
+	 * Creates a result holder without a property.
+	 */
+	public PropertyLookup() {}
+
+	void set(byte tag, long bits, Object ref) {
+		this.tag=tag;
+		this.bits=bits;
+		this.ref=ref;
+	}
+
+	void clear() {
+		tag=0;
+		bits=0;
+		ref=null;
+	}
+
+	/**
+	 * Returns whether the property was found.
+	 *
+	 * @return {@code true} if the property exists
+	 */
+	public boolean isPresent() {
+		return tag!=0;
+	}
+
+	/**
+	 * Returns the type of the property, in the same way as {@link Memento#getPropertyType(String)}.
+	 *
+	 * @return the type of the property, or {@code null} if it does not exist
+	 */
+	public Class<?> getType() {
+		return tag==0 ? null : PropertyTable.typeOf(tag);
+	}
+
+	/**
+	 * Returns the value of the String property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public String getString(String defaultValue) {
+		return tag==PropertyTable.STRING ? (String)ref : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the integer property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public int getInt(int defaultValue) {
+		return tag==PropertyTable.INT ? (int)bits : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the long property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public long getLong(long defaultValue) {
+		return tag==PropertyTable.LONG ? bits : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the float property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public float getFloat(float defaultValue) {
+		return tag==PropertyTable.FLOAT ? Float.intBitsToFloat((int)bits) : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the double property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public double getDouble(double defaultValue) {
+		return tag==PropertyTable.DOUBLE ? Double.longBitsToDouble(bits) : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the boolean property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public boolean getBoolean(boolean defaultValue) {
+		return tag==PropertyTable.BOOLEAN ? bits!=0 : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the character property.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type
+	 * @return the value of the property, or the default value
+	 */
+	public char getChar(char defaultValue) {
+		return tag==PropertyTable.CHAR ? (char)bits : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the string array property. The array is returned by reference, as by the getter of {@link Memento}.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type; can be
+	 * {@code null}
+	 * @return the value of the property, or the default value
+	 */
+	public String[] getStringArray(String[] defaultValue) {
+		return tag==PropertyTable.STRING_ARRAY ? ((StringArray)ref).getArray() : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the integer array property. The array is returned by reference, as by the getter of {@link Memento}.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type; can be
+	 * {@code null}
+	 * @return the value of the property, or the default value
+	 */
+	public int[] getIntArray(int[] defaultValue) {
+		return tag==PropertyTable.INT_ARRAY ? ((IntArray)ref).getArray() : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the byte array property. The array is returned by reference, as by the getter of {@link Memento}.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type; can be
+	 * {@code null}
+	 * @return the value of the property, or the default value
+	 */
+	public byte[] getByteArray(byte[] defaultValue) {
+		return tag==PropertyTable.BYTE_ARRAY ? ((ByteArray)ref).getArray() : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the byte array property as a read-only buffer, in the same way as
+	 * {@link Memento#getByteBuffer(String)}.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type; can be
+	 * {@code null}
+	 * @return the value of the property, or the default value
+	 */
+	public ByteBuffer getByteBuffer(ByteBuffer defaultValue) {
+		return tag==PropertyTable.BYTE_ARRAY ? ((ByteArray)ref).getBuffer() : defaultValue;
+	}
+
+	/**
+	 * Returns the value of the double array property. The array is returned by reference, as by the getter of {@link Memento}.
+	 *
+	 * @param defaultValue the value to return if the property does not exist or has a different type; can be
+	 * {@code null}
+	 * @return the value of the property, or the default value
+	 */
+	public double[] getDoubleArray(double[] defaultValue) {
+		return tag==PropertyTable.DOUBLE_ARRAY ? ((DoubleArray)ref).getArray() : defaultValue;
+	}
+}
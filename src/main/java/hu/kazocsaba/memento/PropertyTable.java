@@ -0,0 +1,332 @@
+package hu.kazocsaba.memento;
+
+import java.util.Arrays;
+
+/**
+ * Stores the properties of a memento without boxing the primitive values. The keys and their slots are described by
+ * a {@link Shape}, which is shared by the mementos having the same keys. The table itself only holds the values in
+ * parallel arrays indexed by slot: a tag identifying the type of each property, and either the bits of a primitive
+ * value or a reference to a string or an array wrapper. The array of the primitive bits and the array of the
+ * references are only allocated when the first such value is stored.
+ * <p>
+ * The equality and the hash code of the table are the same as those of a {@code Map} holding the boxed values.
+ *
+ * @author Kazó Csaba
+ */
+final class PropertyTable {
+	static final byte STRING=1;
+	static final byte INT=2;
+	static final byte LONG=3;
+	static final byte FLOAT=4;
+	static final byte DOUBLE=5;
+	static final byte BOOLEAN=6;
+	static final byte CHAR=7;
+	static final byte STRING_ARRAY=8;
+	static final byte INT_ARRAY=9;
+	static final byte BYTE_ARRAY=10;
+	static final byte DOUBLE_ARRAY=11;
+
+	private static final byte[] NO_TAGS={};
+	private static final int INITIAL_CAPACITY=4;
+
+	private Shape shape=Shape.EMPTY;
+	private byte[] tags=NO_TAGS;
+	/**
+	 * The bits of the primitive values, or {@code null} if no primitive value has been stored yet.
+	 */
+	private long[] bits;
+	/**
+	 * The references of the other values, or {@code null} if no such value has been stored yet.
+	 */
+	private Object[] refs;
+
+	/**
+	 * Returns the class representing the values with a tag, as returned by {@link Memento#getPropertyType(String)}.
+	 */
+	static Class<?> typeOf(byte tag) {
+		switch (tag) {
+			case STRING: return String.class;
+			case INT: return Integer.class;
+			case LONG: return Long.class;
+			case FLOAT: return Float.class;
+			case DOUBLE: return Double.class;
+			case BOOLEAN: return Boolean.class;
+			case CHAR: return Character.class;
+			case STRING_ARRAY: return String[].class;
+			case INT_ARRAY: return Integer[].class;
+			case BYTE_ARRAY: return Byte[].class;
+			case DOUBLE_ARRAY: return Double[].class;
+			default: throw new AssertionError(tag);
+		}
+	}
+
+	/**
+	 * Returns whether the values with a tag are stored as references rather than primitive bits.
+	 */
+	private static boolean isReference(byte tag) {
+		return tag==STRING || tag>=STRING_ARRAY;
+	}
+
+	/**
+	 * Returns whether the values with a tag are arrays.
+	 */
+	static boolean isArray(byte tag) {
+		return tag>=STRING_ARRAY;
+	}
+
+	int size() {
+		return shape.size();
+	}
+
+	/**
+	 * Returns the slot of the property with the given key.
+	 *
+	 * @return the slot, or -1 if there is no such property
+	 */
+	int find(String key) {
+		return shape.find(key);
+	}
+
+	String key(int slot) {
+		return shape.key(slot);
+	}
+
+	byte tag(int slot) {
+		return tags[slot];
+	}
+
+	long bits(int slot) {
+		return bits==null ? 0 : bits[slot];
+	}
+
+	Object ref(int slot) {
+		return refs==null ? null : refs[slot];
+	}
+
+	/**
+	 * Stores a primitive property, replacing the existing property with the same key.
+	 */
+	void putBits(String key, byte tag, long value) {
+		int slot=slotFor(key);
+		tags[slot]=tag;
+		if (bits==null) bits=new long[tags.length];
+		bits[slot]=value;
+		if (refs!=null) refs[slot]=null;
+	}
+
+	/**
+	 * Stores a property with a string or array value, replacing the existing property with the same key.
+	 */
+	void putRef(String key, byte tag, Object value) {
+		int slot=slotFor(key);
+		tags[slot]=tag;
+		if (bits!=null) bits[slot]=0;
+		if (refs==null) refs=new Object[tags.length];
+		refs[slot]=value;
+	}
+
+	/**
+	 * Copies all properties of another table into this one, replacing the existing properties with the same keys.
+	 */
+	void putAll(PropertyTable other) {
+		for (int i=0, size=other.size(); i<size; i++) {
+			if (isReference(other.tags[i]))
+				putRef(other.key(i), other.tags[i], other.refs[i]);
+			else
+				putBits(other.key(i), other.tags[i], other.bits[i]);
+		}
+	}
+
+	/**
+	 * Returns a copy of this table that can be modified independently.
+	 */
+	PropertyTable copy() {
+		PropertyTable copy=new PropertyTable();
+		copy.shape=shape.copy();
+		copy.tags=tags.clone();
+		copy.bits=bits==null ? null : bits.clone();
+		copy.refs=refs==null ? null : refs.clone();
+		return copy;
+	}
+
+	/**
+	 * Replaces the array values with copies, so that they can be modified without affecting the tables sharing them.
+	 */
+	void copyArrays() {
+		for (int slot=0, size=shape.size(); slot<size; slot++) {
+			switch (tags[slot]) {
+				case STRING_ARRAY:
+					refs[slot]=((StringArray)refs[slot]).copy();
+					break;
+				case INT_ARRAY:
+					refs[slot]=((IntArray)refs[slot]).copy();
+					break;
+				case BYTE_ARRAY:
+					refs[slot]=((ByteArray)refs[slot]).copy();
+					break;
+				case DOUBLE_ARRAY:
+					refs[slot]=((DoubleArray)refs[slot]).copy();
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Removes the property with the given key.
+	 *
+	 * @return {@code false} if there was no such property
+	 */
+	boolean remove(String key) {
+		int slot=find(key);
+		if (slot==-1) return false;
+		removeSlot(slot);
+		return true;
+	}
+
+	/**
+	 * Returns the slot of the property with the given key, transitioning to a new shape if it does not exist.
+	 */
+	private int slotFor(String key) {
+		int slot=shape.find(key);
+		if (slot!=-1) return slot;
+		slot=shape.size();
+		shape=shape.with(key);
+		if (slot==tags.length) {
+			int capacity=Math.max(INITIAL_CAPACITY, 2*slot);
+			tags=Arrays.copyOf(tags, capacity);
+			if (bits!=null) bits=Arrays.copyOf(bits, capacity);
+			if (refs!=null) refs=Arrays.copyOf(refs, capacity);
+		}
+		return slot;
+	}
+
+	/**
+	 * Removes a slot, moving the following properties back so that the insertion order is kept.
+	 */
+	private void removeSlot(int slot) {
+		int size=shape.size();
+		int moved=size-slot-1;
+		System.arraycopy(tags, slot+1, tags, slot, moved);
+		tags[size-1]=0;
+		if (bits!=null) {
+			System.arraycopy(bits, slot+1, bits, slot, moved);
+			bits[size-1]=0;
+		}
+		if (refs!=null) {
+			System.arraycopy(refs, slot+1, refs, slot, moved);
+			refs[size-1]=null;
+		}
+		shape=shape.without(slot);
+	}
+
+	/**
+	 * Compares the values in two slots, with the semantics of the {@code equals} methods of the boxed values.
+	 */
+	private boolean valueEquals(int slot, PropertyTable other, int otherSlot) {
+		byte tag=tags[slot];
+		if (other.tags[otherSlot]!=tag) return false;
+		long value=bits(slot), otherValue=other.bits(otherSlot);
+		switch (tag) {
+			case FLOAT:
+				return Float.floatToIntBits(Float.intBitsToFloat((int)value))==Float.floatToIntBits(Float.intBitsToFloat((int)otherValue));
+			case DOUBLE:
+				return Double.doubleToLongBits(Double.longBitsToDouble(value))==Double.doubleToLongBits(Double.longBitsToDouble(otherValue));
+			case INT:
+			case LONG:
+			case BOOLEAN:
+			case CHAR:
+				return value==otherValue;
+			default:
+				return refs[slot].equals(other.refs[otherSlot]);
+		}
+	}
+
+	/**
+	 * Returns the hash code of the value in a slot, as computed by the boxed value.
+	 */
+	private int valueHash(int slot) {
+		long value=bits(slot);
+		switch (tags[slot]) {
+			case INT:
+			case CHAR:
+				return (int)value;
+			case LONG:
+				return (int)(value ^ (value >>> 32));
+			case FLOAT:
+				return Float.floatToIntBits(Float.intBitsToFloat((int)value));
+			case DOUBLE: {
+				long canonical=Double.doubleToLongBits(Double.longBitsToDouble(value));
+				return (int)(canonical ^ (canonical >>> 32));
+			}
+			case BOOLEAN:
+				return value!=0 ? 1231 : 1237;
+			default:
+				return refs[slot].hashCode();
+		}
+	}
+
+	/**
+	 * Returns the 64-bit digest of the properties. The digests of the properties are added, so that the result does not
+	 * depend on their order, and equal tables have equal digests.
+	 */
+	long digest() {
+		long sum=0;
+		for (int slot=0, size=shape.size(); slot<size; slot++) {
+			long state=Digest.step(Digest.of(shape.key(slot)), tags[slot]);
+			sum+=Digest.mix(Digest.step(state, valueDigest(slot)));
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the digest of the value in a slot, treating the values equal by {@link #valueEquals} the same.
+	 */
+	private long valueDigest(int slot) {
+		long value=bits(slot);
+		switch (tags[slot]) {
+			case INT:
+			case LONG:
+			case BOOLEAN:
+			case CHAR:
+				return value;
+			case FLOAT:
+				return Float.floatToIntBits(Float.intBitsToFloat((int)value));
+			case DOUBLE:
+				return Double.doubleToLongBits(Double.longBitsToDouble(value));
+			case STRING:
+				return Digest.of((String)refs[slot]);
+			case STRING_ARRAY:
+				return ((StringArray)refs[slot]).digest();
+			case INT_ARRAY:
+				return ((IntArray)refs[slot]).digest();
+			case BYTE_ARRAY:
+				return ((ByteArray)refs[slot]).digest();
+			case DOUBLE_ARRAY:
+				return ((DoubleArray)refs[slot]).digest();
+			default:
+				throw new AssertionError(tags[slot]);
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj==this) return true;
+		if (!(obj instanceof PropertyTable)) return false;
+		PropertyTable other=(PropertyTable)obj;
+		int size=shape.size();
+		if (other.size()!=size) return false;
+		for (int slot=0; slot<size; slot++) {
+			int otherSlot=other.shape==shape ? slot : other.find(shape.key(slot));
+			if (otherSlot==-1 || !valueEquals(slot, other, otherSlot)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash=0;
+		for (int slot=0, size=shape.size(); slot<size; slot++)
+			hash+=shape.key(slot).hashCode() ^ valueHash(slot);
+		return hash;
+	}
+}
@@ -0,0 +1,204 @@
+package hu.kazocsaba.memento;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The layout of the properties of a memento: the keys in creation order, and the slots they are stored in. Mementos
+ * with the same keys created in the same order share a single shape, so that each memento only stores the values.
+ * <p>
+ * The shapes form a tree rooted at {@link #EMPTY}: adding a key to a memento transitions it to the child shape with
+ * that key, which is created on first use and then reused by every memento taking the same path. Shared shapes are
+ * immutable and can be used from multiple threads.
+ * <p>
+ * To keep the tree bounded, shapes with many keys and shapes reached from a shape that already has many transitions
+ * are not registered in the tree: the mementos needing them get their own private shapes, which are modified in
+ * place, so adding keys one by one does not copy the keys each time. The empty shape allows more transitions than
+ * the others, as it is the first step of every memento. The tree is never pruned, so the total number of registered
+ * shapes is limited as well: once {@link #MAX_REGISTERED} shapes have been registered, mementos needing a new shape
+ * get private shapes, and only the existing shapes remain shared.
+ *
+ * @author Kazó Csaba
+ */
+final class Shape {
+	/**
+	 * The shape without keys, the root of the transition tree.
+	 */
+	static final Shape EMPTY=new Shape(new String[0], 0, true);
+
+	/**
+	 * The largest number of keys in a shared shape.
+	 */
+	private static final int MAX_SHARED_SIZE=64;
+	/**
+	 * The largest number of transitions registered from a single shape other than {@link #EMPTY}.
+	 */
+	private static final int MAX_TRANSITIONS=64;
+	/**
+	 * The largest number of transitions registered from {@link #EMPTY}, that is, the number of distinct first keys.
+	 */
+	private static final int MAX_EMPTY_TRANSITIONS=4096;
+	/**
+	 * The largest number of shapes registered in the tree. This can be exceeded by a few shapes registered
+	 * concurrently.
+	 */
+	private static final int MAX_REGISTERED=1 << 16;
+	/**
+	 * The number of shapes registered in the tree.
+	 */
+	private static final AtomicInteger registered=new AtomicInteger();
+	private static final int INITIAL_CAPACITY=4;
+
+	/**
+	 * The keys in slot order; the array can be longer than the number of keys in a private shape.
+	 */
+	private String[] keys;
+	/**
+	 * The hash table mapping the keys to their slots. Each entry is one more than a slot, or zero if it is unused.
+	 * Its length is a power of two, at least twice the number of keys.
+	 */
+	private int[] index;
+	private int size;
+	private final boolean shared;
+	/**
+	 * The shapes with one more key, by the added key; created on first use. Only used for shared shapes.
+	 */
+	private volatile ConcurrentHashMap<String,Shape> transitions;
+
+	private Shape(String[] keys, int size, boolean shared) {
+		this.keys=keys;
+		this.size=size;
+		this.shared=shared;
+		rebuildIndex();
+	}
+
+	int size() {
+		return size;
+	}
+
+	String key(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Returns the slot of the given key.
+	 *
+	 * @return the slot, or -1 if this shape does not have the key
+	 */
+	int find(String key) {
+		if (size==0) return -1;
+		int mask=index.length-1;
+		for (int i=hash(key) & mask; ; i=(i+1) & mask) {
+			int entry=index[i];
+			if (entry==0) return -1;
+			String candidate=keys[entry-1];
+			if (candidate==key || candidate.equals(key)) return entry-1;
+		}
+	}
+
+	/**
+	 * Returns the shape having an additional key in the next slot. A private shape is modified and returned.
+	 *
+	 * @param key a key not in this shape
+	 */
+	Shape with(String key) {
+		if (!shared) {
+			add(key);
+			return this;
+		}
+		ConcurrentHashMap<String,Shape> map=transitions;
+		if (map!=null) {
+			Shape next=map.get(key);
+			if (next!=null) return next;
+		}
+		int maxTransitions=this==EMPTY ? MAX_EMPTY_TRANSITIONS : MAX_TRANSITIONS;
+		if (size>=MAX_SHARED_SIZE || registered.get()>=MAX_REGISTERED || map!=null && map.size()>=maxTransitions) {
+			Shape copy=new Shape(Arrays.copyOf(keys, 2*size), size, false);
+			copy.add(key);
+			return copy;
+		}
+		if (map==null) {
+			synchronized (this) {
+				map=transitions;
+				if (map==null) transitions=map=new ConcurrentHashMap<>(4);
+			}
+		}
+		String[] nextKeys=Arrays.copyOf(keys, size+1);
+		nextKeys[size]=key;
+		Shape next=new Shape(nextKeys, size+1, true);
+		Shape existing=map.putIfAbsent(key, next);
+		if (existing!=null) return existing;
+		registered.incrementAndGet();
+		return next;
+	}
+
+	/**
+	 * Returns whether this shape is registered in the tree, and can be shared by multiple mementos.
+	 */
+	boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Returns the number of shapes registered in the tree.
+	 */
+	static int registeredCount() {
+		return registered.get();
+	}
+
+	/**
+	 * Returns the shape without the key in the given slot, with the following keys moved one slot back. A private
+	 * shape is modified and returned.
+	 */
+	Shape without(int slot) {
+		if (!shared) {
+			System.arraycopy(keys, slot+1, keys, slot, size-slot-1);
+			keys[--size]=null;
+			rebuildIndex();
+			return this;
+		}
+		Shape result=EMPTY;
+		for (int i=0; i<size; i++)
+			if (i!=slot) result=result.with(keys[i]);
+		return result;
+	}
+
+	/**
+	 * Returns a shape with the same keys that can be modified independently of this one. Shared shapes are returned
+	 * as they are.
+	 */
+	Shape copy() {
+		return shared ? this : new Shape(keys.clone(), size, false);
+	}
+
+	private void add(String key) {
+		if (size==keys.length) keys=Arrays.copyOf(keys, 2*size);
+		keys[size++]=key;
+		if (2*size>index.length)
+			rebuildIndex();
+		else
+			insertIntoIndex(size-1);
+	}
+
+	private void rebuildIndex() {
+		int length=INITIAL_CAPACITY;
+		while (length<2*size) length*=2;
+		index=new int[length];
+		for (int slot=0; slot<size; slot++)
+			insertIntoIndex(slot);
+	}
+
+	private void insertIntoIndex(int slot) {
+		int mask=index.length-1;
+		int i=hash(keys[slot]) & mask;
+		while (index[i]!=0)
+			i=(i+1) & mask;
+		index[i]=slot+1;
+	}
+
+	private static int hash(String key) {
+		int h=key.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -31,7 +31,23 @@ class StringArray {
 		return Arrays.hashCode(array);
 	}
 
+	/**
+	 * Returns the 64-bit digest of the elements.
+	 */
+	long digest() {
+		long state=Digest.START;
+		for (String element: array) state=Digest.step(state, Digest.of(element));
+		return Digest.mix(Digest.step(state, array.length));
+	}
+
 	public String[] getArray() {
 		return array;
 	}
+
+	/**
+	 * Returns a wrapper around a copy of the array.
+	 */
+	StringArray copy() {
+		return new StringArray(array.clone());
+	}
 }
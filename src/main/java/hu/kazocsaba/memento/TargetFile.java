@@ -0,0 +1,133 @@
+package hu.kazocsaba.memento;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A file written by the methods of {@link MementoStore}. By default, the file is written in place, as
+ * {@link Files#newOutputStream(Path, java.nio.file.OpenOption...)} does. The file is written to a temporary file in
+ * the same directory instead, which replaces it once it has been written completely, if
+ * <ul>
+ * <li>the file is still {@linkplain MappedFile memory-mapped} by mementos loaded from it, which would be destroyed
+ * by truncating it; this allows saving a memento to the file it was loaded from; or</li>
+ * <li>the caller requests it, so that the file either keeps its previous content or receives the complete new
+ * content, even if writing fails.</li>
+ * </ul>
+ * A symbolic link is resolved first, so that the file it points to is replaced, and the temporary file gets the
+ * owner and the permissions of the replaced file. Only regular files are replaced.
+ * <pre>
+ *    try (TargetFile target = TargetFile.open(file, false)) {
+ *        // write target.getPath()
+ *        target.commit();
+ *    }
+ * </pre>
+ *
+ * @author Kazó Csaba
+ */
+final class TargetFile implements Closeable {
+	/**
+	 * The file to replace, or {@code null} if the file is written in place.
+	 */
+	private final Path target;
+	private final Path path;
+
+	private TargetFile(Path target, Path path) {
+		this.target=target;
+		this.path=path;
+	}
+
+	/**
+	 * Prepares writing a file.
+	 *
+	 * @param file the file to write
+	 * @param replace if {@code true}, an existing regular file is replaced even if it is not mapped
+	 * @return the object providing the path to write to
+	 * @throws IOException if an I/O error occurs, or the file is mapped and it is not a regular file
+	 */
+	static TargetFile open(Path file, boolean replace) throws IOException {
+		// a dangling link is followed when the file is created in place
+		if (!Files.exists(file)) return replace && !Files.isSymbolicLink(file) ? replace(file) : new TargetFile(null, file);
+		Path real=file.toRealPath();
+		if (MappedFile.isMapped(real)) {
+			if (!Files.isRegularFile(real, LinkOption.NOFOLLOW_LINKS)) throw new IOException("Not a regular file: "+file);
+			return replace(real);
+		}
+		if (replace && Files.isRegularFile(real, LinkOption.NOFOLLOW_LINKS)) return replace(real);
+		return new TargetFile(null, file);
+	}
+
+	/**
+	 * Creates a temporary file for replacing a file.
+	 */
+	private static TargetFile replace(Path target) throws IOException {
+		Path directory=target.toAbsolutePath().getParent();
+		String prefix="."+target.getFileName()+".";
+		Path temp;
+		while (true) {
+			Path candidate=directory.resolve(prefix+Long.toHexString(ThreadLocalRandom.current().nextLong())+".tmp");
+			try {
+				// unlike Files.createTempFile, this applies the default permissions, like writing the target would
+				temp=Files.createFile(candidate);
+				break;
+			} catch (FileAlreadyExistsException e) {}
+		}
+		try {
+			if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) copyOwnerAndPermissions(target, temp);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return new TargetFile(target, temp);
+	}
+
+	private static void copyOwnerAndPermissions(Path source, Path temp) throws IOException {
+		PosixFileAttributeView view=Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+		if (view==null) return;
+		PosixFileAttributes attributes=Files.readAttributes(source, PosixFileAttributes.class);
+		PosixFileAttributes current=view.readAttributes();
+		if (!attributes.owner().equals(current.owner())) view.setOwner(attributes.owner());
+		if (!attributes.group().equals(current.group())) view.setGroup(attributes.group());
+		view.setPermissions(attributes.permissions());
+	}
+
+	/**
+	 * Returns the path to write to.
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Completes writing the file. If the file is replaced, the temporary file is moved in its place; it must have
+	 * been closed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	void commit() throws IOException {
+		if (target==null) return;
+		try {
+			Files.move(path, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Deletes the temporary file unless it has been committed.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Override
+	public void close() throws IOException {
+		if (target!=null) Files.deleteIfExists(path);
+	}
+}
@@ -8,6 +8,12 @@ package hu.kazocsaba.memento;
 public class TypeMismatchException extends MementoFormatException {
     private static final long serialVersionUID = 28614353283745L;
 
+	/**
+	 * The key of the property, if the message is built on demand.
+	 */
+	private String key;
+	private Class<?> actualType, expectedType;
+
 	public TypeMismatchException() {}
 
 	public TypeMismatchException(String message) {
@@ -22,4 +28,35 @@ public class TypeMismatchException extends MementoFormatException {
 		super(message, cause);
 	}
 
+	/**
+	 * @see MementoFormatException#MementoFormatException(String, Throwable, boolean, boolean)
+	 */
+	protected TypeMismatchException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+	/**
+	 * Creates the exception reporting that a property has a different type than requested. The exception has no stack
+	 * trace, and its message is only built when requested, so that code probing the type of properties by catching it
+	 * remains cheap.
+	 *
+	 * @param key the key of the property
+	 * @param actualType the type of the property
+	 * @param expectedType the requested type
+	 * @return the new exception
+	 */
+	static TypeMismatchException of(String key, Class<?> actualType, Class<?> expectedType) {
+		TypeMismatchException e=new TypeMismatchException(null, null, false, false);
+		e.key=key;
+		e.actualType=actualType;
+		e.expectedType=expectedType;
+		return e;
+	}
+
+	@Override
+	public String getMessage() {
+		if (key==null) return super.getMessage();
+		return "Property "+key+" is "+actualType.getSimpleName()+", not "+expectedType.getSimpleName();
+	}
+
 }
@@ -0,0 +1,295 @@
+package hu.kazocsaba.memento;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.iharder.Base64;
+
+/**
+ * Reads mementos in the XML format with a streaming parser, building the mementos directly without a DOM tree.
+ *
+ * @author Kazó Csaba
+ */
+final class XmlDecoder {
+	/**
+	 * The factory creating the parsers. Factories are expensive to create, and creating parsers is thread-safe once the
+	 * factory is configured.
+	 */
+	private static final XMLInputFactory FACTORY;
+
+	static {
+		FACTORY=XMLInputFactory.newInstance();
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	private final XMLStreamReader reader;
+	private final LoadOptions options;
+
+	private XmlDecoder(XMLStreamReader reader, LoadOptions options) {
+		this.reader=reader;
+		this.options=options;
+	}
+
+	/**
+	 * Reads a memento from a stream in XML format. The stream is not closed.
+	 *
+	 * @param in the stream to read from
+	 * @param options selects the parts of the memento to read
+	 * @return the memento
+	 * @throws IOException if an I/O error occurs
+	 * @throws MementoFormatException if the format of the data is incorrect
+	 */
+	static Memento read(InputStream in, LoadOptions options) throws IOException, MementoFormatException {
+		try {
+			XMLStreamReader reader=FACTORY.createXMLStreamReader(in);
+			try {
+				return new XmlDecoder(reader, options).readDocument();
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			if (e.getNestedException() instanceof IOException) throw (IOException)e.getNestedException();
+			throw new MementoFormatException(e);
+		}
+	}
+
+	private Memento readDocument() throws XMLStreamException, MementoFormatException {
+		int event;
+		while ((event=reader.next())!=XMLStreamConstants.START_ELEMENT) {
+			if (event==XMLStreamConstants.END_DOCUMENT)
+				throw new MementoFormatException("Expected 'memento' root element");
+		}
+		if (!"memento".equals(reader.getLocalName()))
+			throw new MementoFormatException("Expected 'memento' root element");
+		Memento root=new Memento(reader.getAttributeValue(null, "type"));
+		readMemento(root);
+		// check that the rest of the document is well-formed
+		while (reader.hasNext())
+			reader.next();
+		return root;
+	}
+
+	/**
+	 * Reads the content of a {@code memento} element, up to and including its end tag.
+	 */
+	private void readMemento(Memento memento) throws XMLStreamException, MementoFormatException {
+		while (true) {
+			int event=reader.next();
+			if (event==XMLStreamConstants.END_ELEMENT) return;
+			if (event!=XMLStreamConstants.START_ELEMENT) continue;
+			switch (reader.getLocalName()) {
+				case "memento": {
+					String type=reader.getAttributeValue(null, "type");
+					if (options.acceptsChild(type))
+						readMemento(memento.createChild(type));
+					else
+						skipElement();
+					break;
+				}
+				case "property":
+					readProperty(memento);
+					break;
+				default:
+					throw new MementoFormatException("Unexpected element: "+reader.getLocalName());
+			}
+		}
+	}
+
+	/**
+	 * Reads the content of a {@code property} element, up to and including its end tag.
+	 */
+	private void readProperty(Memento memento) throws XMLStreamException, MementoFormatException {
+		String key=null;
+		boolean hasValue=false;
+		while (true) {
+			int event=reader.next();
+			if (event==XMLStreamConstants.END_ELEMENT) break;
+			if (event!=XMLStreamConstants.START_ELEMENT) continue;
+			if (key==null) {
+				if (!"key".equals(reader.getLocalName()))
+					throw new MementoFormatException("Expected 'key' element, found '"+reader.getLocalName()+"'");
+				key=reader.getElementText();
+				if (key.isEmpty())
+					throw new MementoFormatException("'key' element should only have a single text child");
+			} else if (!hasValue) {
+				if (!"value".equals(reader.getLocalName()))
+					throw new MementoFormatException("Expected 'value' element, found '"+reader.getLocalName()+"'");
+				if (reader.getAttributeCount()!=1)
+					throw new MementoFormatException("'value' element should have a single 'type' attribute");
+				String type=reader.getAttributeValue(null, "type");
+				if (type==null)
+					throw new MementoFormatException("'value' element should have a 'type' attribute");
+				if (type.isEmpty()) throw new MementoFormatException("Property type missing");
+				if (!options.acceptsKey(key))
+					skipElement();
+				else {
+					if (memento.getPropertyType(key)!=null)
+						throw new MementoFormatException("Found memento with duplicate properties");
+					readValue(memento, key, type);
+				}
+				hasValue=true;
+			} else
+				throw new MementoFormatException("Unexpected element: "+reader.getLocalName());
+		}
+		if (key==null)
+			throw new MementoFormatException("Missing 'key' element in property declaration");
+		if (!hasValue)
+			throw new MementoFormatException("Missing 'value' element in property declaration");
+	}
+
+	/**
+	 * Reads the content of a {@code value} element, up to and including its end tag.
+	 */
+	private void readValue(Memento memento, String key, String type) throws XMLStreamException, MementoFormatException {
+		switch (type) {
+			case "string":
+				memento.putString(key, reader.getElementText());
+				break;
+			case "integer": {
+				String value=reader.getElementText();
+				try {
+					memento.putInt(key, Integer.parseInt(value));
+				} catch (NumberFormatException e) {
+					throw new MementoFormatException("Incorrect value format: expected integer, found "+value);
+				}
+				break;
+			}
+			case "long": {
+				String value=reader.getElementText();
+				try {
+					memento.putLong(key, Long.parseLong(value));
+				} catch (NumberFormatException e) {
+					throw new MementoFormatException("Incorrect value format: expected long, found "+value);
+				}
+				break;
+			}
+			case "float": {
+				String value=reader.getElementText();
+				try {
+					memento.putFloat(key, Float.parseFloat(value));
+				} catch (NumberFormatException e) {
+					throw new MementoFormatException("Incorrect value format: expected float, found "+value);
+				}
+				break;
+			}
+			case "double": {
+				String value=reader.getElementText();
+				try {
+					memento.putDouble(key, Double.parseDouble(value));
+				} catch (NumberFormatException e) {
+					throw new MementoFormatException("Incorrect value format: expected double, found "+value);
+				}
+				break;
+			}
+			case "boolean": {
+				String value=reader.getElementText();
+				switch (value) {
+					case "true":
+						memento.putBoolean(key, true);
+						break;
+					case "false":
+						memento.putBoolean(key, false);
+						break;
+					default:
+						throw new MementoFormatException("Incorrect value format: expected boolean, found "+value);
+				}
+				break;
+			}
+			case "character": {
+				String value=reader.getElementText();
+				if (value.length()!=1)
+					throw new MementoFormatException("Incorrect value format: expected character, found "+value);
+				memento.putChar(key, value.charAt(0));
+				break;
+			}
+			case "byte[]":
+				try {
+					memento.putByteArray(key, Base64.decode(reader.getElementText()));
+				} catch (IOException e) {
+					throw new MementoFormatException("Invalid base64 binary data", e);
+				}
+				break;
+			case "string[]": {
+				List<String> strings=new ArrayList<>();
+				while (nextItem())
+					strings.add(reader.getElementText());
+				memento.putStringArray(key, strings.toArray(new String[strings.size()]));
+				break;
+			}
+			case "integer[]": {
+				int[] ints=new int[16];
+				int count=0;
+				while (nextItem()) {
+					if (count==ints.length) ints=Arrays.copyOf(ints, 2*count);
+					try {
+						ints[count++]=Integer.parseInt(reader.getElementText());
+					} catch (NumberFormatException e) {
+						throw new MementoFormatException("Incorrect integer");
+					}
+				}
+				memento.putIntArray(key, Arrays.copyOf(ints, count));
+				break;
+			}
+			case "double[]": {
+				double[] doubles=new double[16];
+				int count=0;
+				while (nextItem()) {
+					if (count==doubles.length) doubles=Arrays.copyOf(doubles, 2*count);
+					try {
+						doubles[count++]=Double.parseDouble(reader.getElementText());
+					} catch (NumberFormatException e) {
+						throw new MementoFormatException("Incorrect double");
+					}
+				}
+				memento.putDoubleArray(key, Arrays.copyOf(doubles, count));
+				break;
+			}
+			default:
+				throw new MementoFormatException("Incorrect type: "+type);
+		}
+	}
+
+	/**
+	 * Skips the content of the current element, up to and including its end tag.
+	 */
+	private void skipElement() throws XMLStreamException {
+		int depth=1;
+		while (depth>0) {
+			int event=reader.next();
+			if (event==XMLStreamConstants.START_ELEMENT) depth++;
+			else if (event==XMLStreamConstants.END_ELEMENT) depth--;
+		}
+	}
+
+	/**
+	 * Advances to the start tag of the next {@code item} element of an array value.
+	 *
+	 * @return {@code false} if the end of the value has been reached instead
+	 */
+	private boolean nextItem() throws XMLStreamException, MementoFormatException {
+		while (true) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					if (!"item".equals(reader.getLocalName()))
+						throw new MementoFormatException("Item element expected");
+					return true;
+				case XMLStreamConstants.END_ELEMENT:
+					return false;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (!reader.isWhiteSpace())
+						throw new MementoFormatException("Item element expected");
+					break;
+				default:
+					// whitespace, comments, and processing instructions are ignored
+			}
+		}
+	}
+}
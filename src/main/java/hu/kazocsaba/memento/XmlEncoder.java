@@ -0,0 +1,287 @@
+package hu.kazocsaba.memento;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import net.iharder.Base64;
+
+/**
+ * Writes mementos in the XML format directly from the memento tree, without building a DOM tree. The output is
+ * identical to what the identity transformer produces from the document created by
+ * {@link MementoStore#mementoToXml(Memento)}.
+ *
+ * @author Kazó Csaba
+ */
+final class XmlEncoder {
+	private static final String DECLARATION="<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+	private static final int INDENT_AMOUNT=4;
+	/**
+	 * The number of bytes encoded at once in Base64; a multiple of 3, so that the chunks need no padding.
+	 */
+	private static final int BASE64_CHUNK=3 << 12;
+
+	private final Writer out;
+	private final boolean indent;
+	private final char[] buffer=new char[1 << 13];
+	private int position;
+	private int depth;
+
+	private XmlEncoder(Writer out, boolean indent) {
+		this.out=out;
+		this.indent=indent;
+	}
+
+	/**
+	 * Writes a memento to a stream in XML format. The data is flushed, but the stream is not closed.
+	 *
+	 * @param memento the memento to write
+	 * @param out the stream to write to
+	 * @param indent whether to put elements on separate, indented lines
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void write(Memento memento, OutputStream out, boolean indent) throws IOException {
+		Writer writer=new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		XmlEncoder encoder=new XmlEncoder(writer, indent);
+		encoder.writeRaw(DECLARATION);
+		encoder.writeMemento(memento.consistentView());
+		if (indent) encoder.writeRaw('\n');
+		encoder.flushBuffer();
+		writer.flush();
+	}
+
+	private void writeMemento(Memento memento) throws IOException {
+		newLine();
+		writeRaw("<memento");
+		if (memento.getType()!=null) {
+			writeRaw(" type=\"");
+			writeEscaped(memento.getType(), true);
+			writeRaw('"');
+		}
+		if (!memento.iterateProperties().hasNext() && !memento.iterateChildren().hasNext()) {
+			writeRaw("/>");
+			return;
+		}
+		writeRaw('>');
+		depth++;
+		try {
+			for (Iterator<String> keys=memento.iterateProperties(); keys.hasNext();) {
+				String key=keys.next();
+				newLine();
+				writeRaw("<property>");
+				depth++;
+				writeTextElement("key", null, key);
+				writeValue(memento, key);
+				depth--;
+				newLine();
+				writeRaw("</property>");
+			}
+		} catch (NoSuchPropertyException | TypeMismatchException e) {
+			throw new AssertionError(e);
+		}
+		for (Iterator<Memento> children=memento.iterateChildren(); children.hasNext();)
+			writeMemento(children.next());
+		depth--;
+		newLine();
+		writeRaw("</memento>");
+	}
+
+	private void writeValue(Memento memento, String key) throws IOException, NoSuchPropertyException, TypeMismatchException {
+		Class<?> valueType=memento.getPropertyType(key);
+		if (valueType==String.class)
+			writeTextElement("value", "string", memento.getString(key));
+		else if (valueType==Integer.class)
+			writeTextElement("value", "integer", Integer.toString(memento.getInt(key)));
+		else if (valueType==Long.class)
+			writeTextElement("value", "long", Long.toString(memento.getLong(key)));
+		else if (valueType==Float.class)
+			writeTextElement("value", "float", Float.toString(memento.getFloat(key)));
+		else if (valueType==Boolean.class)
+			writeTextElement("value", "boolean", Boolean.toString(memento.getBoolean(key)));
+		else if (valueType==Character.class)
+			writeTextElement("value", "character", Character.toString(memento.getChar(key)));
+		else if (valueType==Byte[].class)
+			writeByteArray(memento.getByteBuffer(key));
+		else if (valueType==Double.class)
+			writeTextElement("value", "double", Double.toString(memento.getDouble(key)));
+		else if (valueType==String[].class) {
+			String[] items=memento.getStringArray(key);
+			if (startArray("string[]", items.length)) {
+				for (String item: items)
+					writeTextElement("item", null, item);
+				endArray();
+			}
+		} else if (valueType==Integer[].class) {
+			int[] items=memento.getIntArray(key);
+			if (startArray("integer[]", items.length)) {
+				for (int item: items)
+					writeTextElement("item", null, Integer.toString(item));
+				endArray();
+			}
+		} else if (valueType==Double[].class) {
+			double[] items=memento.getDoubleArray(key);
+			if (startArray("double[]", items.length)) {
+				for (double item: items)
+					writeTextElement("item", null, Double.toString(item));
+				endArray();
+			}
+		} else
+			throw new IllegalStateException("Unknown value type: "+valueType);
+	}
+
+	/**
+	 * Writes the {@code value} element of a byte array, encoding the bytes in chunks so that large arrays are not
+	 * turned into a single string.
+	 */
+	private void writeByteArray(ByteBuffer bytes) throws IOException {
+		newLine();
+		writeRaw("<value type=\"byte[]\"");
+		if (!bytes.hasRemaining()) {
+			writeRaw("/>");
+			return;
+		}
+		writeRaw('>');
+		CharBuffer chars=CharBuffer.allocate(BASE64_CHUNK/3*4);
+		while (bytes.hasRemaining()) {
+			ByteBuffer chunk=bytes.duplicate();
+			chunk.limit(chunk.position()+Math.min(chunk.remaining(), BASE64_CHUNK));
+			bytes.position(chunk.limit());
+			chars.clear();
+			Base64.encode(chunk, chars);
+			flushBuffer();
+			out.write(chars.array(), 0, chars.position());
+		}
+		writeRaw("</value>");
+	}
+
+	/**
+	 * Starts the {@code value} element of an array. An empty array is written completely as an empty element.
+	 *
+	 * @return {@code true} if the array is not empty, and the items should be written followed by {@link #endArray()}
+	 */
+	private boolean startArray(String type, int length) throws IOException {
+		newLine();
+		writeRaw("<value type=\"");
+		writeRaw(type);
+		if (length==0) {
+			writeRaw("\"/>");
+			return false;
+		}
+		writeRaw("\">");
+		depth++;
+		return true;
+	}
+
+	private void endArray() throws IOException {
+		depth--;
+		newLine();
+		writeRaw("</value>");
+	}
+
+	/**
+	 * Writes an element with text content on its own line.
+	 *
+	 * @param type the value of the {@code type} attribute, or {@code null} if the element has no attributes
+	 */
+	private void writeTextElement(String name, String type, String text) throws IOException {
+		newLine();
+		writeRaw('<');
+		writeRaw(name);
+		if (type!=null) {
+			writeRaw(" type=\"");
+			writeRaw(type);
+			writeRaw('"');
+		}
+		if (text.isEmpty()) {
+			writeRaw("/>");
+			return;
+		}
+		writeRaw('>');
+		writeEscaped(text, false);
+		writeRaw("</");
+		writeRaw(name);
+		writeRaw('>');
+	}
+
+	private void newLine() throws IOException {
+		if (!indent) return;
+		writeRaw('\n');
+		for (int i=depth*INDENT_AMOUNT; i>0; i--)
+			writeRaw(' ');
+	}
+
+	/**
+	 * Writes text, replacing the characters that cannot appear literally with references.
+	 *
+	 * @param attribute whether the text is an attribute value delimited by double quotes, in which case quotes and
+	 * whitespace other than space need to be escaped as well
+	 */
+	private void writeEscaped(String text, boolean attribute) throws IOException {
+		for (int i=0, length=text.length(); i<length; i++) {
+			char c=text.charAt(i);
+			switch (c) {
+				case '&':
+					writeRaw("&amp;");
+					break;
+				case '<':
+					writeRaw("&lt;");
+					break;
+				case '>':
+					writeRaw("&gt;");
+					break;
+				case '"':
+					if (attribute) writeRaw("&quot;");
+					else writeRaw(c);
+					break;
+				case '\t':
+				case '\n':
+					if (attribute) writeReference(c);
+					else writeRaw(c);
+					break;
+				default:
+					if (c<' ')
+						writeReference(c);
+					else if (Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(text.charAt(i+1)))
+						writeReference(Character.toCodePoint(c, text.charAt(++i)));
+					else if (Character.isSurrogate(c))
+						throw new IOException("Invalid UTF-16 surrogate: "+Integer.toHexString(c));
+					else
+						writeRaw(c);
+			}
+		}
+	}
+
+	private void writeReference(int codePoint) throws IOException {
+		writeRaw("&#");
+		writeRaw(Integer.toString(codePoint));
+		writeRaw(';');
+	}
+
+	private void writeRaw(char c) throws IOException {
+		if (position==buffer.length) flushBuffer();
+		buffer[position++]=c;
+	}
+
+	private void writeRaw(String s) throws IOException {
+		int length=s.length();
+		if (position+length>buffer.length) {
+			flushBuffer();
+			if (length>buffer.length) {
+				out.write(s);
+				return;
+			}
+		}
+		s.getChars(0, length, buffer, position);
+		position+=length;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		position=0;
+	}
+}
@@ -0,0 +1,126 @@
+package hu.kazocsaba.memento;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class MementoPathTest {
+	private static Memento createMemento() {
+		Memento root=new Memento("root");
+		root.putString("name", "config");
+		Memento first=root.createChild("cluster").putString("name", "a");
+		first.createChild("node").putInt("id", 1).putInt("port", 80);
+		first.createChild("node").putInt("id", 7).putInt("port", 8080).putString("host", "x]y");
+		root.createChild("other").createChild("node").putInt("id", 7).putInt("port", 1);
+		Memento second=root.createChild("cluster").putString("name", "b");
+		second.createChild("node").putLong("id", 7).putInt("port", 9090).putDouble("load", 0.5)
+				.putBoolean("active", true).putChar("zone", 'c').putIntArray("ports", new int[] {1, 2});
+		second.createChild("node/x").putInt("id", 2);
+		return root;
+	}
+	
+	@Test
+	public void testFind() throws Exception {
+		Memento root=createMemento();
+		Memento first=root.getFirstChild();
+		Memento second=root.getChildren().get(2);
+		
+		assertEquals(8080, MementoPath.compile("cluster/node[id=7]/@port").findFirstValue(root));
+		assertSame(first.getChildren().get(1), MementoPath.compile("cluster/node[id=7]").findFirst(root));
+		assertEquals(Arrays.asList(first.getChildren().get(1), root.getChildren().get(1).getFirstChild(), second.getFirstChild()),
+				MementoPath.compile("*/node[id=7]").findAll(root));
+		assertEquals(9090, MementoPath.compile("cluster[name=b]/node/@port").findFirstValue(root));
+		assertEquals("config", MementoPath.compile("@name").findFirstValue(root));
+		assertNull(MementoPath.compile("@missing").findFirstValue(root));
+		assertNull(MementoPath.compile("cluster/missing").findFirst(root));
+		assertEquals(Arrays.asList(first.getChildren().get(1)), MementoPath.compile("cluster/node/@host").findAll(root));
+		assertEquals(second.getChildren().get(1), MementoPath.compile("*/'node/x'").findFirst(root));
+		assertEquals(first.getChildren().get(1), MementoPath.compile("cluster/node[host='x]y']").findFirst(root));
+		assertEquals(5, MementoPath.compile("*/*[id]").findAll(root).size());
+		
+		// values are compared according to the type of the property
+		assertSame(second.getFirstChild(), MementoPath.compile("*/*[load=.5][active=true][zone=c]").findFirst(root));
+		assertNull(MementoPath.compile("*/*[load=0.50x]").findFirst(root));
+		assertNull(MementoPath.compile("*/*[active=1]").findFirst(root));
+		assertNull(MementoPath.compile("*/*[ports=1]").findFirst(root));
+		assertNull(MementoPath.compile("*/*[id=7.5]").findFirst(root));
+		assertEquals(8080, MementoPath.compile("cluster/node[id=7.0]/@port").findFirstValue(root));
+		assertArrayEquals(new int[] {1, 2}, (int[])MementoPath.compile("*/*/@ports").findFirstValue(root));
+	}
+	
+	@Test
+	public void testSyntax() throws Exception {
+		Memento memento=new Memento();
+		Memento quoted=memento.createChild("it's");
+		assertSame(quoted, MementoPath.compile("'it''s'").findFirst(memento));
+		assertSame(quoted, MementoPath.compile("\"it's\"").findFirst(memento));
+		assertEquals("a b", MementoPath.compile("x/@\"a b\"").getProperty());
+		assertNull(MementoPath.compile("x/y").getProperty());
+		for (String path: Arrays.asList("", "a/", "/a", "a//b", "a[b", "a[b=c", "a[]", "@a/b", "a/@", "'a", "a]", "a@b")) {
+			try {
+				MementoPath.compile(path);
+				fail(path);
+			} catch (IllegalArgumentException e) {}
+		}
+		try {
+			MementoPath.compile("a/b").findFirstValue(new Memento());
+			fail();
+		} catch (IllegalStateException e) {}
+	}
+	
+	@Test
+	public void testReader() throws Exception {
+		Memento root=createMemento();
+		List<byte[]> encoded=Arrays.asList(binary(root), binary(root, BinaryFeature.INDEXED, BinaryFeature.STRING_TABLE),
+				streamed(root));
+		for (byte[] data: encoded) {
+			assertEquals(8080, MementoPath.compile("cluster/node[id=7]/@port").findFirstValue(reader(data)));
+			assertEquals(9090, MementoPath.compile("cluster[name=b]/node/@port").findFirstValue(reader(data)));
+			assertEquals("config", MementoPath.compile("@name").findFirstValue(reader(data)));
+			assertNull(MementoPath.compile("cluster/node[id=8]/@port").findFirstValue(reader(data)));
+			assertEquals(root.getChildren().get(2).getFirstChild(),
+					MementoPath.compile("*/node[load=0.5]").findFirst(reader(data)));
+			assertEquals(root.getChildren().get(2), MementoPath.compile("cluster[name=b]").findFirst(reader(data)));
+			assertNull(MementoPath.compile("*/*[id=2]/@port").findFirstValue(reader(data)));
+			
+			// the search can be continued where the previous one stopped
+			MementoReader reader=reader(data);
+			MementoPath path=MementoPath.compile("node/@port");
+			reader.next();
+			reader.next();
+			while (reader.getEvent()!=MementoReader.Event.START_MEMENTO) reader.next();
+			assertEquals(80, path.findFirstValue(reader));
+			while (reader.getEvent()!=MementoReader.Event.END_MEMENTO || reader.getDepth()!=1) reader.next();
+			reader.next();
+			assertEquals(1, path.findFirstValue(reader));
+		}
+	}
+	
+	private static byte[] binary(Memento memento, BinaryFeature... features) throws Exception {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(memento, out, features);
+		return out.toByteArray();
+	}
+	
+	private static byte[] streamed(Memento memento) throws Exception {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		try (MementoWriter writer=MementoStore.mementoWriterToBinary(out)) {
+			writer.putMemento(memento);
+		}
+		return out.toByteArray();
+	}
+	
+	private static MementoReader reader(byte[] data) throws Exception {
+		return MementoStore.binaryToMementoReader(new ByteArrayInputStream(data));
+	}
+}
@@ -0,0 +1,157 @@
+package hu.kazocsaba.memento;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class MementoReaderTest {
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+	/**
+	 * All the features that the reader supports.
+	 */
+	private static final BinaryFeature[] SUPPORTED_FEATURES={
+		BinaryFeature.INDEXED, BinaryFeature.STRING_TABLE, BinaryFeature.COMPACT_INTEGERS, BinaryFeature.STREAMED
+	};
+	
+	private static Memento createMemento() {
+		Memento root=new Memento("root");
+		root.putString("name", "árvíztűrő");
+		root.putDoubleArray("doubles", new double[] {1, 2.5});
+		for (int i=0; i<20; i++) {
+			Memento child=root.createChild(i%2==0 ? "even" : null);
+			child.putInt("index", i).putLong("long", -i).putFloat("float", i/2f).putDouble("double", i/3.0)
+					.putBoolean("boolean", i%3==0).putChar("char", (char)('a'+i));
+			child.putStringArray("strings", new String[] {"x", "y"+i});
+			child.putIntArray("ints", new int[] {i, -i});
+			child.putByteArray("bytes", new byte[i]);
+			child.createChild("grandchild").putString("long string", new String(new char[70000]).replace('\0', 'é'));
+		}
+		return root;
+	}
+	
+	/**
+	 * Builds a memento from the events of a reader.
+	 */
+	private static Memento read(MementoReader reader) throws Exception {
+		Deque<Memento> stack=new ArrayDeque<>();
+		Memento root=null;
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+				case START_MEMENTO:
+					Memento memento=stack.isEmpty() ? (root=new Memento(reader.getType())) : stack.peek().createChild(reader.getType());
+					stack.push(memento);
+					assertEquals(stack.size()-1, reader.getDepth());
+					break;
+				case PROPERTY:
+					Memento current=stack.peek();
+					String key=reader.getKey();
+					Class<?> type=reader.getPropertyType();
+					if (type==String.class) current.putString(key, reader.getString());
+					else if (type==Integer.class) current.putInt(key, reader.getInt());
+					else if (type==Long.class) current.putLong(key, reader.getLong());
+					else if (type==Float.class) current.putFloat(key, reader.getFloat());
+					else if (type==Double.class) current.putDouble(key, reader.getDouble());
+					else if (type==Boolean.class) current.putBoolean(key, reader.getBoolean());
+					else if (type==Character.class) current.putChar(key, reader.getChar());
+					else if (type==String[].class) current.putStringArray(key, reader.getStringArray());
+					else if (type==Integer[].class) current.putIntArray(key, reader.getIntArray());
+					else if (type==Byte[].class) current.putByteArray(key, reader.getByteArray());
+					else if (type==Double[].class) current.putDoubleArray(key, reader.getDoubleArray());
+					else fail();
+					break;
+				case END_MEMENTO:
+					assertEquals(stack.pop().getType(), reader.getType());
+					break;
+			}
+		}
+		return root;
+	}
+	
+	@Test
+	public void testEvents() throws Exception {
+		Memento memento=createMemento();
+		BinaryFeature[][] featureSets={
+			{},
+			{BinaryFeature.INDEXED},
+			{BinaryFeature.STRING_TABLE, BinaryFeature.COMPACT_INTEGERS},
+			{BinaryFeature.STREAMED},
+			SUPPORTED_FEATURES
+		};
+		for (BinaryFeature[] features: featureSets) {
+			ByteArrayOutputStream out=new ByteArrayOutputStream();
+			MementoStore.mementoToBinary(memento, out, features);
+			out.write(42);
+			ByteArrayInputStream in=new ByteArrayInputStream(out.toByteArray());
+			assertEquals(memento, read(MementoStore.binaryToMementoReader(in)));
+			assertEquals(42, in.read());
+			
+			Path file=folder.newFile().toPath();
+			MementoStore.mementoToBinaryFile(memento, file, features);
+			try (MementoReader reader=MementoStore.binaryFileToMementoReader(file)) {
+				assertEquals(memento, read(reader));
+			}
+		}
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(memento, out);
+		assertEquals(memento, read(MementoStore.binaryToMementoReader(new ByteArrayInputStream(out.toByteArray()))));
+	}
+	
+	@Test
+	public void testSkipping() throws Exception {
+		Memento memento=createMemento();
+		for (BinaryFeature[] features: new BinaryFeature[][] {{}, {BinaryFeature.INDEXED}, {BinaryFeature.STREAMED}, SUPPORTED_FEATURES}) {
+			Path file=folder.newFile().toPath();
+			MementoStore.mementoToBinaryFile(memento, file, Compression.LZ, features);
+			try (MementoReader reader=MementoStore.binaryFileToMementoReader(file)) {
+				int sum=0;
+				int children=0;
+				while (reader.hasNext()) {
+					MementoReader.Event event=reader.next();
+					if (event==MementoReader.Event.START_MEMENTO && reader.getDepth()==1) {
+						children++;
+						if (reader.getType()==null) reader.skipMemento();
+					} else if (event==MementoReader.Event.PROPERTY && reader.getKey().equals("index"))
+						sum+=reader.getInt();
+					else if (event==MementoReader.Event.PROPERTY && reader.getKey().equals("long"))
+						reader.skipMemento();
+				}
+				assertEquals(20, children);
+				assertEquals(0+2+4+6+8+10+12+14+16+18, sum);
+				assertEquals("root", reader.getType());
+				assertFalse(reader.hasNext());
+			}
+		}
+	}
+	
+	@Test
+	public void testTypeMismatch() throws Exception {
+		Memento memento=new Memento();
+		memento.putInt("value", 5);
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(memento, out);
+		MementoReader reader=MementoStore.binaryToMementoReader(new ByteArrayInputStream(out.toByteArray()));
+		reader.next();
+		assertEquals(MementoReader.Event.PROPERTY, reader.next());
+		try {
+			reader.getLong();
+			fail();
+		} catch (TypeMismatchException e) {
+			assertEquals(0, e.getStackTrace().length);
+			assertEquals("Property value is Integer, not Long", e.getMessage());
+		}
+		assertEquals(5, reader.getInt());
+		assertEquals(MementoReader.Event.END_MEMENTO, reader.next());
+	}
+}
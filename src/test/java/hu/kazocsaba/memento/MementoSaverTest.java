@@ -0,0 +1,153 @@
+package hu.kazocsaba.memento;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class MementoSaverTest {
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+	
+	@Test
+	public void testCoalescing() throws Exception {
+		final Queue<Runnable> tasks=new ArrayDeque<>();
+		Executor executor=new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		};
+		Path file=folder.newFile().toPath();
+		MementoSaver saver=new MementoSaver(file, executor, BinaryFeature.STRING_TABLE);
+		Future<Void> first=saver.save(new Memento("first"));
+		Future<Void> second=saver.save(new Memento("second"));
+		Memento third=new Memento("third");
+		third.createChild("child").putInt("value", 3);
+		Future<Void> last=saver.save(third);
+		assertSame(first, last);
+		assertSame(second, last);
+		assertFalse(last.isDone());
+		assertEquals(1, tasks.size());
+		
+		tasks.remove().run();
+		assertTrue(last.isDone());
+		last.get();
+		assertEquals(third, MementoStore.binaryFileToMemento(file));
+		
+		saver.save(new Memento("fourth"));
+		assertEquals(1, tasks.size());
+		tasks.remove().run();
+		saver.close();
+		assertEquals(new Memento("fourth"), MementoStore.binaryFileToMemento(file));
+		try {
+			saver.save(new Memento());
+			fail();
+		} catch (IllegalStateException e) {}
+	}
+	
+	@Test
+	public void testFailedSave() throws Exception {
+		final Queue<Runnable> tasks=new ArrayDeque<>();
+		Executor executor=new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		};
+		Path file=folder.newFile().toPath();
+		MementoSaver saver=new MementoSaver(file, executor);
+		Memento saved=new Memento("saved");
+		saved.putString("state", "complete");
+		Future<Void> future=saver.save(saved);
+		tasks.remove().run();
+		future.get();
+		
+		Memento broken=new Memento("broken") {
+			@Override
+			public Iterator<Memento> iterateChildren() {
+				throw new IllegalStateException("failed");
+			}
+		};
+		broken.putString("state", "partial");
+		future=saver.save(broken);
+		tasks.remove().run();
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(saved, MementoStore.binaryFileToMemento(file));
+		try (DirectoryStream<Path> files=Files.newDirectoryStream(folder.getRoot().toPath())) {
+			for (Path f: files)
+				assertEquals(file, f);
+		}
+	}
+	
+	@Test
+	public void testReplacingLinkedFile() throws Exception {
+		Assume.assumeNotNull(Files.getFileAttributeView(folder.getRoot().toPath(), PosixFileAttributeView.class));
+		Path file=folder.newFile().toPath();
+		Set<PosixFilePermission> permissions=PosixFilePermissions.fromString("rw-------");
+		Files.setPosixFilePermissions(file, permissions);
+		Path link=folder.getRoot().toPath().resolve("link");
+		Files.createSymbolicLink(link, file);
+		
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		try {
+			try (MementoSaver saver=new MementoSaver(link, executor)) {
+				saver.save(new Memento("saved"));
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(Files.isSymbolicLink(link));
+		assertEquals(permissions, Files.getPosixFilePermissions(file));
+		assertEquals(new Memento("saved"), MementoStore.binaryFileToMemento(file));
+		assertEquals(2, folder.getRoot().list().length);
+	}
+	
+	@Test
+	public void testFlush() throws Exception {
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		try {
+			Path file=folder.newFile().toPath();
+			try (MementoSaver saver=new MementoSaver(file, executor)) {
+				Memento memento=null;
+				for (int i=0; i<100; i++) {
+					memento=new Memento();
+					memento.putInt("version", i);
+					saver.save(memento);
+				}
+				saver.flush();
+				assertEquals(memento, MementoStore.binaryFileToMemento(file));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -2,21 +2,92 @@ package hu.kazocsaba.memento;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public class MementoStoreTest {
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+	
 	private void testMementoStreamStore(Memento memento) throws IOException, MementoFormatException {
 		ByteArrayOutputStream ba=new ByteArrayOutputStream();
 		MementoStore.mementoToXmlStream(memento, ba);
 		assertEquals(memento, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
 		ba.reset();
+		MementoStore.mementoToJsonStream(memento, ba);
+		assertEquals(memento, MementoStore.jsonStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		ba.reset();
+		MementoStore.mementoToJsonStream(memento, ba, false);
+		assertEquals(memento, MementoStore.jsonStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		ba.reset();
 		MementoStore.mementoToBinary(memento,ba);
 		assertEquals(memento,MementoStore.binaryToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(memento, file);
+		assertArrayEquals(ba.toByteArray(), Files.readAllBytes(file));
+		assertEquals(memento, MementoStore.binaryFileToMemento(file));
+		
+		testBinaryFeatures(memento, file);
+		testBinaryFeatures(memento, file, BinaryFeature.INDEXED);
+		testBinaryFeatures(memento, file, BinaryFeature.STRING_TABLE);
+		testBinaryFeatures(memento, file, BinaryFeature.COMPACT_INTEGERS);
+		testBinaryFeatures(memento, file, BinaryFeature.INDEXED, BinaryFeature.COMPACT_INTEGERS);
+		testBinaryFeatures(memento, file, BinaryFeature.STREAMED, BinaryFeature.COMPACT_INTEGERS);
+		testBinaryFeatures(memento, file, BinaryFeature.values());
+		
+		ba.reset();
+		try (MementoWriter writer=MementoStore.mementoWriterToBinary(ba, BinaryFeature.COMPACT_INTEGERS)) {
+			writer.putMemento(memento);
+		}
+		assertEquals(memento, MementoStore.binaryToMemento(new ByteArrayInputStream(ba.toByteArray())));
+	}
+	
+	private void testBinaryFeatures(Memento memento, Path file, BinaryFeature... features) throws IOException, MementoFormatException {
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(memento, ba, features);
+		assertEquals(memento, MementoStore.binaryToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		MementoStore.mementoToBinaryFile(memento, file, features);
+		assertArrayEquals(ba.toByteArray(), Files.readAllBytes(file));
+		assertEquals(memento, MementoStore.binaryFileToMemento(file));
+		assertEquals(memento, MementoStore.binaryFileToMementoLazily(file));
+		assertEquals(memento, MementoStore.binaryFileToMementoInParallel(file));
+		ForkJoinPool pool=new ForkJoinPool(4);
+		try {
+			ByteArrayOutputStream parallel=new ByteArrayOutputStream();
+			MementoStore.mementoToBinaryInParallel(memento, parallel, pool, features);
+			assertArrayEquals(ba.toByteArray(), parallel.toByteArray());
+			MementoStore.mementoToBinaryFileInParallel(memento, file, pool, features);
+			assertArrayEquals(ba.toByteArray(), Files.readAllBytes(file));
+		} finally {
+			pool.shutdown();
+		}
 	}
 	
 	@Test
@@ -49,6 +120,34 @@ public class MementoStoreTest {
 		testMementoStreamStore(tricky);
 	}
 	@Test
+	public void testLegacyFormat() throws Exception {
+		Memento root=new Memento("root");
+		root.putInt("value", 1);
+		for (int i=0; i<10; i++)
+			root.createChild("child").putInt("index", i);
+		ByteArrayOutputStream legacy=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(root, legacy);
+		
+		// every variant without features writes the legacy format
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(root, ba, new BinaryFeature[0]);
+		assertArrayEquals(legacy.toByteArray(), ba.toByteArray());
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(root, file);
+		assertArrayEquals(legacy.toByteArray(), Files.readAllBytes(file));
+		ForkJoinPool pool=new ForkJoinPool(4);
+		try {
+			ba.reset();
+			MementoStore.mementoToBinaryInParallel(root, ba, pool);
+			assertArrayEquals(legacy.toByteArray(), ba.toByteArray());
+			MementoStore.mementoToBinaryFileInParallel(root, file, pool);
+			assertArrayEquals(legacy.toByteArray(), Files.readAllBytes(file));
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(legacy.toByteArray()[0]!=BinaryEncoder.MARKER);
+	}
+	@Test
 	public void testHierarchy() throws Exception {
 		Memento root=new Memento();
 		root.putString("id","1");
@@ -82,5 +181,606 @@ public class MementoStoreTest {
 
 		testMementoStreamStore(root);
 	}
+	@Test
+	public void testLargeMemento() throws Exception {
+		Memento root=new Memento();
+		double[] doubles=new double[100000];
+		for (int i=0; i<doubles.length; i++) doubles[i]=i*0.5;
+		root.putDoubleArray("doubles", doubles);
+		for (int i=0; i<5000; i++) {
+			Memento child=root.createChild("item");
+			child.putString("name", "Item number "+i);
+			child.putInt("index", i);
+		}
+		
+		testMementoStreamStore(root);
+	}
+	@Test
+	public void testLazyLoading() throws Exception {
+		Memento root=new Memento();
+		root.putInt("version", 3);
+		for (int i=0; i<10; i++) {
+			Memento child=root.createChild(i%2==0 ? "even" : "odd");
+			child.putInt("index", i);
+			for (int j=0; j<i; j++)
+				child.createChild("grandchild").putString("name", i+"/"+j);
+		}
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(root, file, BinaryFeature.INDEXED);
+		
+		Memento lazy=MementoStore.binaryFileToMementoLazily(file);
+		assertEquals(3, lazy.getInt("version"));
+		Memento odd=lazy.getFirstChildWithType("odd");
+		assertEquals(1, odd.getInt("index"));
+		assertEquals("1/0", odd.getFirstChild().getString("name"));
+		assertEquals(root, lazy);
+		
+		// files without the index are loaded completely
+		MementoStore.mementoToBinaryFile(root, file);
+		assertEquals(root, MementoStore.binaryFileToMementoLazily(file));
+	}
+	@Test
+	public void testLazyLoadingDefersChildren() throws Exception {
+		Memento root=new Memento();
+		for (int i=0; i<3; i++)
+			root.createChild("child").putInt("index", i).createChild("grandchild").putInt("index", i);
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(root, file, BinaryFeature.INDEXED);
+		
+		Memento lazy=MementoStore.binaryFileToMementoLazily(file);
+		assertFalse(lazy.childrenLoaded());
+		Memento second=lazy.getChildren().get(1);
+		assertTrue(lazy.childrenLoaded());
+		assertFalse(second.childrenLoaded());
+		assertFalse(lazy.getFirstChild().childrenLoaded());
+		assertEquals(1, second.getFirstChild().getInt("index"));
+		assertTrue(second.childrenLoaded());
+		assertFalse(lazy.getFirstChild().childrenLoaded());
+		assertFalse(lazy.getChildren().get(2).childrenLoaded());
+		
+		MementoStore.mementoToBinaryFile(root, file);
+		assertTrue(MementoStore.binaryFileToMementoLazily(file).childrenLoaded());
+	}
+	@Test
+	public void testStringTable() throws Exception {
+		Memento root=new Memento();
+		for (int i=0; i<100; i++)
+			root.createChild("person").putString("name", "Person "+i).putInt("age", i);
+		ByteArrayOutputStream plain=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(root, plain);
+		ByteArrayOutputStream table=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(root, table, BinaryFeature.STRING_TABLE);
+		assertTrue(table.size()<plain.size());
+		
+		Memento loaded=MementoStore.binaryToMemento(new ByteArrayInputStream(table.toByteArray()));
+		assertEquals(root, loaded);
+		assertSame(loaded.getChildren().get(0).getType(), loaded.getChildren().get(1).getType());
+		assertSame(loaded.getChildren().get(0).iterateProperties().next(), loaded.getChildren().get(1).iterateProperties().next());
+	}
+	@Test
+	public void testCompactIntegers() throws Exception {
+		Memento root=new Memento();
+		root.putInt("min", Integer.MIN_VALUE);
+		root.putInt("max", Integer.MAX_VALUE);
+		root.putInt("minus one", -1);
+		root.putLong("long min", Long.MIN_VALUE);
+		root.putLong("long max", Long.MAX_VALUE);
+		root.putLong("long minus one", -1);
+		root.putIntArray("ints", new int[] {0, 1, -1, 63, -64, 64, -65, Integer.MIN_VALUE, Integer.MAX_VALUE});
+		testMementoStreamStore(root);
+		
+		Memento small=new Memento();
+		for (int i=0; i<100; i++)
+			small.createChild().putInt("value", i).putLong("long value", -i).putIntArray("array", new int[] {i, -i});
+		ByteArrayOutputStream plain=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(small, plain);
+		ByteArrayOutputStream compact=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(small, compact, BinaryFeature.COMPACT_INTEGERS);
+		assertTrue(compact.size()<plain.size()*3/4);
+		assertEquals(small, MementoStore.binaryToMemento(new ByteArrayInputStream(compact.toByteArray())));
+	}
+	@Test
+	public void testConsecutiveBinaryMementos() throws Exception {
+		Memento first=new Memento("first");
+		first.putString("text", "Árvíztűrő tükörfúrógép");
+		first.putDoubleArray("doubles", new double[5000]);
+		first.putIntArray("ints", new int[] {1, 2, 3});
+		Memento second=new Memento("second");
+		second.putByteArray("bytes", new byte[20000]);
+		
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(first, ba);
+		MementoStore.mementoToBinary(second, ba, BinaryFeature.values());
+		ba.write(42);
+		
+		ByteArrayInputStream in=new ByteArrayInputStream(ba.toByteArray());
+		assertEquals(first, MementoStore.binaryToMemento(in));
+		assertEquals(second, MementoStore.binaryToMemento(in));
+		assertEquals(42, in.read());
+	}
+	@Test
+	public void testLongStrings() throws Exception {
+		StringBuilder ascii=new StringBuilder();
+		while (ascii.length()<100000) ascii.append("Lorem ipsum dolor sit amet. ");
+		StringBuilder accented=new StringBuilder();
+		while (accented.length()<40000) accented.append("őű\u20AC");
+		
+		Memento root=new Memento();
+		root.putString("ascii", ascii.toString());
+		root.putString("accented", accented.toString());
+		root.putString("short", "short");
+		root.putStringArray("array", new String[] {"short", ascii.toString(), accented.toString(), ""});
+		
+		testMementoStreamStore(root);
+	}
+	@Test
+	public void testCorruptLengths() throws Exception {
+		char[] text=new char[70000];
+		Arrays.fill(text, 'a');
+		Memento bytes=new Memento().putByteArray("bytes", new byte[] {1, 2, 3, 4});
+		Memento string=new Memento().putString("string", new String(text));
+		
+		// the lengths are replaced by values that cannot be allocated
+		byte[][] corrupt={
+			replace(bytes, ByteBuffer.allocate(5).put((byte)7).putInt(4).array(),
+					ByteBuffer.allocate(5).put((byte)7).putInt(Integer.MAX_VALUE-8).array()),
+			replace(string, ByteBuffer.allocate(9).put((byte)11).putLong(text.length).array(),
+					ByteBuffer.allocate(9).put((byte)11).putLong(Integer.MAX_VALUE-16).array())
+		};
+		for (byte[] data: corrupt) {
+			Path file=folder.newFile().toPath();
+			Files.write(file, data);
+			try {
+				MementoStore.binaryFileToMemento(file);
+				fail();
+			} catch (MementoFormatException e) {}
+			try {
+				MementoStore.binaryToMemento(new ByteArrayInputStream(data));
+				fail();
+			} catch (EOFException e) {}
+		}
+	}
+	
+	/**
+	 * Returns the binary encoding of a memento, with the single occurrence of a byte sequence replaced.
+	 */
+	private static byte[] replace(Memento memento, byte[] original, byte[] replacement) throws IOException {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		MementoStore.mementoToBinary(memento, out);
+		byte[] data=out.toByteArray();
+		for (int i=0; i+original.length<=data.length; i++) {
+			if (Arrays.equals(original, Arrays.copyOfRange(data, i, i+original.length))) {
+				System.arraycopy(replacement, 0, data, i, replacement.length);
+				return data;
+			}
+		}
+		throw new AssertionError("Sequence not found");
+	}
+	@Test
+	public void testCompression() throws Exception {
+		Memento root=new Memento("root");
+		Random random=new Random(42);
+		byte[] noise=new byte[100000];
+		random.nextBytes(noise);
+		root.putByteArray("noise", noise);
+		root.putByteArray("zeros", new byte[300000]);
+		for (int i=0; i<2000; i++) {
+			String[] names=new String[] {"alpha", "beta", "gamma", "delta "+(i%7)};
+			root.createChild("item").putStringArray("names", names).putIntArray("values", new int[] {i, i+1, i%10});
+		}
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(root, file);
+		long uncompressedSize=Files.size(file);
+		for (Compression compression: Compression.values()) {
+			MementoStore.mementoToBinaryFile(root, file, compression, BinaryFeature.INDEXED);
+			assertTrue(Files.size(file)<uncompressedSize/2);
+			assertEquals(root, MementoStore.binaryFileToMemento(file));
+			assertEquals(root, MementoStore.binaryFileToMementoLazily(file));
+			assertEquals(root, MementoStore.binaryFileToMementoInParallel(file));
+			
+			MementoStore.mementoToXmlFile(root, file, compression);
+			assertEquals(root, MementoStore.xmlFileToMemento(file));
+		}
+	}
+	@Test
+	public void testBlobs() throws Exception {
+		Random random=new Random(3);
+		Memento root=new Memento("root");
+		byte[] large=new byte[200000];
+		random.nextBytes(large);
+		root.putByteArray("large", large);
+		root.putByteArray("small", new byte[] {1, 2, 3});
+		for (int i=0; i<5; i++) {
+			Memento child=root.createChild("child");
+			byte[] blob=new byte[(1 << 16)+i];
+			random.nextBytes(blob);
+			child.putByteArray("blob", blob);
+			child.createChild().putByteArray("blob", large);
+		}
+		Path file=folder.newFile().toPath();
+		testBinaryFeatures(root, file, BinaryFeature.BLOBS);
+		testBinaryFeatures(root, file, BinaryFeature.BLOBS, BinaryFeature.INDEXED, BinaryFeature.COMPACT_INTEGERS);
+		testBinaryFeatures(root, file, BinaryFeature.BLOBS, BinaryFeature.STREAMED, BinaryFeature.STRING_TABLE);
+		
+		MementoStore.mementoToBinaryFile(root, file, BinaryFeature.BLOBS, BinaryFeature.INDEXED);
+		byte[] written=Files.readAllBytes(file);
+		for (Memento loaded: new Memento[] {MementoStore.binaryFileToMemento(file), MementoStore.binaryFileToMementoLazily(file)}) {
+			ByteBuffer blob=loaded.getByteBuffer("large");
+			assertTrue(blob.isReadOnly());
+			assertTrue(blob.isDirect());
+			assertEquals(ByteBuffer.wrap(large), blob);
+			assertArrayEquals(large, loaded.getByteArray("large"));
+			assertTrue(loaded.getFirstChild().getByteBuffer("blob").isDirect());
+			assertEquals(root, loaded);
+			assertEquals(root.hashCode(), loaded.hashCode());
+			
+			// saving a loaded memento writes the blobs from the file
+			Path copy=folder.newFile().toPath();
+			MementoStore.mementoToBinaryFile(loaded, copy, BinaryFeature.BLOBS, BinaryFeature.INDEXED);
+			assertArrayEquals(written, Files.readAllBytes(copy));
+		}
+		
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToXmlStream(root, ba);
+		assertEquals(root, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		
+		MementoStore.mementoToBinaryFile(root, file, Compression.LZ, BinaryFeature.BLOBS);
+		assertEquals(root, MementoStore.binaryFileToMemento(file));
+		
+		try {
+			MementoStore.binaryToMementoReader(new ByteArrayInputStream(written));
+			fail();
+		} catch (MementoFormatException e) {}
+	}
+	@Test
+	public void testSavingBlobsToSourceFile() throws Exception {
+		Random random=new Random(5);
+		Memento root=new Memento("root");
+		for (int i=0; i<3; i++) {
+			byte[] blob=new byte[100000];
+			random.nextBytes(blob);
+			root.createChild("child").putByteArray("blob", blob);
+		}
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(root, file, BinaryFeature.BLOBS);
+		byte[] written=Files.readAllBytes(file);
+		
+		// the blobs of the loaded memento are mapped from the file that is being replaced
+		Memento loaded=MementoStore.binaryFileToMemento(file);
+		assertTrue(loaded.getFirstChild().getByteBuffer("blob").isDirect());
+		MementoStore.mementoToBinaryFile(loaded, file, BinaryFeature.BLOBS);
+		assertArrayEquals(written, Files.readAllBytes(file));
+		assertEquals(root, loaded);
+		
+		loaded=MementoStore.binaryFileToMemento(file);
+		MementoStore.mementoToXmlFile(loaded, file);
+		assertEquals(root, loaded);
+		assertEquals(root, MementoStore.xmlFileToMemento(file));
+		
+		MementoStore.mementoToBinaryFile(root, file, BinaryFeature.BLOBS);
+		loaded=MementoStore.binaryFileToMemento(file);
+		try (MementoWriter writer=MementoStore.mementoWriterToBinaryFile(file)) {
+			writer.putMemento(loaded);
+		}
+		assertEquals(root, MementoStore.binaryFileToMemento(file));
+		assertEquals(1, folder.getRoot().list().length);
+	}
+	@Test
+	public void testWritingExistingFiles() throws Exception {
+		Assume.assumeNotNull(Files.getFileAttributeView(folder.getRoot().toPath(), PosixFileAttributeView.class));
+		Memento root=new Memento("root");
+		root.putByteArray("blob", new byte[1 << 16]);
+		Path file=folder.newFile().toPath();
+		Set<PosixFilePermission> permissions=PosixFilePermissions.fromString("rw-------");
+		Files.setPosixFilePermissions(file, permissions);
+		Path link=folder.getRoot().toPath().resolve("link");
+		Files.createSymbolicLink(link, file);
+		
+		// files are written in place, through links
+		MementoStore.mementoToBinaryFile(root, link, BinaryFeature.BLOBS);
+		assertTrue(Files.isSymbolicLink(link));
+		assertEquals(permissions, Files.getPosixFilePermissions(file));
+		Memento loaded=MementoStore.binaryFileToMemento(file);
+		assertEquals(root, loaded);
+		
+		// a mapped file is replaced, keeping the link and the permissions
+		MementoStore.mementoToXmlFile(loaded, link);
+		assertTrue(Files.isSymbolicLink(link));
+		assertEquals(permissions, Files.getPosixFilePermissions(file));
+		assertEquals(root, loaded);
+		assertEquals(root, MementoStore.xmlFileToMemento(file));
+		assertEquals(2, folder.getRoot().list().length);
+		
+		Path device=Paths.get("/dev/null");
+		if (Files.exists(device) && !Files.isRegularFile(device)) {
+			MementoStore.mementoToBinaryFile(root, device);
+			assertFalse(Files.isRegularFile(device));
+		}
+	}
+	@Test
+	public void testModifyingBlobArray() throws Exception {
+		Memento root=new Memento();
+		root.putByteArray("blob", new byte[1 << 16]);
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(root, file, BinaryFeature.BLOBS);
+		
+		// the array is returned by reference even though the blob was mapped from the file
+		Memento loaded=MementoStore.binaryFileToMemento(file);
+		byte[] blob=loaded.getByteArray("blob");
+		blob[0]=42;
+		assertSame(blob, loaded.getByteArray("blob"));
+		assertEquals(42, loaded.getByteBuffer("blob").get(0));
+		
+		Path copy=folder.newFile().toPath();
+		MementoStore.mementoToBinaryFile(loaded, copy, BinaryFeature.BLOBS);
+		assertEquals(42, MementoStore.binaryFileToMemento(copy).getByteArray("blob")[0]);
+	}
+	@Test
+	public void testLoadOptions() throws Exception {
+		Random random=new Random(5);
+		Memento root=new Memento("root");
+		Memento expected=new Memento("root");
+		root.putString("name", "root").putIntArray("values", new int[] {1, 2, 3});
+		expected.putString("name", "root");
+		for (int i=0; i<20; i++) {
+			byte[] blob=new byte[i%5==0 ? (1 << 16)+i : i];
+			random.nextBytes(blob);
+			Memento person=root.createChild("person").putString("name", "person "+i).putByteArray("photo", blob).putInt("age", i);
+			person.createChild("address").putString("name", "street "+i);
+			person.createChild().putString("name", "untyped");
+			root.createChild(i%3==0 ? "pet" : null).putString("name", "other "+i).putByteArray("photo", blob);
+			expected.createChild("person").putString("name", "person "+i).createChild("address").putString("name", "street "+i);
+		}
+		LoadOptions options=new LoadOptions().keys("name").childTypes("person", "address");
+		Path file=folder.newFile().toPath();
+
+		BinaryFeature[][] featureSets={
+			{},
+			{BinaryFeature.INDEXED},
+			{BinaryFeature.INDEXED, BinaryFeature.STRING_TABLE, BinaryFeature.COMPACT_INTEGERS},
+			{BinaryFeature.STREAMED},
+			{BinaryFeature.BLOBS},
+			{BinaryFeature.BLOBS, BinaryFeature.INDEXED},
+			{BinaryFeature.BLOBS, BinaryFeature.STREAMED, BinaryFeature.COMPACT_INTEGERS}
+		};
+		for (BinaryFeature[] features: featureSets) {
+			ByteArrayOutputStream ba=new ByteArrayOutputStream();
+			MementoStore.mementoToBinary(root, ba, features);
+			ba.write(42);
+			ByteArrayInputStream in=new ByteArrayInputStream(ba.toByteArray());
+			assertEquals(expected, MementoStore.binaryToMemento(in, options));
+			assertEquals(42, in.read());
+
+			MementoStore.mementoToBinaryFile(root, file, features);
+			assertEquals(expected, MementoStore.binaryFileToMemento(file, options));
+			MementoStore.mementoToBinaryFile(root, file, Compression.LZ, features);
+			assertEquals(expected, MementoStore.binaryFileToMemento(file, options));
+		}
 
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToXmlStream(root, ba);
+		assertEquals(expected, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(ba.toByteArray()), options));
+		MementoStore.mementoToXmlFile(root, file);
+		assertEquals(expected, MementoStore.xmlFileToMemento(file, options));
+		assertEquals(expected, MementoStore.xmlToMemento(MementoStore.mementoToXml(root), options));
+		MementoStore.mementoToJsonFile(root, file);
+		assertEquals(expected, MementoStore.jsonFileToMemento(file, options));
+
+		// the untyped children are selected by a null type
+		MementoStore.mementoToBinaryFile(root, file);
+		Memento untyped=MementoStore.binaryFileToMemento(file, new LoadOptions().childTypes((String)null));
+		assertEquals(20-7, untyped.getChildCount());
+	}
+	@Test
+	public void testJson() throws Exception {
+		Memento root=new Memento("root");
+		root.putString("text", "a\tb\r\n\"\\/\u0001\uD83D\uDE00\uDC00ő");
+		root.createChild().putDoubleArray("doubles", new double[] {1.5, Double.NaN, Double.NEGATIVE_INFINITY, -0.0});
+		root.createChild("chars").putChar("surrogate", '\uD800');
+		root.createChild("floats").putFloat("float", Float.POSITIVE_INFINITY);
+		root.createChild("longs").putLong("min", Long.MIN_VALUE);
+		root.createChild("empty").createChild();
+		
+		String expected="{\n"
+				+ "    \"type\": \"root\",\n"
+				+ "    \"properties\": {\n"
+				+ "        \"text\": {\"string\": \"a\\tb\\r\\n\\\"\\\\/\\u0001\uD83D\uDE00\\udc00ő\"}\n"
+				+ "    },\n"
+				+ "    \"children\": [\n"
+				+ "        {\n"
+				+ "            \"properties\": {\n"
+				+ "                \"doubles\": {\"double[]\": [1.5, \"NaN\", \"-Infinity\", -0.0]}\n"
+				+ "            }\n"
+				+ "        },\n"
+				+ "        {\n"
+				+ "            \"type\": \"chars\",\n"
+				+ "            \"properties\": {\n"
+				+ "                \"surrogate\": {\"character\": \"\\ud800\"}\n"
+				+ "            }\n"
+				+ "        },\n"
+				+ "        {\n"
+				+ "            \"type\": \"floats\",\n"
+				+ "            \"properties\": {\n"
+				+ "                \"float\": {\"float\": \"Infinity\"}\n"
+				+ "            }\n"
+				+ "        },\n"
+				+ "        {\n"
+				+ "            \"type\": \"longs\",\n"
+				+ "            \"properties\": {\n"
+				+ "                \"min\": {\"long\": -9223372036854775808}\n"
+				+ "            }\n"
+				+ "        },\n"
+				+ "        {\n"
+				+ "            \"type\": \"empty\",\n"
+				+ "            \"children\": [\n"
+				+ "                {}\n"
+				+ "            ]\n"
+				+ "        }\n"
+				+ "    ]\n"
+				+ "}\n";
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToJsonStream(root, ba);
+		assertEquals(expected, new String(ba.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(root, MementoStore.jsonStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		
+		ba.reset();
+		MementoStore.mementoToJsonStream(root, ba, false);
+		assertEquals(expected.replaceAll("\n *", "").replace("\": ", "\":").replace(", ", ","), new String(ba.toByteArray(), StandardCharsets.UTF_8));
+		
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToJsonFile(root, file, Compression.LZ);
+		assertEquals(root, MementoStore.jsonFileToMemento(file));
+		
+		// hand-written input with insignificant whitespace, escapes and members in any order after the type
+		Memento edited=MementoStore.jsonStreamToMemento(new ByteArrayInputStream((
+				"\r\n{ \"type\" : null, \"children\" : [ { } ],\n"
+				+ "\t\"properties\":{\"n\":{\"integer[]\":[ ]}, \"\\u0041\\/\":{ \"boolean\" : true }} } ").getBytes(StandardCharsets.UTF_8)));
+		Memento expectedEdited=new Memento();
+		expectedEdited.createChild();
+		expectedEdited.putIntArray("n", new int[0]).putBoolean("A/", true);
+		assertEquals(expectedEdited, edited);
+		
+		String[] invalid={
+			"",
+			"{} {}",
+			"{\"properties\": {}, \"type\": \"late\"}",
+			"{\"properties\": {\"a\": {\"integer\": 1}, \"a\": {\"integer\": 2}}}",
+			"{\"properties\": {\"a\": {\"integer\": 2147483648}}}",
+			"{\"properties\": {\"a\": {\"long\": 9223372036854775808}}}",
+			"{\"properties\": {\"a\": {\"integer\": 1.5}}}",
+			"{\"properties\": {\"a\": {\"character\": \"ab\"}}}",
+			"{\"properties\": {\"a\": {\"integer\": 1, \"long\": 1}}}",
+			"{\"properties\": {\"a\": {\"unknown\": 1}}}",
+			"{\"properties\": {\"a\": {}}}",
+			"{\"properties\": {\"a\": {\"integer[]\": [1,]}}}",
+			"{\"children\": [{\"type\": \"x\"},]}",
+			"{\"other\": 1}",
+			"{\"type\": \"unterminated}"
+		};
+		for (String json: invalid) {
+			try {
+				MementoStore.jsonStreamToMemento(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+				fail(json);
+			} catch (MementoFormatException e) {}
+		}
+	}
+	@Test
+	public void testXmlWriting() throws Exception {
+		Memento root=new Memento("root");
+		root.putString("text", "a\tb\r\n<&>\"\uD83D\uDE00");
+		root.createChild().putString("empty", "");
+		root.createChild().putIntArray("ints", new int[] {1, -2});
+		root.createChild().putDoubleArray("doubles", new double[0]);
+		root.createChild("type\t\"quoted\"\r\n");
+		String expected="<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+				+ "<memento type=\"root\">\n"
+				+ "    <property>\n"
+				+ "        <key>text</key>\n"
+				+ "        <value type=\"string\">a\tb&#13;\n&lt;&amp;&gt;\"&#128512;</value>\n"
+				+ "    </property>\n"
+				+ "    <memento>\n"
+				+ "        <property>\n"
+				+ "            <key>empty</key>\n"
+				+ "            <value type=\"string\"/>\n"
+				+ "        </property>\n"
+				+ "    </memento>\n"
+				+ "    <memento>\n"
+				+ "        <property>\n"
+				+ "            <key>ints</key>\n"
+				+ "            <value type=\"integer[]\">\n"
+				+ "                <item>1</item>\n"
+				+ "                <item>-2</item>\n"
+				+ "            </value>\n"
+				+ "        </property>\n"
+				+ "    </memento>\n"
+				+ "    <memento>\n"
+				+ "        <property>\n"
+				+ "            <key>doubles</key>\n"
+				+ "            <value type=\"double[]\"/>\n"
+				+ "        </property>\n"
+				+ "    </memento>\n"
+				+ "    <memento type=\"type&#9;&quot;quoted&quot;&#13;&#10;\"/>\n"
+				+ "</memento>\n";
+		
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToXmlStream(root, ba);
+		assertEquals(expected, new String(ba.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(root, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		
+		ba.reset();
+		MementoStore.mementoToXmlStream(root, ba, false);
+		assertEquals(expected.replaceAll(">\n *<", "><").trim(), new String(ba.toByteArray(), StandardCharsets.UTF_8));
+		assertEquals(root, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+	}
+	@Test
+	public void testXmlRootType() throws Exception {
+		Memento root=new Memento("large");
+		double[] doubles=new double[10000];
+		for (int i=0; i<doubles.length; i++) doubles[i]=i*0.5;
+		root.putDoubleArray("doubles", doubles);
+		for (int i=0; i<500; i++)
+			root.createChild("item").putInt("index", i);
+		
+		// the type of the root is kept by both the streaming and the DOM loader
+		ByteArrayOutputStream ba=new ByteArrayOutputStream();
+		MementoStore.mementoToXmlStream(root, ba);
+		assertEquals(root, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(ba.toByteArray())));
+		assertEquals(root, MementoStore.xmlToMemento(MementoStore.mementoToXml(root)));
+		Path file=folder.newFile().toPath();
+		MementoStore.mementoToXmlFile(root, file);
+		assertEquals(root, MementoStore.xmlFileToMemento(file));
+	}
+	@Test
+	public void testXmlParsing() throws Exception {
+		String xml="<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<!-- comment -->\n"
+				+ "<memento type=\"root\">\n"
+				+ "  <property><key>name</key><value type=\"string\">a <![CDATA[<b>]]> c</value></property>\n"
+				+ "  <!-- comment -->\n"
+				+ "  <property>\n"
+				+ "    <key>ints</key>\n"
+				+ "    <value type=\"integer[]\">\n"
+				+ "      <item>1</item> <!-- comment --> <item>-2</item>\n"
+				+ "    </value>\n"
+				+ "  </property>\n"
+				+ "  <memento><property><key>empty</key><value type=\"string\"/></property></memento>\n"
+				+ "  <memento type=\"child\"><property><key>d</key><value type=\"double[]\"></value></property></memento>\n"
+				+ "</memento>\n";
+		byte[] bytes=xml.getBytes(StandardCharsets.UTF_8);
+		Memento expected=new Memento("root");
+		expected.putString("name", "a <b> c");
+		expected.putIntArray("ints", new int[] {1, -2});
+		expected.createChild().putString("empty", "");
+		expected.createChild("child").putDoubleArray("d", new double[0]);
+		assertEquals(expected, MementoStore.xmlStreamToMemento(new ByteArrayInputStream(bytes)));
+		
+		String[] invalid={
+			"<memento><property><key>a</key></property></memento>",
+			"<memento><property><key>a</key><value type=\"integer\">x</value></property></memento>",
+			"<memento><property><key>a</key><value type=\"integer[]\">1</value></property></memento>",
+			"<memento><other/></memento>",
+			"<memento><property><key>a</key><value type=\"string\">x</value></property></memento><trailing/>"
+		};
+		for (String s: invalid) {
+			try {
+				MementoStore.xmlStreamToMemento(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+				fail(s);
+			} catch (MementoFormatException e) {}
+		}
+	}
+	@Test
+	public void testReadLine() throws Exception {
+		byte[] text="first\nsecond\r\nthird\rlast".getBytes(StandardCharsets.ISO_8859_1);
+		BinaryInput[] inputs={
+			new BinaryInput(ByteBuffer.wrap(text)),
+			new BinaryInput(new ByteArrayInputStream(text), 4)
+		};
+		for (BinaryInput in: inputs) {
+			assertEquals("first", in.readLine());
+			assertEquals("second", in.readLine());
+			assertEquals("third", in.readLine());
+			assertEquals("last", in.readLine());
+			assertNull(in.readLine());
+		}
+	}
 }
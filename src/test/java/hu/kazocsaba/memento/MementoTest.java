@@ -1,9 +1,27 @@
 package hu.kazocsaba.memento;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public class MementoTest {
@@ -33,4 +51,623 @@ public class MementoTest {
 		m.putDoubleArray("key", new double[0]);
 		assertEquals(Double[].class, m.getPropertyType("key"));
 	}
+	@Test
+	public void testPrimitiveProperties() throws Exception {
+		Memento m=new Memento();
+		m.putInt("int", -7).putLong("long", Long.MIN_VALUE).putFloat("float", Float.NaN).putDouble("double", -0.0)
+				.putBoolean("boolean", true).putChar("char", '\uFFFF').putString("string", "text");
+		assertEquals(-7, m.getInt("int"));
+		assertEquals(Long.MIN_VALUE, m.getLong("long"));
+		assertTrue(Float.isNaN(m.getFloat("float")));
+		assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(m.getDouble("double")));
+		assertTrue(m.getBoolean("boolean"));
+		assertEquals('\uFFFF', m.getChar("char"));
+		assertEquals(3, m.getInt("missing", 3));
+		try {
+			m.getLong("int");
+			fail();
+		} catch (TypeMismatchException e) {}
+		try {
+			m.getInt("string", 0);
+			fail();
+		} catch (TypeMismatchException e) {}
+		
+		// equality and hash code follow the boxed values
+		Memento reordered=new Memento();
+		reordered.putString("string", "text").putChar("char", '\uFFFF').putBoolean("boolean", true)
+				.putDouble("double", -0.0).putFloat("float", Float.intBitsToFloat(0x7fc00001))
+				.putLong("long", Long.MIN_VALUE).putInt("int", -7);
+		assertEquals(m, reordered);
+		assertEquals(m.hashCode(), reordered.hashCode());
+		Memento copy=new Memento();
+		copy.copyFrom(m);
+		assertEquals(m, copy);
+		copy.putDouble("double", 0.0);
+		assertNotEquals(m, copy);
+	}
+	@Test
+	public void testPropertyOrder() throws Exception {
+		Memento m=new Memento();
+		List<String> keys=new ArrayList<>();
+		for (int i=0; i<100; i++) {
+			keys.add("key "+i);
+			m.putInt("key "+i, i);
+		}
+		m.putString("key 5", "replaced");
+		assertEquals(keys, list(m.iterateProperties()));
+		
+		m.removeProperty("key 0");
+		for (Iterator<String> i=m.iterateProperties(); i.hasNext();)
+			if (i.next().endsWith("7")) i.remove();
+		for (Iterator<String> i=keys.iterator(); i.hasNext();) {
+			String key=i.next();
+			if (key.equals("key 0") || key.endsWith("7")) i.remove();
+		}
+		assertEquals(keys, list(m.iterateProperties()));
+		assertEquals(keys.size(), m.getPropertyCount());
+		assertFalse(m.hasProperty("key 17"));
+		assertNull(m.getPropertyType("key 0"));
+		assertEquals("replaced", m.getString("key 5"));
+		assertEquals(99, m.getInt("key 99"));
+		try {
+			m.removeProperty("key 0");
+			fail();
+		} catch (NoSuchPropertyException e) {}
+		
+		Memento other=new Memento();
+		for (String key: keys)
+			other.putInt(key, 0);
+		other.copyFrom(m);
+		assertEquals(m, other);
+		assertEquals(Arrays.asList("key 1", "key 2"), list(other.iterateProperties()).subList(0, 2));
+	}
+	@Test
+	public void testShapes() throws Exception {
+		Shape ab=Shape.EMPTY.with("a").with("b");
+		assertSame(ab, Shape.EMPTY.with("a").with("b"));
+		assertNotSame(ab, Shape.EMPTY.with("b").with("a"));
+		assertSame(Shape.EMPTY.with("b"), ab.without(0));
+		assertSame(Shape.EMPTY.with("a"), ab.without(1));
+		assertEquals(1, ab.find("b"));
+		assertEquals(-1, ab.find("c"));
+		
+		// large shapes are private and modified in place
+		Shape large=Shape.EMPTY;
+		for (int i=0; i<100; i++)
+			large=large.with("key "+i);
+		assertSame(large, large.with("extra"));
+		assertEquals(101, large.size());
+		assertEquals(100, large.find("extra"));
+		assertSame(large, large.without(0));
+		assertEquals("key 1", large.key(0));
+		assertEquals(99, large.find("extra"));
+		
+		// the shapes beyond the limit of transitions are private, and their transitions are not registered
+		Shape parent=Shape.EMPTY.with("overflow");
+		for (int i=0; i<64; i++)
+			assertTrue(parent.with("key "+i).isShared());
+		int registered=Shape.registeredCount();
+		Shape overflow=parent.with("extra");
+		assertFalse(overflow.isShared());
+		assertSame(overflow, overflow.with("a"));
+		assertNotSame(overflow, parent.with("extra"));
+		assertEquals(registered, Shape.registeredCount());
+		assertSame(parent.with("key 0"), parent.with("key 0"));
+		
+		// every memento starts from the empty shape, so it allows more first keys
+		for (int i=0; i<100; i++)
+			assertTrue(Shape.EMPTY.with("first key "+i).isShared());
+		
+		Memento first=new Memento().putString("name", "first").putInt("age", 1);
+		Memento second=new Memento().putString("name", "second").putDouble("age", 2);
+		second.removeProperty("name");
+		second.putString("name", "second");
+		assertEquals(Arrays.asList("age", "name"), list(second.iterateProperties()));
+		assertEquals(2.0, second.getDouble("age"), 0);
+		assertEquals("second", second.getString("name"));
+		second.putString("name", "first").putInt("age", 1);
+		assertEquals(first, second);
+		assertEquals(first.hashCode(), second.hashCode());
+	}
+	@Test
+	public void testFreeze() throws Exception {
+		Memento m=new Memento("root");
+		m.putString("name", "config").putInt("version", 1);
+		m.createChild("server").putInt("port", 80);
+		m.createChild("client").createChild("retry").putInt("count", 3);
+		
+		Memento frozen=m.freeze();
+		assertTrue(frozen.isFrozen());
+		assertFalse(m.isFrozen());
+		assertEquals(m, frozen);
+		assertSame(frozen, frozen.freeze());
+		assertTrue(frozen.getFirstChildWithType("client").getFirstChild().isFrozen());
+		
+		// the original stays mutable without affecting the snapshot
+		m.putInt("version", 2);
+		m.removeProperty("name");
+		m.getFirstChild().putInt("port", 8080);
+		m.createChild();
+		assertEquals(1, frozen.getInt("version"));
+		assertEquals("config", frozen.getString("name"));
+		assertEquals(80, frozen.getFirstChild().getInt("port"));
+		assertEquals(2, frozen.getChildCount());
+		
+		try {
+			frozen.putInt("version", 3);
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		try {
+			frozen.removeProperty("version");
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		try {
+			frozen.createChild();
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		try {
+			frozen.getFirstChild().putString("host", "localhost");
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		try {
+			Iterator<String> keys=frozen.iterateProperties();
+			keys.next();
+			keys.remove();
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		try {
+			Iterator<Memento> children=frozen.iterateChildren();
+			children.next();
+			children.remove();
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		
+		// editing shares the unchanged children
+		Memento edited=frozen.edit();
+		assertFalse(edited.isFrozen());
+		assertEquals(frozen, edited);
+		assertSame(frozen.getChildren().get(1), edited.getChildren().get(1));
+		edited.putInt("version", 3);
+		edited.editChild(0).putInt("port", 443);
+		Memento updated=edited.freeze();
+		assertSame(frozen.getChildren().get(1), updated.getChildren().get(1));
+		assertEquals(443, updated.getFirstChild().getInt("port"));
+		assertEquals(3, updated.getInt("version"));
+		assertEquals(1, frozen.getInt("version"));
+		assertEquals(80, frozen.getFirstChild().getInt("port"));
+		
+		edited.editChild(0).putInt("port", 80);
+		edited.putInt("version", 1);
+		assertEquals(frozen, edited);
+		assertEquals(frozen.hashCode(), edited.hashCode());
+	}
+	@Test
+	public void testFrozenArrays() throws Exception {
+		Memento m=new Memento();
+		m.putIntArray("ints", new int[] {1}).putByteArray("bytes", new byte[] {1});
+		Memento frozen=m.freeze();
+		frozen.digest();
+		
+		// the arrays shared with the snapshot are copied before they are returned for modification
+		m.getIntArray("ints")[0]=2;
+		m.lookup("bytes").getByteArray(null)[0]=2;
+		assertEquals(1, frozen.getIntArray("ints")[0]);
+		assertEquals(1, frozen.getByteArray("bytes")[0]);
+		assertEquals(2, m.getIntArray("ints")[0]);
+		assertEquals(2, m.getByteArray("bytes")[0]);
+		Memento other=new Memento().putIntArray("ints", new int[] {1}).putByteArray("bytes", new byte[] {1}).freeze();
+		assertEquals(other, frozen);
+		assertEquals(other.hashCode(), frozen.hashCode());
+		assertEquals(2, m.freeze().getIntArray("ints")[0]);
+		
+		Memento edited=frozen.edit();
+		edited.getIntArray("ints")[0]=3;
+		assertEquals(1, frozen.getIntArray("ints")[0]);
+		Memento copy=new Memento();
+		copy.copyFrom(frozen);
+		copy.getIntArray("ints")[0]=4;
+		assertEquals(1, frozen.getIntArray("ints")[0]);
+	}
+	@Test
+	public void testRepeatedFreezing() throws Exception {
+		Memento m=new Memento("root");
+		for (int i=0; i<3; i++)
+			m.createChild("child").createChild("grandchild").putIntArray("values", new int[] {i});
+		Memento frozen=m.freeze();
+		assertSame(frozen, m.freeze());
+		assertSame(frozen.getChildren().get(1), m.getChildren().get(1).freeze());
+		
+		// only the modified mementos and their ancestors are frozen again
+		m.getChildren().get(1).getFirstChild().putInt("count", 1);
+		Memento updated=m.freeze();
+		assertNotSame(frozen, updated);
+		assertSame(frozen.getChildren().get(0), updated.getChildren().get(0));
+		assertNotSame(frozen.getChildren().get(1), updated.getChildren().get(1));
+		assertSame(frozen.getChildren().get(2), updated.getChildren().get(2));
+		assertSame(updated, m.freeze());
+		
+		// getting an array may modify the memento
+		m.getChildren().get(2).getFirstChild().getIntArray("values")[0]=5;
+		Memento modified=m.freeze();
+		assertNotSame(updated, modified);
+		assertEquals(2, updated.getChildren().get(2).getFirstChild().getIntArray("values")[0]);
+		assertEquals(5, modified.getChildren().get(2).getFirstChild().getIntArray("values")[0]);
+		
+		m.createChild();
+		assertEquals(4, m.freeze().getChildCount());
+		
+		// an unmodified copy is frozen into the original
+		Memento edited=modified.edit();
+		assertSame(modified, edited.freeze());
+		edited.editChild(0);
+		assertSame(modified, edited.freeze());
+		edited.editChild(0).editChild(0).putInt("count", 2);
+		assertNotSame(modified, edited.freeze());
+		assertSame(modified.getChildren().get(1), edited.freeze().getChildren().get(1));
+	}
+	@Test
+	public void testChildrenWithType() throws Exception {
+		Memento m=new Memento();
+		for (int i=0; i<10; i++) {
+			m.createChild("even").putInt("index", 2*i);
+			m.createChild("odd").putInt("index", 2*i+1);
+		}
+		m.createChild();
+		assertEquals(1, m.getFirstChildWithType("odd").getInt("index"));
+		assertNull(m.getFirstChildWithType(null).getType());
+		assertEquals(10, m.getChildCountWithType("even"));
+		assertEquals(1, m.getChildCountWithType(null));
+		assertEquals(0, m.getChildCountWithType("none"));
+		assertTrue(m.getChildrenWithType("none").isEmpty());
+		try {
+			m.getFirstChildWithType("none");
+			fail();
+		} catch (MementoFormatException e) {}
+		
+		// the view follows the changes of the children
+		List<Memento> odd=m.getChildrenWithType("odd");
+		m.createChild("odd").putInt("index", 21);
+		m.createChild("none");
+		assertEquals(11, odd.size());
+		assertEquals(21, odd.get(10).getInt("index"));
+		assertEquals(1, m.getChildCountWithType("none"));
+		for (Iterator<Memento> i=m.iterateChildren(); i.hasNext();)
+			if (i.next().getInt("index", 0)%4==1) i.remove();
+		assertEquals(5, odd.size());
+		int index=3;
+		for (Memento child: odd) {
+			assertEquals(index, child.getInt("index"));
+			index+=4;
+		}
+		assertEquals(3, m.getFirstChildWithType("odd").getInt("index"));
+		try {
+			odd.remove(0);
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		
+		Memento frozen=m.freeze();
+		assertEquals(odd, frozen.getChildrenWithType("odd"));
+		assertEquals(10, frozen.getChildCountWithType("even"));
+	}
+	@Test
+	public void testChildIndex() throws Exception {
+		Memento m=new Memento();
+		for (int i=0; i<10; i++)
+			m.createChild(i%3==0 ? "first" : "other").putInt("index", i);
+		
+		// the first lookup scans the children, the second one builds the index
+		assertEquals(4, m.getChildCountWithType("first"));
+		assertFalse(m.hasChildIndex());
+		assertEquals(3, m.getChildrenWithType("first").get(1).getInt("index"));
+		assertTrue(m.hasChildIndex());
+		m.createChild("first").putInt("index", 10);
+		assertEquals(5, m.getChildCountWithType("first"));
+		assertEquals(10, m.getChildrenWithType("first").get(4).getInt("index"));
+		assertEquals(6, m.getChildCountWithType("other"));
+		
+		Memento other=new Memento();
+		other.createChild("a");
+		assertEquals(1, other.getChildCountWithType("a"));
+		assertEquals(0, other.getChildCountWithType("b"));
+		assertTrue(other.hasChildIndex());
+	}
+	@Test
+	public void testDigest() throws Exception {
+		Memento m=fillDigestTest(new Memento("root"));
+		Memento server=m.getFirstChild();
+		long digest=m.digest();
+		assertEquals(digest, m.digest());
+		
+		// the hash code covers the children and the types
+		Memento other=fillDigestTest(new Memento("root"));
+		other.getChildren().get(1).putInt("retries", 3);
+		assertNotEquals(m.hashCode(), other.hashCode());
+		assertNotEquals(m, other);
+		other.getChildren().get(1).removeProperty("retries");
+		assertEquals(digest, other.digest());
+		assertNotEquals(digest, new Memento("other").digest());
+		
+		// modifying a descendant invalidates the digests of its ancestors
+		Memento listener=server.getFirstChild();
+		listener.putInt("port", 8080);
+		long modified=m.digest();
+		assertNotEquals(digest, modified);
+		listener.putInt("port", 80);
+		assertEquals(digest, m.digest());
+		server.createChild();
+		assertNotEquals(digest, m.digest());
+		for (Iterator<Memento> i=server.iterateChildren(); i.hasNext();)
+			if (i.next().getType()==null) i.remove();
+		assertEquals(digest, m.digest());
+		
+		// snapshots and copies have the same digest
+		Memento frozen=m.freeze();
+		assertEquals(digest, frozen.digest());
+		Memento edited=frozen.edit();
+		edited.editChild(0).editChild(0).putInt("port", 8080);
+		assertEquals(modified, edited.digest());
+		assertEquals(digest, frozen.digest());
+		assertNotEquals(frozen, edited);
+		
+		ConcurrentMemento concurrent=new ConcurrentMemento("root");
+		fillDigestTest(concurrent);
+		concurrent.getChildren().get(0).getFirstChild().putInt("port", 8080);
+		assertEquals(modified, concurrent.digest());
+		assertEquals(edited, concurrent);
+	}
+	private static Memento fillDigestTest(Memento m) {
+		m.putString("name", "config").putIntArray("ports", new int[] {80, 443});
+		m.createChild("server").createChild("listener").putInt("port", 80).putByteArray("key", new byte[] {1, 2});
+		m.createChild("client").putDoubleArray("weights", new double[] {0.5}).putStringArray("hosts", new String[] {"a"});
+		return m;
+	}
+	@Test
+	public void testModifiedArray() throws Exception {
+		Memento m=fillDigestTest(new Memento("root"));
+		Memento other=fillDigestTest(new Memento("root"));
+		Set<Memento> set=new HashSet<>();
+		set.add(m);
+		long digest=m.digest();
+		other.digest();
+		
+		// writing into an array returned by reference is reflected by the cached digest, equals and hashCode
+		m.getChildren().get(1).getDoubleArray("weights")[0]=0.25;
+		assertNotEquals(digest, m.digest());
+		assertNotEquals(m, other);
+		assertFalse(set.contains(m));
+		other.getChildren().get(1).getDoubleArray("weights")[0]=0.25;
+		assertEquals(m, other);
+		assertEquals(m.hashCode(), other.hashCode());
+		m.getIntArray("ports")[1]=8443;
+		assertNotEquals(m, other);
+		
+		Memento frozen=m.freeze();
+		assertEquals(m, frozen);
+		assertEquals(m.hashCode(), frozen.hashCode());
+		set.add(frozen);
+		assertTrue(set.contains(m.edit()));
+	}
+	@Test
+	public void testLookup() throws Exception {
+		Memento m=new Memento();
+		m.putInt("int", 5).putLong("long", 6).putString("string", "text").putDouble("double", 1.5)
+				.putIntArray("ints", new int[] {1}).putByteArray("bytes", new byte[] {2});
+		PropertyLookup lookup=new PropertyLookup();
+		assertSame(lookup, m.lookup("int", lookup));
+		assertTrue(lookup.isPresent());
+		assertEquals(Integer.class, lookup.getType());
+		assertEquals(5, lookup.getInt(-1));
+		assertEquals(-1L, lookup.getLong(-1));
+		assertEquals("default", lookup.getString("default"));
+		
+		m.lookup("long", lookup);
+		assertEquals(6L, lookup.getLong(lookup.getInt(0)));
+		assertEquals(-1, lookup.getInt(-1));
+		assertEquals(1.5, m.lookup("double", lookup).getDouble(0), 0);
+		assertEquals("text", m.lookup("string", lookup).getString(null));
+		assertArrayEquals(new int[] {1}, m.lookup("ints", lookup).getIntArray(null));
+		assertNull(lookup.getDoubleArray(null));
+		assertEquals(2, m.lookup("bytes").getByteBuffer(null).get());
+		
+		m.lookup("missing", lookup);
+		assertFalse(lookup.isPresent());
+		assertNull(lookup.getType());
+		assertEquals(7, lookup.getInt(7));
+		assertTrue(lookup.getBoolean(true));
+		
+		// the getters throw exceptions without stack traces
+		try {
+			m.getInt("missing");
+			fail();
+		} catch (NoSuchPropertyException e) {
+			assertEquals(0, e.getStackTrace().length);
+			assertTrue(e.getMessage().contains("missing"));
+		}
+		try {
+			m.getString("int", null);
+			fail();
+		} catch (TypeMismatchException e) {
+			assertEquals(0, e.getStackTrace().length);
+			assertEquals("Property int is Integer, not String", e.getMessage());
+		}
+		try {
+			m.removeProperty("missing");
+			fail();
+		} catch (NoSuchPropertyException e) {
+			assertEquals(0, e.getStackTrace().length);
+			assertEquals("No property: missing", e.getMessage());
+		}
+		assertEquals("message", new NoSuchPropertyException("message").getMessage());
+	}
+	@Test
+	public void testConcurrentMemento() throws Exception {
+		final ConcurrentMemento m=new ConcurrentMemento("root");
+		final int writers=4, count=500;
+		final AtomicBoolean done=new AtomicBoolean();
+		final List<Throwable> errors=Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads=new Thread[writers];
+		for (int t=0; t<writers; t++) {
+			final String name="w"+t;
+			threads[t]=new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i=0; i<count; i++) {
+							m.putInt(name+" "+i, i);
+							m.putLong(name, i);
+							m.createChild(name).putInt("index", i);
+							if (i%2==1) m.removeProperty(name+" "+(i-1));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		Thread reader=new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						for (Iterator<String> i=m.iterateProperties(); i.hasNext();) i.next();
+						for (Memento child: m) child.getInt("index", -1);
+						
+						// each saved memento has a consistent set of properties
+						ByteArrayOutputStream out=new ByteArrayOutputStream();
+						MementoStore.mementoToBinary(m, out);
+						Memento saved=MementoStore.binaryToMemento(new ByteArrayInputStream(out.toByteArray()));
+						for (int t=0; t<writers; t++)
+							if (saved.hasProperty("w"+t))
+								assertTrue(saved.hasProperty("w"+t+" "+saved.getLong("w"+t)));
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}
+		};
+		reader.start();
+		for (Thread thread: threads) thread.start();
+		for (Thread thread: threads) thread.join();
+		done.set(true);
+		reader.join();
+		assertEquals(Collections.emptyList(), errors);
+		
+		assertEquals(writers*(count/2+1), m.getPropertyCount());
+		assertEquals(writers*count, m.getChildCount());
+		for (int t=0; t<writers; t++) {
+			assertEquals(count-1, m.getLong("w"+t));
+			int index=0;
+			for (Memento child: m) {
+				assertTrue(child instanceof ConcurrentMemento);
+				if (child.getType().equals("w"+t)) assertEquals(index++, child.getInt("index"));
+			}
+			assertEquals(count, index);
+		}
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		MementoStore.mementoToJsonStream(m, out);
+		assertEquals(m, MementoStore.jsonStreamToMemento(new ByteArrayInputStream(out.toByteArray())));
+		assertEquals(m, m.freeze());
+	}
+	@Test
+	public void testConcurrentChildIndex() throws Exception {
+		final ConcurrentMemento m=new ConcurrentMemento("root");
+		final int writers=4, count=500;
+		final AtomicBoolean done=new AtomicBoolean();
+		final List<Throwable> errors=Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads=new Thread[writers];
+		for (int t=0; t<writers; t++) {
+			final String name="w"+t;
+			threads[t]=new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i=0; i<count; i++)
+							m.createChild(name).putInt("index", i);
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		Thread reader=new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						// the children of a type are listed in order, without gaps
+						int last=-1;
+						for (Memento child: m.getChildrenWithType("w0")) {
+							int index=child.getInt("index", -1);
+							if (index!=-1) {
+								assertEquals(last+1, index);
+								last=index;
+							}
+						}
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}
+		};
+		reader.start();
+		for (Thread thread: threads) thread.start();
+		for (Thread thread: threads) thread.join();
+		done.set(true);
+		reader.join();
+		assertEquals(Collections.emptyList(), errors);
+		
+		for (int t=0; t<writers; t++) {
+			assertEquals(count, m.getChildCountWithType("w"+t));
+			int index=0;
+			for (Memento child: m.getChildrenWithType("w"+t))
+				assertEquals(index++, child.getInt("index"));
+		}
+	}
+	@Test(timeout=30000)
+	public void testConcurrentCounters() throws Exception {
+		// a few threads updating counters; each update copies the table of 64 properties
+		final ConcurrentMemento m=new ConcurrentMemento("root");
+		final int writers=4, counters=16, count=32000;
+		for (int t=0; t<writers; t++)
+			for (int c=0; c<counters; c++)
+				m.putLong("w"+t+" "+c, 0);
+		final ConcurrentMemento child=m.createChild("stats");
+		final List<Throwable> errors=Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads=new Thread[writers];
+		for (int t=0; t<writers; t++) {
+			final String name="w"+t;
+			threads[t]=new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i=0; i<count; i++) {
+							String key=name+" "+(i%counters);
+							m.putLong(key, m.getLong(key)+1);
+							child.putInt(name, i);
+							if (i%1000==0) m.digest();
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+		for (Thread thread: threads) thread.start();
+		for (Thread thread: threads) thread.join();
+		assertEquals(Collections.emptyList(), errors);
+		
+		for (int t=0; t<writers; t++) {
+			for (int c=0; c<counters; c++)
+				assertEquals(count/counters, m.getLong("w"+t+" "+c));
+			assertEquals(count-1, child.getInt("w"+t));
+		}
+		assertEquals(m.freeze().digest(), m.digest());
+		assertEquals(m.freeze().hashCode(), m.hashCode());
+	}
+	
+	private static List<String> list(Iterator<String> iterator) {
+		List<String> list=new ArrayList<>();
+		while (iterator.hasNext()) list.add(iterator.next());
+		return list;
+	}
 }
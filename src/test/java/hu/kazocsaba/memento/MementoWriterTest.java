@@ -0,0 +1,78 @@
+package hu.kazocsaba.memento;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class MementoWriterTest {
+	@Rule
+	public TemporaryFolder folder=new TemporaryFolder();
+	
+	@Test
+	public void testWriting() throws Exception {
+		Memento expected=new Memento("root");
+		expected.putString("name", "value").putInt("count", 3);
+		for (int i=0; i<3; i++) {
+			Memento child=expected.createChild("child");
+			child.putLong("index", i).putDoubleArray("data", new double[] {i, i+.5}).putChar("c", 'ő');
+			child.createChild().putBoolean("leaf", true);
+		}
+		expected.putByteArray("bytes", new byte[] {1, 2, 3});
+		
+		Path file=folder.newFile().toPath();
+		try (MementoWriter writer=MementoStore.mementoWriterToBinaryFile(file, BinaryFeature.COMPACT_INTEGERS)) {
+			writer.startMemento("root");
+			writer.putString("name", "value");
+			for (int i=0; i<3; i++) {
+				writer.startMemento("child").putLong("index", i);
+				writer.startMemento(null).putBoolean("leaf", true).endMemento();
+				writer.putDoubleArray("data", new double[] {i, i+.5}).putChar("c", 'ő');
+				writer.endMemento();
+			}
+			writer.putInt("count", 2).putInt("count", 3);
+			writer.putByteArray("bytes", new byte[] {1, 2, 3});
+			writer.endMemento();
+		}
+		assertEquals(expected, MementoStore.binaryFileToMemento(file));
+		assertEquals(expected, MementoStore.binaryFileToMementoLazily(file));
+		
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		MementoWriter writer=MementoStore.mementoWriterToBinary(out);
+		writer.putMemento(expected);
+		writer.flush();
+		out.write(42);
+		ByteArrayInputStream in=new ByteArrayInputStream(out.toByteArray());
+		assertEquals(expected, MementoStore.binaryToMemento(in));
+		assertEquals(42, in.read());
+	}
+	
+	@Test
+	public void testInvalidUse() throws Exception {
+		try {
+			MementoStore.mementoWriterToBinary(new ByteArrayOutputStream(), BinaryFeature.INDEXED);
+			fail();
+		} catch (IllegalArgumentException e) {}
+		MementoWriter writer=MementoStore.mementoWriterToBinary(new ByteArrayOutputStream());
+		try {
+			writer.putInt("key", 1);
+			fail();
+		} catch (IllegalStateException e) {}
+		writer.startMemento(null).endMemento();
+		try {
+			writer.startMemento(null);
+			fail();
+		} catch (IllegalStateException e) {}
+		try {
+			writer.endMemento();
+			fail();
+		} catch (IllegalStateException e) {}
+	}
+}